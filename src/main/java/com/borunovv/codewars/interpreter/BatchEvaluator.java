@@ -0,0 +1,374 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a function for many rows of arguments: the program of the body ({@link Postfix}) is run once per block
+ * of rows and every instruction computes its values for the whole block in a plain loop over double[] (which the JIT
+ * unrolls and vectorizes), instead of a run per row. Bodies have no branches, so all rows go through the same
+ * instructions.
+ * <p>
+ * Blocks of a frame are the argument values of the rows, then the temporaries of the body.
+ * An assignment sets the variable to the value of the last row of the block, so after the batch the variables
+ * are as if the function was called for the rows in order.
+ *
+ * @author borunovv
+ */
+final class BatchEvaluator {
+
+    static final int BLOCK = 512;
+
+    // Rows per task of a parallel evaluation
+    static final int PARALLEL_ROWS = 32 * BLOCK;
+
+    private final Interpreter session;
+    private final Deque<double[]> free = new ArrayDeque<>();
+
+    // Operand stack: a block of values, or a constant (null block). Owned blocks are written and released by the
+    // operations, the others are blocks of frames.
+    private double[][] blocks = new double[16][];
+    private double[] constants = new double[16];
+    private boolean[] owned = new boolean[16];
+    // Functions resolved for the calls being evaluated
+    private Interpreter.FunctionInfo[] resolved = new Interpreter.FunctionInfo[16];
+    // Callers of the functions being evaluated
+    private Postfix[] callerPrograms = new Postfix[16];
+    private int[] callerPositions = new int[16];
+    private double[][][] callerFrames = new double[16][][];
+    private boolean[][] callerOwned = new boolean[16][];
+
+    BatchEvaluator(Interpreter session) {
+        this.session = session;
+    }
+
+    // res[row] = function(columns[0][row], columns[1][row], ...) for rows [from, to).
+    void evaluate(Interpreter.FunctionInfo function, double[][] columns, double[] res, int from, int to) {
+        for (int start = from; start < to; start += BLOCK) {
+            int count = Math.min(BLOCK, to - start);
+            double[][] frame = new double[function.frameSize][];
+            boolean[] frameOwned = new boolean[function.frameSize];
+            for (int i = 0; i < columns.length; i++) {
+                frame[i] = block();
+                frameOwned[i] = true;
+                System.arraycopy(columns[i], start, frame[i], 0, count);
+            }
+            execute(function.program, frame, frameOwned, count);
+            if (blocks[0] != null) {
+                System.arraycopy(blocks[0], 0, res, start, count);
+                release(blocks[0], owned[0]);
+            } else {
+                Arrays.fill(res, start, start + count, constants[0]);
+            }
+            release(frame, frameOwned);
+        }
+    }
+
+    /**
+     * Runs the program for 'count' rows, leaving the value on the operand stack. As in the interpreter,
+     * the bodies of called functions are run in the same loop, with the callers on a stack of the session's
+     * maximum call depth.
+     */
+    private void execute(Postfix program, double[][] frame, boolean[] frameOwned, int count) {
+        int sp = 0;
+        int resolvedTop = 0;
+        int callerTop = 0;
+        operandStack(program.maxDepth);
+        int[] code = program.code;
+        int pc = 0;
+        while (true) {
+            if (pc == code.length) {
+                if (callerTop == 0) {
+                    return;
+                }
+                // The value may be a block of the frame released here, it's the caller's then
+                double[] value = blocks[sp - 1];
+                for (int i = 0; value != null && !owned[sp - 1] && i < frame.length; i++) {
+                    if (frame[i] == value && frameOwned[i]) {
+                        frameOwned[i] = false;
+                        owned[sp - 1] = true;
+                    }
+                }
+                release(frame, frameOwned);
+                callerTop--;
+                program = callerPrograms[callerTop];
+                pc = callerPositions[callerTop];
+                frame = callerFrames[callerTop];
+                frameOwned = callerOwned[callerTop];
+                code = program.code;
+                continue;
+            }
+            int opcode = code[pc++];
+            switch (opcode) {
+                case Postfix.NUMBER:
+                    blocks[sp] = null;
+                    constants[sp] = program.constants[code[pc++]];
+                    owned[sp++] = false;
+                    break;
+                case Postfix.LOCAL:
+                    blocks[sp] = frame[code[pc++]];
+                    owned[sp++] = false;
+                    break;
+                case Postfix.ADD:
+                case Postfix.SUBTRACT:
+                case Postfix.MULTIPLY:
+                case Postfix.DIVIDE:
+                case Postfix.REMAINDER:
+                    sp--;
+                    operation(opcode, sp - 1, sp, count);
+                    break;
+                case Postfix.ADD_NUMBER:
+                case Postfix.SUBTRACT_NUMBER:
+                case Postfix.MULTIPLY_NUMBER:
+                case Postfix.DIVIDE_NUMBER:
+                case Postfix.REMAINDER_NUMBER:
+                    blocks[sp] = null;
+                    constants[sp] = program.constants[code[pc++]];
+                    owned[sp] = false;
+                    operation(opcode - Postfix.NUMBER_OPERAND, sp - 1, sp, count);
+                    break;
+                case Postfix.ADD_LOCAL:
+                case Postfix.SUBTRACT_LOCAL:
+                case Postfix.MULTIPLY_LOCAL:
+                case Postfix.DIVIDE_LOCAL:
+                case Postfix.REMAINDER_LOCAL:
+                    blocks[sp] = frame[code[pc++]];
+                    owned[sp] = false;
+                    operation(opcode - Postfix.LOCAL_OPERAND, sp - 1, sp, count);
+                    break;
+                case Postfix.ASSIGN:
+                    // Value of the last row, as after the calls of the rows in order
+                    double value = blocks[sp - 1] != null ? blocks[sp - 1][count - 1] : constants[sp - 1];
+                    session.assign(code[pc++], value);
+                    break;
+                case Postfix.STORE:
+                    double[] temporary = block();
+                    if (blocks[sp - 1] != null) {
+                        System.arraycopy(blocks[sp - 1], 0, temporary, 0, count);
+                    } else {
+                        Arrays.fill(temporary, 0, count, constants[sp - 1]);
+                    }
+                    int slot = code[pc++];
+                    frame[slot] = temporary;
+                    frameOwned[slot] = true;
+                    break;
+                case Postfix.RESOLVE:
+                    Interpreter.FunctionCallNode call = program.calls[code[pc++]];
+                    if (resolvedTop == resolved.length) {
+                        resolved = Arrays.copyOf(resolved, resolvedTop * 2);
+                    }
+                    resolved[resolvedTop++] = Interpreter.checkArity(
+                            call.getFunction().current(), call.getName(), call.children.size());
+                    break;
+                case Postfix.CALL:
+                    // The function of the batch is the first call, as in Interpreter.call()
+                    if (callerTop + 2 > session.getMaxCallDepth()) {
+                        throw new IllegalArgumentException("Maximum call depth exceeded");
+                    }
+                    Interpreter.FunctionInfo function = resolved[--resolvedTop];
+                    int argCount = function.argNames.size();
+                    double[][] calledFrame = new double[function.frameSize][];
+                    boolean[] calledOwned = new boolean[function.frameSize];
+                    sp -= argCount;
+                    for (int i = 0; i < argCount; i++) {
+                        if (blocks[sp + i] != null) {
+                            calledFrame[i] = blocks[sp + i];
+                            calledOwned[i] = owned[sp + i];
+                        } else {
+                            calledFrame[i] = block();
+                            calledOwned[i] = true;
+                            Arrays.fill(calledFrame[i], 0, count, constants[sp + i]);
+                        }
+                    }
+                    if (callerTop == callerPrograms.length) {
+                        callerPrograms = Arrays.copyOf(callerPrograms, callerTop * 2);
+                        callerPositions = Arrays.copyOf(callerPositions, callerTop * 2);
+                        callerFrames = Arrays.copyOf(callerFrames, callerTop * 2);
+                        callerOwned = Arrays.copyOf(callerOwned, callerTop * 2);
+                    }
+                    callerPrograms[callerTop] = program;
+                    callerPositions[callerTop] = pc;
+                    callerFrames[callerTop] = frame;
+                    callerOwned[callerTop] = frameOwned;
+                    callerTop++;
+                    program = function.program;
+                    code = program.code;
+                    pc = 0;
+                    frame = calledFrame;
+                    frameOwned = calledOwned;
+                    operandStack(sp + program.maxDepth);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected instruction in a function body: " + opcode);
+            }
+        }
+    }
+
+    // operand[left] = operand[left] op operand[right], into an owned block.
+    private void operation(int opcode, int left, int right, int count) {
+        if (blocks[left] == null && blocks[right] == null) {
+            constants[left] = apply(opcode, constants[left], constants[right]);
+            return;
+        }
+        double[] out = owned[left] ? blocks[left] : block();
+        if (blocks[left] == null) {
+            Arrays.fill(out, 0, count, constants[left]);
+            apply(opcode, out, out, blocks[right], count);
+        } else if (blocks[right] == null) {
+            apply(opcode, out, blocks[left], constants[right], count);
+        } else {
+            apply(opcode, out, blocks[left], blocks[right], count);
+        }
+        if (blocks[right] != null) {
+            release(blocks[right], owned[right]);
+        }
+        blocks[left] = out;
+        owned[left] = true;
+    }
+
+    private static double apply(int opcode, double left, double right) {
+        switch (opcode) {
+            case Postfix.ADD:
+                return left + right;
+            case Postfix.SUBTRACT:
+                return left - right;
+            case Postfix.MULTIPLY:
+                return left * right;
+            case Postfix.DIVIDE:
+                return left / right;
+            default:
+                return left % right;
+        }
+    }
+
+    // out[i] = left[i] op right[i], out may be left
+    private static void apply(int opcode, double[] out, double[] left, double[] right, int count) {
+        switch (opcode) {
+            case Postfix.ADD:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] + right[i];
+                }
+                break;
+            case Postfix.SUBTRACT:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] - right[i];
+                }
+                break;
+            case Postfix.MULTIPLY:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] * right[i];
+                }
+                break;
+            case Postfix.DIVIDE:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] / right[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] % right[i];
+                }
+                break;
+        }
+    }
+
+    // out[i] = left[i] op right, a constant
+    private static void apply(int opcode, double[] out, double[] left, double right, int count) {
+        switch (opcode) {
+            case Postfix.ADD:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] + right;
+                }
+                break;
+            case Postfix.SUBTRACT:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] - right;
+                }
+                break;
+            case Postfix.MULTIPLY:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] * right;
+                }
+                break;
+            case Postfix.DIVIDE:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] / right;
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    out[i] = left[i] % right;
+                }
+                break;
+        }
+    }
+
+    private void operandStack(int size) {
+        if (size > blocks.length) {
+            size = Math.max(blocks.length * 2, size);
+            blocks = Arrays.copyOf(blocks, size);
+            constants = Arrays.copyOf(constants, size);
+            owned = Arrays.copyOf(owned, size);
+        }
+    }
+
+    private double[] block() {
+        double[] res = free.poll();
+        return res != null ? res : new double[BLOCK];
+    }
+
+    private void release(double[] block, boolean owned) {
+        if (owned) {
+            free.push(block);
+        }
+    }
+
+    private void release(double[][] frame, boolean[] frameOwned) {
+        for (int i = 0; i < frame.length; i++) {
+            release(frame[i], frameOwned[i]);
+        }
+    }
+
+    /**
+     * Rows [from, to) split between tasks of a fork/join pool, each with its own session of the functions.
+     * Variables assigned for the last row are copied to 'session' at the end.
+     */
+    static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Interpreter session;
+        private final Interpreter.FunctionInfo function;
+        private final double[][] columns;
+        private final double[] res;
+        private final int from;
+        private final int to;
+
+        Task(Interpreter session, Interpreter.FunctionInfo function, double[][] columns, double[] res,
+             int from, int to) {
+            this.session = session;
+            this.function = function;
+            this.columns = columns;
+            this.res = res;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_ROWS) {
+                Interpreter rows = session.newSession();
+                new BatchEvaluator(rows).evaluate(function, columns, res, from, to);
+                if (to == res.length) {
+                    session.assignAll(rows);
+                }
+                return;
+            }
+            // At a block boundary, so only the last task has a partial block
+            int middle = from + (to - from) / 2 / BLOCK * BLOCK;
+            invokeAll(new Task(session, function, columns, res, from, middle),
+                      new Task(session, function, columns, res, middle, to));
+        }
+    }
+}
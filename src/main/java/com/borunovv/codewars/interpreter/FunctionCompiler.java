@@ -0,0 +1,391 @@
+package com.borunovv.codewars.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a function body to JVM bytecode: a subclass of {@link Interpreter.CompiledFunction} whose
+ * call(Interpreter, double[], int) moves the arguments from the session's stack to double locals (the temporaries
+ * of the body are double locals too) and evaluates the tree with double arithmetic, no boxing and no map lookups.
+ * The class file (version 52, no branches, so no stack map frames) is written by hand and defined by its own
+ * class loader, so it is unloaded with the function.
+ *
+ * @author borunovv
+ */
+final class FunctionCompiler {
+
+    private static final String BASE = "com/borunovv/codewars/interpreter/Interpreter$CompiledFunction";
+    private static final String FUNCTION_INFO = "Lcom/borunovv/codewars/interpreter/Interpreter$FunctionInfo;";
+    private static final String INTERPRETER = "Lcom/borunovv/codewars/interpreter/Interpreter;";
+
+    // Deepest body compiled: the compiler walks the tree recursively and the code keeps an operand per level
+    private static final int MAX_DEPTH = 512;
+
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    private final ConstantPool pool = new ConstantPool();
+    private final Code code = new Code();
+    private final List<Interpreter.FunctionCallNode> calls = new ArrayList<>();
+    // this, session, stack, frame, then 2 slots per double argument and temporary, and the locals of call sites
+    private int locals = 4;
+
+    private FunctionCompiler() {
+    }
+
+    /**
+     * Unbound instance running the function body, or null if it can't be compiled
+     * (the body is too deep or the method would exceed JVM limits).
+     */
+    static Interpreter.CompiledFunction compile(Interpreter.FunctionInfo function) {
+        if (depth(function.root) > MAX_DEPTH) {
+            return null;
+        }
+        String className = "com/borunovv/codewars/interpreter/CompiledFunction$" + classCount.incrementAndGet();
+        FunctionCompiler compiler = new FunctionCompiler();
+        byte[] bytes;
+        try {
+            bytes = compiler.classFile(className, function);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+        try {
+            Class<?> type = new Loader().define(className.replace('/', '.'), bytes);
+            Interpreter.CompiledFunction res = (Interpreter.CompiledFunction) type.getConstructor().newInstance();
+            res.callees = new Interpreter.FunctionInfo[compiler.calls.size()];
+            res.calleeNames = new String[compiler.calls.size()];
+            for (int i = 0; i < res.callees.length; i++) {
+                res.callees[i] = compiler.calls.get(i).getFunction();
+                res.calleeNames[i] = compiler.calls.get(i).getName();
+            }
+            return res;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't load compiled function " + className, e);
+        }
+    }
+
+    private byte[] classFile(String className, Interpreter.FunctionInfo function) {
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef(BASE);
+        int init = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int call = pool.utf8("call");
+        int callType = pool.utf8("(" + INTERPRETER + "[DI)D");
+        int codeAttribute = pool.utf8("Code");
+
+        // public <init>() { super(); }
+        Code constructor = new Code();
+        constructor.op(0x2a, 1); // aload_0
+        constructor.op(0xb7, -1).u2(pool.methodRef(BASE, "<init>", "()V")); // invokespecial
+        constructor.op(0xb1, 0); // return
+
+        // public double call(Interpreter session, double[] stack, int frame): stack[frame + i] -> local 4 + 2 * i,
+        // then the body
+        for (int i = 0; i < function.argNames.size(); i++) {
+            code.op(0x2c, 1); // aload_2
+            code.op(0x1d, 1); // iload_3
+            if (i > 0) {
+                code.intConstant(i);
+                code.op(0x60, -1); // iadd
+            }
+            code.op(0x31, 0); // daload
+            code.local(0x39, argumentLocal(i), -2); // dstore
+        }
+        locals += 2 * function.frameSize;
+        expression(function.root);
+        code.op(0xaf, -2); // dreturn
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            pool.write(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+            method(out, init, initType, codeAttribute, constructor, 1);
+            method(out, call, callType, codeAttribute, code, locals);
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void method(DataOutputStream out, int name, int type, int codeAttribute, Code code,
+                               int maxLocals) throws IOException {
+        byte[] bytes = code.bytes.toByteArray();
+        if (bytes.length >= 65536) {
+            throw new IllegalStateException("Method is too large");
+        }
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + bytes.length);
+        out.writeShort(code.maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    // Leaves the double value of the node on the stack.
+    private void expression(Interpreter.Node node) {
+        switch (node.type) {
+            case NUMBER:
+                double value = ((Interpreter.NumberNode) node).getValue();
+                if (Double.doubleToRawLongBits(value) == 0L) {
+                    code.op(0x0e, 2); // dconst_0
+                } else if (value == 1.0) {
+                    code.op(0x0f, 2); // dconst_1
+                } else {
+                    code.op(0x14, 2).u2(pool.doubleConstant(value)); // ldc2_w
+                }
+                break;
+            case IDENTIFIER:
+                code.local(0x18, argumentLocal(((Interpreter.VariableNode) node).getSlot()), 2); // dload
+                break;
+            case MATH_OPERATION:
+                expression(node.children.get(0));
+                expression(node.children.get(1));
+                code.op(opcode(((Interpreter.OperationNode) node).getOperation()), -2);
+                break;
+            case ASSIGNMENT:
+                // this.assign(session, slot, value): the session's global variable, as in the tree-walker
+                code.op(0x2a, 1); // aload_0
+                code.op(0x2b, 1); // aload_1
+                code.intConstant(((Interpreter.AssignmentNode) node).getSlot());
+                expression(node.children.get(0));
+                code.op(0xb6, -3).u2(pool.methodRef(BASE, "assign", "(" + INTERPRETER + "ID)D")); // invokevirtual
+                break;
+            case FUNCTION_CALL:
+                call((Interpreter.FunctionCallNode) node);
+                break;
+            case TEMPORARY:
+                int temporary = argumentLocal(((Interpreter.TemporaryNode) node).getSlot());
+                if (!node.children.isEmpty()) {
+                    expression(node.children.get(0));
+                    code.op(0x5c, 2); // dup2
+                    code.local(0x39, temporary, -2); // dstore
+                } else {
+                    code.local(0x18, temporary, 2); // dload
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected node: " + node.type);
+        }
+    }
+
+    /**
+     * function = this.resolve(callee, n); frame = this.enter(session, n);
+     * this.argument(session, frame, i, value) for every argument; this.invoke(session, function, frame).
+     * The current definition is taken and its arity checked before the arguments are evaluated.
+     */
+    private void call(Interpreter.FunctionCallNode node) {
+        int callee = calls.size();
+        calls.add(node);
+        int argCount = node.children.size();
+        int function = locals++;
+        int frame = locals++;
+        code.op(0x2a, 1); // aload_0
+        code.intConstant(callee);
+        code.intConstant(argCount);
+        code.op(0xb6, -2).u2(pool.methodRef(BASE, "resolve", "(II)" + FUNCTION_INFO));
+        code.local(0x3a, function, -1); // astore
+        code.op(0x2a, 1); // aload_0
+        code.op(0x2b, 1); // aload_1
+        code.intConstant(argCount);
+        code.op(0xb6, -2).u2(pool.methodRef(BASE, "enter", "(" + INTERPRETER + "I)I"));
+        code.local(0x36, frame, -1); // istore
+        for (int i = 0; i < argCount; i++) {
+            code.op(0x2a, 1); // aload_0
+            code.op(0x2b, 1); // aload_1
+            code.local(0x15, frame, 1); // iload
+            code.intConstant(i);
+            expression(node.children.get(i));
+            code.op(0xb6, -6).u2(pool.methodRef(BASE, "argument", "(" + INTERPRETER + "IID)V"));
+        }
+        code.op(0x2a, 1); // aload_0
+        code.op(0x2b, 1); // aload_1
+        code.local(0x19, function, 1); // aload
+        code.local(0x15, frame, 1); // iload
+        code.op(0xb6, -2).u2(pool.methodRef(BASE, "invoke", "(" + INTERPRETER + FUNCTION_INFO + "I)D"));
+    }
+
+    // Levels of the tree, counted with an explicit stack.
+    private static int depth(Interpreter.Node root) {
+        Deque<Interpreter.Node> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        nodes.push(root);
+        depths.push(1);
+        int res = 0;
+        while (!nodes.isEmpty()) {
+            Interpreter.Node node = nodes.pop();
+            int depth = depths.pop();
+            res = Math.max(res, depth);
+            for (Interpreter.Node child : node.children) {
+                nodes.push(child);
+                depths.push(depth + 1);
+            }
+        }
+        return res;
+    }
+
+    private static int argumentLocal(int index) {
+        return 4 + 2 * index;
+    }
+
+    private static int opcode(String operation) {
+        switch (operation) {
+            case "+":
+                return 0x63; // dadd
+            case "-":
+                return 0x67; // dsub
+            case "*":
+                return 0x6b; // dmul
+            case "/":
+                return 0x6f; // ddiv
+            case "%":
+                return 0x73; // drem
+            default:
+                throw new IllegalArgumentException("Unrecognized operator: '" + operation + "'");
+        }
+    }
+
+    // Method bytecode with the stack depth tracked in slots (a double takes 2).
+    private static final class Code {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int stack;
+        int maxStack;
+
+        Code op(int opcode, int stackChange) {
+            bytes.write(opcode);
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+            return this;
+        }
+
+        Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        void local(int opcode, int slot, int stackChange) {
+            if (slot > 255) {
+                op(0xc4, 0); // wide
+                op(opcode, stackChange).u2(slot);
+            } else {
+                op(opcode, stackChange).u1(slot);
+            }
+        }
+
+        void intConstant(int value) {
+            if (value <= 5) {
+                op(0x03 + value, 1); // iconst_<n>
+            } else if (value <= Byte.MAX_VALUE) {
+                op(0x10, 1).u1(value); // bipush
+            } else if (value <= Short.MAX_VALUE) {
+                op(0x11, 1).u2(value); // sipush
+            } else {
+                throw new IllegalStateException("Too many arguments");
+            }
+        }
+    }
+
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, () -> out.writeUTF(value));
+        }
+
+        int classRef(String name) {
+            int utf8 = utf8(name);
+            return entry("C" + name, 1, () -> out.writeShort(utf8), 7);
+        }
+
+        int doubleConstant(double value) {
+            return entry("D" + Double.doubleToRawLongBits(value), 2, () -> out.writeDouble(value), 6);
+        }
+
+        int methodRef(String owner, String name, String type) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int nameAndType = entry("N" + name + type, 1, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            }, 12);
+            return entry("M" + owner + "." + name + type, 1, () -> {
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            }, 10);
+        }
+
+        private int entry(String key, int size, Body body) {
+            return entry(key, size, body, 1);
+        }
+
+        private int entry(String key, int size, Body body, int tag) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            if (count + size > 65535) {
+                throw new IllegalStateException("Constant pool is too large");
+            }
+            try {
+                out.writeByte(tag);
+                body.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, count);
+            count += size;
+            return count - size;
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+
+        private interface Body {
+            void write() throws IOException;
+        }
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader() {
+            super(FunctionCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Simplifies a function body once, at declaration:
+ * <ul>
+ * <li>operations on constants are folded to numbers;</li>
+ * <li>x * 1, 1 * x, x / 1 and x - 0 become x, x / 2^k becomes x * 2^-k. Only rewrites giving the same double
+ * for every x (NaN, infinities and -0.0 included) are done, so x + 0 (-0.0 + 0 is 0.0) or x * 0 stay;</li>
+ * <li>identical subtrees are hash-consed, so an operation repeated in the body is evaluated once per call
+ * and kept in a {@link Interpreter.TemporaryNode}.</li>
+ * </ul>
+ * Only subtrees of numbers, arguments and operations are shared: assignments and function calls
+ * have side effects (a called function may assign), so they are evaluated as written.
+ * Shared subtrees have no side effects, so evaluating them at the first occurrence keeps the results.
+ *
+ * @author borunovv
+ */
+final class FunctionOptimizer {
+
+    // Canonical node by its kind and the canonical children
+    private final Map<List<Object>, Interpreter.Node> nodes = new HashMap<>();
+    // Canonical nodes (no side effects) -> count of their parents
+    private final Map<Interpreter.Node, Integer> references = new IdentityHashMap<>();
+    private final Map<Interpreter.Node, Integer> temporaries = new IdentityHashMap<>();
+    private int frameSize;
+
+    private FunctionOptimizer(int argCount) {
+        this.frameSize = argCount;
+    }
+
+    /**
+     * Function with the simplified body of the resolved tree 'root' (the tree is rebuilt in place).
+     */
+    static Interpreter.FunctionInfo optimize(Interpreter.Node root, List<String> argNames) {
+        FunctionOptimizer optimizer = new FunctionOptimizer(argNames.size());
+        root = rewrite(root, node -> null, optimizer::intern);
+        rewrite(root, optimizer::count, node -> node);
+        root = rewrite(root, optimizer::share, optimizer::temporary);
+        return new Interpreter.FunctionInfo(root, argNames, optimizer.frameSize);
+    }
+
+    /**
+     * Walks the tree in evaluation order with an explicit stack (bodies may be deeper than the Java stack allows):
+     * 'enter' may replace a node before its children (they are skipped then, null to go on), 'exit' replaces it
+     * after them. Children are replaced in place.
+     */
+    private static Interpreter.Node rewrite(Interpreter.Node root, UnaryOperator<Interpreter.Node> enter,
+                                            UnaryOperator<Interpreter.Node> exit) {
+        Interpreter.Node res = enter.apply(root);
+        if (res != null) {
+            return res;
+        }
+        List<Interpreter.Node> path = new ArrayList<>();
+        // Next child to visit of each node of the path
+        List<Integer> positions = new ArrayList<>();
+        path.add(root);
+        positions.add(0);
+        while (true) {
+            int last = path.size() - 1;
+            Interpreter.Node node = path.get(last);
+            int position = positions.get(last);
+            if (position < node.children.size()) {
+                positions.set(last, position + 1);
+                Interpreter.Node child = node.children.get(position);
+                Interpreter.Node replacement = enter.apply(child);
+                if (replacement != null) {
+                    node.children.set(position, replacement);
+                } else {
+                    path.add(child);
+                    positions.add(0);
+                }
+                continue;
+            }
+            path.remove(last);
+            positions.remove(last);
+            res = exit.apply(node);
+            if (path.isEmpty()) {
+                return res;
+            }
+            path.get(last - 1).children.set(positions.get(last - 1) - 1, res);
+        }
+    }
+
+    // Folds, simplifies and hash-conses the node, its children are done.
+    private Interpreter.Node intern(Interpreter.Node node) {
+        switch (node.type) {
+            case NUMBER:
+                return canonical(node, "n", Double.doubleToRawLongBits(((Interpreter.NumberNode) node).getValue()));
+            case IDENTIFIER:
+                return canonical(node, "v", ((Interpreter.VariableNode) node).getSlot());
+            case MATH_OPERATION:
+                return operation((Interpreter.OperationNode) node);
+            default:
+                return node;
+        }
+    }
+
+    private Interpreter.Node operation(Interpreter.OperationNode node) {
+        Interpreter.Node left = node.children.get(0);
+        Interpreter.Node right = node.children.get(1);
+        if (isNumber(left) && isNumber(right)) {
+            return intern(new Interpreter.NumberNode(node.evaluate(null, 0)));
+        }
+        String operation = node.getOperation();
+        if ((operation.equals("*") || operation.equals("/")) && isNumber(right, 1.0)) {
+            return left;
+        }
+        if (operation.equals("*") && isNumber(left, 1.0)) {
+            return right;
+        }
+        if (operation.equals("-") && isNumber(right, 0.0)) {
+            return left;
+        }
+        if (operation.equals("/") && isNumber(right)) {
+            // x / c == x * (1 / c) when both c and 1 / c are powers of two: the exact quotients are the same
+            double divisor = ((Interpreter.NumberNode) right).getValue();
+            double reciprocal = 1.0 / divisor;
+            if (isPowerOfTwo(divisor) && isPowerOfTwo(reciprocal)) {
+                Interpreter.OperationNode multiplication = new Interpreter.OperationNode("*");
+                multiplication.add(left);
+                multiplication.add(intern(new Interpreter.NumberNode(reciprocal)));
+                return operation(multiplication);
+            }
+        }
+        if (!references.containsKey(left) || !references.containsKey(right)) {
+            return node; // has side effects
+        }
+        if (operation.equals("+") || operation.equals("*")) {
+            // Commutative: b + a is a + b
+            Interpreter.Node swapped = nodes.get(Arrays.asList(operation, right, left));
+            if (swapped != null) {
+                return swapped;
+            }
+        }
+        return canonical(node, operation, left, right);
+    }
+
+    private Interpreter.Node canonical(Interpreter.Node node, Object... key) {
+        Interpreter.Node res = nodes.putIfAbsent(Arrays.asList(key), node);
+        if (res == null) {
+            references.put(node, 0);
+            res = node;
+        }
+        return res;
+    }
+
+    // Counts the parents of canonical nodes, walking each node once.
+    private Interpreter.Node count(Interpreter.Node node) {
+        Integer parents = references.get(node);
+        if (parents != null) {
+            references.put(node, parents + 1);
+            if (parents > 0) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    // Operations with several parents are replaced by a temporary: set at the first occurrence
+    // in evaluation order (see temporary()) and read by the others.
+    private Interpreter.Node share(Interpreter.Node node) {
+        Integer slot = temporaries.get(node);
+        return slot != null ? new Interpreter.TemporaryNode(slot) : null;
+    }
+
+    private Interpreter.Node temporary(Interpreter.Node node) {
+        if (node.type != Interpreter.NodeType.MATH_OPERATION || references.getOrDefault(node, 0) < 2) {
+            return node;
+        }
+        Interpreter.TemporaryNode temporary = new Interpreter.TemporaryNode(frameSize);
+        temporary.add(node);
+        temporaries.put(node, frameSize++);
+        return temporary;
+    }
+
+    private static boolean isNumber(Interpreter.Node node) {
+        return node.type == Interpreter.NodeType.NUMBER;
+    }
+
+    private static boolean isNumber(Interpreter.Node node, double value) {
+        return isNumber(node) && Double.doubleToRawLongBits(((Interpreter.NumberNode) node).getValue())
+                                 == Double.doubleToRawLongBits(value);
+    }
+
+    private static boolean isPowerOfTwo(double value) {
+        double magnitude = Math.abs(value);
+        return Math.getExponent(magnitude) >= Double.MIN_EXPONENT && Math.getExponent(magnitude) <= Double.MAX_EXPONENT
+               && magnitude == Math.scalb(1.0, Math.getExponent(magnitude));
+    }
+}
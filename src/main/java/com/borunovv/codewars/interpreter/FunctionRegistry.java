@@ -0,0 +1,94 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Functions declared by the {@link Interpreter} sessions sharing the registry, and the slots of global variable names
+ * (values of the variables are kept by the sessions). Sessions in any threads read it without locks:
+ * the functions are an immutable map replaced on every declaration (copy on write), the slots are
+ * a concurrent map. Bodies and their bytecode are shared, so a function is compiled once for all sessions.
+ *
+ * @author borunovv
+ */
+public final class FunctionRegistry {
+
+    // Calls of a function before its body is compiled to bytecode, by default.
+    public static final int DEFAULT_COMPILE_THRESHOLD = 100;
+
+    private final int compileThreshold;
+    // Function bodies are simplified at declaration, see FunctionOptimizer
+    private final boolean optimizeFunctions;
+    private volatile Map<String, Interpreter.FunctionInfo> functions = Collections.emptyMap();
+    // Count of declarations, sessions drop their parsed expressions when it changes
+    private volatile long version;
+    private final Map<String, Integer> globalSlots = new ConcurrentHashMap<>();
+    private final AtomicInteger globalCount = new AtomicInteger();
+
+    public FunctionRegistry() {
+        this(DEFAULT_COMPILE_THRESHOLD);
+    }
+
+    public FunctionRegistry(int compileThreshold) {
+        this(compileThreshold, true);
+    }
+
+    /**
+     * Registry whose functions are compiled to bytecode after 'compileThreshold' calls
+     * (Integer.MAX_VALUE: never, they are always interpreted) and, if 'optimizeFunctions',
+     * simplified when declared.
+     */
+    public FunctionRegistry(int compileThreshold, boolean optimizeFunctions) {
+        if (compileThreshold < 1) {
+            throw new IllegalArgumentException("Bad compile threshold: " + compileThreshold);
+        }
+        this.compileThreshold = compileThreshold;
+        this.optimizeFunctions = optimizeFunctions;
+    }
+
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    public boolean isOptimizeFunctions() {
+        return optimizeFunctions;
+    }
+
+    public Interpreter.FunctionInfo get(String name) {
+        return functions.get(name);
+    }
+
+    // Declared functions by name (unmodifiable, not changed by later declarations).
+    public Map<String, Interpreter.FunctionInfo> getFunctions() {
+        return functions;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Declares the function, replacing the previous one of the name: calls bound to that take this one.
+     */
+    synchronized void declare(String name, Interpreter.FunctionInfo function) {
+        Map<String, Interpreter.FunctionInfo> res = new HashMap<>(functions);
+        Interpreter.FunctionInfo previous = res.put(name, function);
+        if (previous != null) {
+            previous.replacement = function;
+        }
+        functions = Collections.unmodifiableMap(res);
+        version++;
+    }
+
+    int globalSlot(String name) {
+        return globalSlots.computeIfAbsent(name, key -> globalCount.getAndIncrement());
+    }
+
+    // Slot of the name, null if no session has used it.
+    Integer findGlobalSlot(String name) {
+        return globalSlots.get(name);
+    }
+}
@@ -1,9 +1,8 @@
 package com.borunovv.codewars.interpreter;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * function        ::= fn-keyword fn-name { identifier } fn-operator expression
@@ -48,7 +47,7 @@ public class Interpreter {
         }
     }
 
-    public enum NodeType {IDENTIFIER, NUMBER, ASSIGNMENT, MATH_OPERATION, FUNCTION_CALL}
+    public enum NodeType {IDENTIFIER, NUMBER, ASSIGNMENT, MATH_OPERATION, FUNCTION_CALL, TEMPORARY}
 
     public static abstract class Node {
         public final NodeType type;
@@ -62,11 +61,18 @@ public class Interpreter {
             children.add(child);
         }
 
-        public abstract Double evaluate(Map<String, Double> variables);
+        /**
+         * Value of the node in the session. Arguments of the function being evaluated are at stack[frame + slot]
+         * of the session, global variables are in their slots of the session.
+         */
+        public abstract double evaluate(Interpreter session, int frame);
     }
 
-    public class VariableNode extends Node {
+    public static class VariableNode extends Node {
         private final String name;
+        // Argument index in the frame, or global variable slot; set by the resolution pass
+        private int slot = -1;
+        private boolean global;
 
         public VariableNode(String name) {
             super(NodeType.IDENTIFIER);
@@ -77,42 +83,59 @@ public class Interpreter {
             return name;
         }
 
+        int getSlot() {
+            return slot;
+        }
+
+        boolean isGlobal() {
+            return global;
+        }
+
         @Override
-        public Double evaluate(Map<String, Double> context) {
-            if (!context.containsKey(name)) {
+        public double evaluate(Interpreter session, int frame) {
+            if (!global) {
+                return session.stack[frame + slot];
+            }
+            if (slot >= session.defined.length || !session.defined[slot]) {
                 throw new IllegalArgumentException("Unknown identifier: '" + name + "'");
             }
-            return context.get(name);
+            return session.globals[slot];
         }
     }
 
     public static class OperationNode extends Node {
         private final String operation;
+        private final char operator;
 
         public OperationNode(String operation) {
             super(NodeType.MATH_OPERATION);
             this.operation = operation;
+            this.operator = operation.length() == 1 ? operation.charAt(0) : 0;
+        }
+
+        public String getOperation() {
+            return operation;
         }
 
         @Override
-        public Double evaluate(Map<String, Double> context) {
+        public double evaluate(Interpreter session, int frame) {
             if (children.size() != 2) {
                 throw new IllegalArgumentException("Expected 2 operands for operator: '" + operation + "'");
             }
 
-            double operand1 = children.get(0).evaluate(context);
-            double operand2 = children.get(1).evaluate(context);
+            double operand1 = children.get(0).evaluate(session, frame);
+            double operand2 = children.get(1).evaluate(session, frame);
 
-            switch (operation) {
-                case "+":
+            switch (operator) {
+                case '+':
                     return operand1 + operand2;
-                case "-":
+                case '-':
                     return operand1 - operand2;
-                case "*":
+                case '*':
                     return operand1 * operand2;
-                case "/":
+                case '/':
                     return operand1 / operand2;
-                case "%":
+                case '%':
                     return operand1 % operand2;
                 default:
                     throw new IllegalArgumentException("Unrecognized operator: '" + operation + "'");
@@ -128,14 +151,25 @@ public class Interpreter {
             this.value = Double.parseDouble(strValue);
         }
 
+        public NumberNode(double value) {
+            super(NodeType.NUMBER);
+            this.value = value;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
         @Override
-        public Double evaluate(Map<String, Double> context) {
+        public double evaluate(Interpreter session, int frame) {
             return value;
         }
     }
 
-    public class AssignmentNode extends Node {
+    public static class AssignmentNode extends Node {
         private final String variableName;
+        // Global variable slot, set by the resolution pass
+        private int slot = -1;
 
         public AssignmentNode(String variableName) {
             super(NodeType.ASSIGNMENT);
@@ -145,84 +179,636 @@ public class Interpreter {
             this.variableName = variableName;
         }
 
+        public String getVariableName() {
+            return variableName;
+        }
+
+        int getSlot() {
+            return slot;
+        }
+
         @Override
-        public Double evaluate(Map<String, Double> context) {
+        public double evaluate(Interpreter session, int frame) {
             if (children.size() != 1) {
                 throw new IllegalArgumentException("Expected 1 argument for assignment");
             }
 
-            double operand1 = children.get(0).evaluate(context);
-            variables.put(variableName, operand1);
+            double operand1 = children.get(0).evaluate(session, frame);
+            session.assign(slot, operand1);
 
             return operand1;
         }
     }
 
-    public class FunctionCallNode extends Node {
+    /**
+     * Subexpression shared in a function body, see {@link FunctionOptimizer}. Its first occurrence
+     * evaluates the child and keeps the value at stack[frame + slot], past the arguments;
+     * the others (no child) read it.
+     */
+    public static class TemporaryNode extends Node {
+        private final int slot;
+
+        public TemporaryNode(int slot) {
+            super(NodeType.TEMPORARY);
+            this.slot = slot;
+        }
+
+        int getSlot() {
+            return slot;
+        }
+
+        @Override
+        public double evaluate(Interpreter session, int frame) {
+            if (children.isEmpty()) {
+                return session.stack[frame + slot];
+            }
+            double value = children.get(0).evaluate(session, frame);
+            session.stack[frame + slot] = value;
+            return value;
+        }
+    }
+
+    public static class FunctionCallNode extends Node {
         private final String name;
+        // Definition at parse time, see FunctionInfo.current(). Sessions calling a shared body may race
+        // to update it, any of them writes a declaration of the name, so that is harmless.
+        private FunctionInfo function;
 
-        public FunctionCallNode(String name) {
+        public FunctionCallNode(String name, FunctionInfo function) {
             super(NodeType.FUNCTION_CALL);
-            if (!functions.containsKey(name)) {
+            if (function == null) {
                 throw new IllegalArgumentException("Unknown function '" + name + "'");
             }
 
             this.name = name;
+            this.function = function;
         }
 
-        @Override
-        public Double evaluate(Map<String, Double> context) {
-            List<String> argNames = functions.get(name).argNames;
-            if (argNames.size() != children.size()) {
-                throw new IllegalArgumentException("Expected " + argNames.size()
-                                                   + " arguments for function '" + name + "'");
-            }
+        public String getName() {
+            return name;
+        }
 
-            Map<String, Double> functionContext = new HashMap<>();
-            int index = 0;
-            for (String argName : argNames) {
-                functionContext.put(argName, children.get(index++).evaluate(context));
-            }
+        FunctionInfo getFunction() {
+            return function;
+        }
 
-            return functions.get(name).root.evaluate(functionContext);
+        // Arguments are evaluated to a new frame on top of the stack, no allocation.
+        @Override
+        public double evaluate(Interpreter session, int frame) {
+            function = function.current();
+            FunctionInfo called = checkArity(function, name, children.size());
+            int calledFrame = session.enter(children.size());
+            for (int i = 0; i < children.size(); i++) {
+                double value = children.get(i).evaluate(session, frame);
+                session.stack[calledFrame + i] = value;
+            }
+            return session.invoke(called, calledFrame);
         }
     }
 
     public static class FunctionInfo {
         public final Node root;
         public final List<String> argNames;
+        // Arguments and temporaries of the body
+        final int frameSize;
+        final Postfix program;
+        // Bytecode of the body, once the function is hot (null before that or if it can't be compiled)
+        volatile CompiledFunction compiled;
+        // Calls by all sessions, racy: only a hint when to compile
+        int calls;
+        boolean compileAttempted;
+        // Later declaration of the same name, set by FunctionRegistry
+        volatile FunctionInfo replacement;
 
         public FunctionInfo(Node root, List<String> argNames) {
+            this(root, argNames, argNames.size());
+        }
+
+        FunctionInfo(Node root, List<String> argNames, int frameSize) {
             this.root = root;
             this.argNames = argNames;
+            this.frameSize = frameSize;
+            this.program = new Postfix(root);
+        }
+
+        // Calls bound to a function take its latest declaration, as a lookup by name would.
+        FunctionInfo current() {
+            FunctionInfo res = this;
+            while (res.replacement != null) {
+                res = res.replacement;
+            }
+            return res;
         }
     }
 
-    private Map<String, Double> variables = new HashMap<>();
-    private Map<String, FunctionInfo> functions = new HashMap<>();
+    /**
+     * Function body compiled to bytecode by {@link FunctionCompiler}, shared by the sessions. Assignments and
+     * calls of other functions go through the calling session, so they behave as in the interpreter:
+     * assignments set global variables of the session and calls take the current definition of the called function.
+     * Calls count toward the session's call depth and nest as Java calls only up to MAX_COMPILED_DEPTH.
+     */
+    public static abstract class CompiledFunction {
+        // Functions called by the body, as bound at parse time (updated racily, as in FunctionCallNode), and their names
+        FunctionInfo[] callees;
+        String[] calleeNames;
 
+        // Arguments are stack[frame, frame + argument count) of the session.
+        public abstract double call(Interpreter session, double[] stack, int frame);
+
+        protected final double assign(Interpreter session, int slot, double value) {
+            session.assign(slot, value);
+            return value;
+        }
+
+        protected final FunctionInfo resolve(int callee, int argCount) {
+            callees[callee] = callees[callee].current();
+            return checkArity(callees[callee], calleeNames[callee], argCount);
+        }
+
+        protected final int enter(Interpreter session, int size) {
+            return session.enter(size);
+        }
+
+        protected final void argument(Interpreter session, int frame, int index, double value) {
+            session.stack[frame + index] = value;
+        }
+
+        protected final double invoke(Interpreter session, FunctionInfo function, int frame) {
+            return session.invoke(function, frame);
+        }
+    }
+
+    // Parsed expressions kept per session by default, see setParsedCacheCapacity().
+    public static final int DEFAULT_PARSED_CACHE_CAPACITY = 256;
+
+    // Nested calls of functions allowed by default, see setMaxCallDepth().
+    public static final int DEFAULT_MAX_CALL_DEPTH = 100_000;
+
+    // Compiled functions run as Java methods calling each other; deeper calls are interpreted, so the Java stack
+    // doesn't grow with the nesting.
+    static final int MAX_COMPILED_DEPTH = 128;
+
+    // Declared functions and slots of global variable names, may be shared with other sessions
+    private final FunctionRegistry functions;
+    // Global variables of this session by slot; values are set by assignments
+    private double[] globals = new double[16];
+    private boolean[] defined = new boolean[16];
+    // Input line -> resolved expression as a program (LRU). Parsing depends on declared functions,
+    // so it is cleared by every declaration, see parsedVersion.
+    private long parsedVersion;
+    private int parsedCacheCapacity = DEFAULT_PARSED_CACHE_CAPACITY;
+    // Tokens of the input being parsed
+    private final TokenScanner tokens = new TokenScanner();
+    private final Map<String, Postfix> parsed = new LinkedHashMap<String, Postfix>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Postfix> eldest) {
+            return size() > parsedCacheCapacity;
+        }
+    };
+    // Argument frames of the functions being evaluated, [0, top) are in use
+    private double[] stack = new double[64];
+    private int top;
+    // Operand stack of execute(), functions resolved for the calls being evaluated and callers of the functions
+    // being executed: [0, ...Top) are used by the executions which called compiled functions.
+    private double[] operands = new double[64];
+    private int operandTop;
+    private FunctionInfo[] resolved = new FunctionInfo[16];
+    private int resolvedTop;
+    private Postfix[] callerPrograms = new Postfix[16];
+    private int[] callerPositions = new int[16];
+    private int[] callerFrames = new int[16];
+    private int callerTop;
+    // Calls being evaluated by this session, all tiers, and those of them run by compiled functions
+    private int depth;
+    private int compiledDepth;
+    private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+
+    /**
+     * Interpreter with its own functions.
+     */
+    public Interpreter() {
+        this(new FunctionRegistry());
+    }
+
+    /**
+     * Session of the interpreter: functions are declared to and called from the registry, which may be
+     * shared by sessions in other threads, variables are of the session. A session is used by one thread at a time.
+     */
+    public Interpreter(FunctionRegistry functions) {
+        this.functions = functions;
+    }
+
+    public FunctionRegistry getFunctions() {
+        return functions;
+    }
+
+    /**
+     * New session with the functions, the call depth limit and the parsed cache capacity of this one
+     * and no variables.
+     */
+    public Interpreter newSession() {
+        Interpreter res = new Interpreter(functions);
+        res.maxCallDepth = maxCallDepth;
+        res.parsedCacheCapacity = parsedCacheCapacity;
+        return res;
+    }
+
+    public int getParsedCacheCapacity() {
+        return parsedCacheCapacity;
+    }
+
+    /**
+     * Number of input lines whose parsed expressions the session keeps (least recently used are dropped),
+     * 0 disables the cache.
+     */
+    public void setParsedCacheCapacity(int parsedCacheCapacity) {
+        if (parsedCacheCapacity < 0) {
+            throw new IllegalArgumentException("Bad parsed cache capacity: " + parsedCacheCapacity);
+        }
+        this.parsedCacheCapacity = parsedCacheCapacity;
+        parsed.clear();
+    }
+
+    public int getMaxCallDepth() {
+        return maxCallDepth;
+    }
+
+    /**
+     * Limit of nested function calls, for the interpreter, the compiled functions and batches of rows alike:
+     * a deeper call (runaway recursion) fails with IllegalArgumentException instead of growing the stacks
+     * until the memory is exhausted.
+     */
+    public void setMaxCallDepth(int maxCallDepth) {
+        if (maxCallDepth < 1) {
+            throw new IllegalArgumentException("Bad maximum call depth: " + maxCallDepth);
+        }
+        this.maxCallDepth = maxCallDepth;
+    }
 
     public Double input(String input) {
-        Deque<Token> tokens = tokenize(input);
-        return program(tokens);
+        reset();
+        long version = functions.getVersion();
+        if (version != parsedVersion) {
+            parsed.clear();
+            parsedVersion = version;
+        }
+        Postfix program = input != null ? parsed.get(input) : null;
+        if (program != null) {
+            return execute(program, 0);
+        }
+        tokens.scan(input);
+        return program(input);
+    }
+
+    /**
+     * Calls a declared function with the given arguments, as the expression "name arg1 arg2 ..." would.
+     */
+    public double call(String name, double... args) {
+        FunctionInfo function = functions.get(name);
+        if (function == null) {
+            throw new IllegalArgumentException("Unknown function '" + name + "'");
+        }
+        checkArity(function, name, args.length);
+        reset();
+        int frame = enter(args.length);
+        System.arraycopy(args, 0, stack, frame, args.length);
+        return invoke(function, frame);
+    }
+
+    /**
+     * Calls a declared function for every row of the argument columns: res[row] = name columns[0][row] ...
+     * The body is evaluated a block of rows at a time (see {@link BatchEvaluator}), variables assigned
+     * by it are left as the calls of the rows in order would leave them.
+     */
+    public void callBatch(String name, double[][] columns, double[] res) {
+        new BatchEvaluator(this).evaluate(batchFunction(name, columns, res), columns, res, 0, res.length);
+    }
+
+    /**
+     * As {@link #callBatch(String, double[][], double[])}, the rows split between tasks of the pool.
+     */
+    public void callBatch(String name, double[][] columns, double[] res, ForkJoinPool pool) {
+        FunctionInfo function = batchFunction(name, columns, res);
+        pool.invoke(new BatchEvaluator.Task(this, function, columns, res, 0, res.length));
     }
 
-    private Double program(Deque<Token> tokens) {
+    private FunctionInfo batchFunction(String name, double[][] columns, double[] res) {
+        FunctionInfo function = functions.get(name);
+        if (function == null) {
+            throw new IllegalArgumentException("Unknown function '" + name + "'");
+        }
+        checkArity(function, name, columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].length != res.length) {
+                throw new IllegalArgumentException("Expected " + res.length + " rows in argument " + i
+                                                   + ", but actual is: " + columns[i].length);
+            }
+        }
+        return function;
+    }
+
+    static FunctionInfo checkArity(FunctionInfo function, String name, int argCount) {
+        if (function.argNames.size() != argCount) {
+            throw new IllegalArgumentException("Expected " + function.argNames.size()
+                                               + " arguments for function '" + name + "'");
+        }
+        return function;
+    }
+
+    // New frame of 'size' arguments on top of the stack.
+    private int enter(int size) {
+        int frame = top;
+        top += size;
+        if (top > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top));
+        }
+        return frame;
+    }
+
+    // Stacks of the evaluation are empty, those of a failed one are dropped.
+    private void reset() {
+        top = 0;
+        operandTop = 0;
+        resolvedTop = 0;
+        callerTop = 0;
+        depth = 0;
+        compiledDepth = 0;
+    }
+
+    // One more nested call, within the limit.
+    private void enterCall() {
+        if (++depth > maxCallDepth) {
+            throw new IllegalArgumentException("Maximum call depth exceeded");
+        }
+    }
+
+    /**
+     * Runs the function on arguments stack[frame, frame + n) and pops them: the compiled body once the function
+     * has been called the registry's compile threshold times, the program of the body before (its temporaries
+     * follow the arguments) or when MAX_COMPILED_DEPTH compiled functions are being run already.
+     */
+    private double invoke(FunctionInfo function, int frame) {
+        enterCall();
+        if (!function.compileAttempted && ++function.calls >= functions.getCompileThreshold()) {
+            compile(function);
+        }
+        CompiledFunction compiled = function.compiled;
+        double res;
+        if (compiled != null && compiledDepth < MAX_COMPILED_DEPTH) {
+            compiledDepth++;
+            res = compiled.call(this, stack, frame);
+            compiledDepth--;
+        } else {
+            enter(function.frameSize - function.argNames.size()); // temporaries
+            res = execute(function.program, frame);
+        }
+        top = frame;
+        depth--;
+        return res;
+    }
+
+    /**
+     * Value of the program with its frame at stack[frame]: a loop over the instructions with the operands
+     * on a double[] stack. A call of a function which is not compiled goes on with the program of its body
+     * in the same loop (the caller is kept on the callers stack), so the Java stack doesn't grow with nesting.
+     * Nesting is limited by the session's maximum call depth, see setMaxCallDepth().
+     * Compiled functions are called as Java methods, the stacks above their callers' are left to them;
+     * past MAX_COMPILED_DEPTH of them their callees are interpreted here too.
+     */
+    private double execute(Postfix program, int frame) {
+        int sp = operandTop;
+        int resolvedTop = this.resolvedTop;
+        int callerBase = callerTop;
+        int callerTop = callerBase;
+        double[] operands = operandStack(sp + program.maxDepth);
+        int[] code = program.code;
+        int pc = 0;
+        while (true) {
+            if (pc == code.length) {
+                if (callerTop == callerBase) {
+                    return operands[sp - 1];
+                }
+                top = frame; // the called function's arguments and temporaries
+                depth--;
+                callerTop--;
+                program = callerPrograms[callerTop];
+                pc = callerPositions[callerTop];
+                frame = callerFrames[callerTop];
+                code = program.code;
+                continue;
+            }
+            switch (code[pc++]) {
+                case Postfix.NUMBER:
+                    operands[sp++] = program.constants[code[pc++]];
+                    break;
+                case Postfix.LOCAL:
+                    operands[sp++] = stack[frame + code[pc++]];
+                    break;
+                case Postfix.GLOBAL:
+                    int slot = code[pc++];
+                    if (slot >= defined.length || !defined[slot]) {
+                        throw new IllegalArgumentException("Unknown identifier: '" + program.names[code[pc]] + "'");
+                    }
+                    pc++;
+                    operands[sp++] = globals[slot];
+                    break;
+                case Postfix.ADD:
+                    sp--;
+                    operands[sp - 1] += operands[sp];
+                    break;
+                case Postfix.SUBTRACT:
+                    sp--;
+                    operands[sp - 1] -= operands[sp];
+                    break;
+                case Postfix.MULTIPLY:
+                    sp--;
+                    operands[sp - 1] *= operands[sp];
+                    break;
+                case Postfix.DIVIDE:
+                    sp--;
+                    operands[sp - 1] /= operands[sp];
+                    break;
+                case Postfix.REMAINDER:
+                    sp--;
+                    operands[sp - 1] %= operands[sp];
+                    break;
+                case Postfix.ADD_NUMBER:
+                    operands[sp - 1] += program.constants[code[pc++]];
+                    break;
+                case Postfix.SUBTRACT_NUMBER:
+                    operands[sp - 1] -= program.constants[code[pc++]];
+                    break;
+                case Postfix.MULTIPLY_NUMBER:
+                    operands[sp - 1] *= program.constants[code[pc++]];
+                    break;
+                case Postfix.DIVIDE_NUMBER:
+                    operands[sp - 1] /= program.constants[code[pc++]];
+                    break;
+                case Postfix.REMAINDER_NUMBER:
+                    operands[sp - 1] %= program.constants[code[pc++]];
+                    break;
+                case Postfix.ADD_LOCAL:
+                    operands[sp - 1] += stack[frame + code[pc++]];
+                    break;
+                case Postfix.SUBTRACT_LOCAL:
+                    operands[sp - 1] -= stack[frame + code[pc++]];
+                    break;
+                case Postfix.MULTIPLY_LOCAL:
+                    operands[sp - 1] *= stack[frame + code[pc++]];
+                    break;
+                case Postfix.DIVIDE_LOCAL:
+                    operands[sp - 1] /= stack[frame + code[pc++]];
+                    break;
+                case Postfix.REMAINDER_LOCAL:
+                    operands[sp - 1] %= stack[frame + code[pc++]];
+                    break;
+                case Postfix.ASSIGN:
+                    assign(code[pc++], operands[sp - 1]);
+                    break;
+                case Postfix.STORE:
+                    stack[frame + code[pc++]] = operands[sp - 1];
+                    break;
+                case Postfix.RESOLVE:
+                    FunctionCallNode call = program.calls[code[pc++]];
+                    FunctionInfo current = call.function.current();
+                    if (current != call.function) {
+                        call.function = current;
+                    }
+                    if (resolvedTop == resolved.length) {
+                        resolved = Arrays.copyOf(resolved, resolvedTop * 2);
+                    }
+                    resolved[resolvedTop++] = checkArity(current, call.name, call.children.size());
+                    break;
+                case Postfix.CALL:
+                    FunctionInfo function = resolved[--resolvedTop];
+                    int argCount = function.argNames.size();
+                    int calledFrame = enter(argCount);
+                    sp -= argCount;
+                    for (int i = 0; i < argCount; i++) {
+                        stack[calledFrame + i] = operands[sp + i];
+                    }
+                    enterCall();
+                    if (!function.compileAttempted && ++function.calls >= functions.getCompileThreshold()) {
+                        compile(function);
+                    }
+                    CompiledFunction compiled = function.compiled;
+                    if (compiled != null && compiledDepth < MAX_COMPILED_DEPTH) {
+                        operandTop = sp;
+                        this.resolvedTop = resolvedTop;
+                        this.callerTop = callerTop;
+                        compiledDepth++;
+                        double value = compiled.call(this, stack, calledFrame);
+                        compiledDepth--;
+                        top = calledFrame;
+                        depth--;
+                        operands = this.operands; // might grow
+                        operands[sp++] = value;
+                        break;
+                    }
+                    enter(function.frameSize - argCount); // temporaries
+                    if (callerTop == callerPrograms.length) {
+                        callerPrograms = Arrays.copyOf(callerPrograms, callerTop * 2);
+                        callerPositions = Arrays.copyOf(callerPositions, callerTop * 2);
+                        callerFrames = Arrays.copyOf(callerFrames, callerTop * 2);
+                    }
+                    callerPrograms[callerTop] = program;
+                    callerPositions[callerTop] = pc;
+                    callerFrames[callerTop] = frame;
+                    callerTop++;
+                    program = function.program;
+                    code = program.code;
+                    pc = 0;
+                    frame = calledFrame;
+                    operands = operandStack(sp + program.maxDepth);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected instruction: " + code[pc - 1]);
+            }
+        }
+    }
+
+    private double[] operandStack(int size) {
+        if (size > operands.length) {
+            operands = Arrays.copyOf(operands, Math.max(operands.length * 2, size));
+        }
+        return operands;
+    }
+
+    // Once per function: sessions calling it meanwhile keep using the tree-walker.
+    private static void compile(FunctionInfo function) {
+        synchronized (function) {
+            if (!function.compileAttempted) {
+                function.compiled = FunctionCompiler.compile(function);
+                function.compileAttempted = true;
+            }
+        }
+    }
+
+    // Slots are shared by the sessions of the registry, the session's arrays grow as they are assigned.
+    void assign(int slot, double value) {
+        if (slot >= globals.length) {
+            int size = Math.max(globals.length * 2, slot + 1);
+            globals = Arrays.copyOf(globals, size);
+            defined = Arrays.copyOf(defined, size);
+        }
+        globals[slot] = value;
+        defined[slot] = true;
+    }
+
+    // Variables assigned in the other session of the same functions.
+    void assignAll(Interpreter session) {
+        for (int slot = 0; slot < session.defined.length; slot++) {
+            if (session.defined[slot]) {
+                assign(slot, session.globals[slot]);
+            }
+        }
+    }
+
+    private boolean isVariable(String name) {
+        Integer slot = functions.findGlobalSlot(name);
+        return slot != null && slot < defined.length && defined[slot];
+    }
+
+    /**
+     * Resolution pass: variables get their argument index (function bodies) or global slot
+     * (top-level expressions), assignments always set global variables.
+     */
+    private void resolve(Node root, List<String> argNames) {
+        traverse(root, (Node n) -> {
+            if (n instanceof VariableNode) {
+                VariableNode variable = (VariableNode) n;
+                variable.global = argNames == null;
+                variable.slot = variable.global ?
+                        functions.globalSlot(variable.name) :
+                        argNames.indexOf(variable.name);
+            } else if (n instanceof AssignmentNode) {
+                AssignmentNode assignment = (AssignmentNode) n;
+                assignment.slot = functions.globalSlot(assignment.variableName);
+            }
+        });
+    }
+
+    private Double program(String input) {
         if (tokens.isEmpty()) {
             return null;
         }
 
-        Token next = tokens.peek();
-        if (next.type == TokenType.FN_KEYWORD) {
-            return functionDeclaration(tokens);
+        if (tokens.peek() == TokenType.FN_KEYWORD) {
+            return functionDeclaration();
         } else {
-            Node root = expression(tokens, true);
+            Node root = expression();
             if (!tokens.isEmpty()) {
-                throw new IllegalArgumentException("Unexpected token: '" + tokens.peek() + "'");
+                throw new IllegalArgumentException("Unexpected token: '" + tokens.describe(tokens.poll()) + "'");
+            }
+            if (root == null) {
+                return null;
+            }
+            resolve(root, null);
+            Postfix program = new Postfix(root);
+            if (parsedCacheCapacity > 0) {
+                parsed.put(input, program);
             }
-            return root != null ?
-                    root.evaluate(variables) :
-                    null;
+            return execute(program, 0);
         }
     }
 
@@ -232,24 +818,26 @@ public class Interpreter {
      * fn-operator     ::= '=>'
      * fn-keyword      ::= 'fn'
      */
-    private Double functionDeclaration(Deque<Token> tokens) {
-        expect(TokenType.FN_KEYWORD, tokens);
-        Token nameToken = expect(TokenType.IDENTIFIER, tokens);
-        if (variables.containsKey(nameToken.value)) {
-            throw new IllegalArgumentException("Can't declare function: variable with name '" + nameToken + "' " +
-                                               "already exists.");
+    private Double functionDeclaration() {
+        expect(TokenType.FN_KEYWORD);
+        int nameToken = expect(TokenType.IDENTIFIER);
+        String name = tokens.text(nameToken);
+        if (isVariable(name)) {
+            throw new IllegalArgumentException("Can't declare function: variable with name '"
+                                               + tokens.describe(nameToken) + "' already exists.");
         }
 
         List<String> argNames = new ArrayList<>();
-        while (!tokens.isEmpty() && tokens.peek().type == TokenType.IDENTIFIER) {
-            if (argNames.contains(tokens.peek().value)) {
-                throw new IllegalArgumentException("Duplicated function arg name: '" + tokens.peek().value + "'");
+        while (tokens.peek() == TokenType.IDENTIFIER) {
+            String argName = tokens.text(tokens.poll());
+            if (argNames.contains(argName)) {
+                throw new IllegalArgumentException("Duplicated function arg name: '" + argName + "'");
             }
-            argNames.add(tokens.poll().value);
+            argNames.add(argName);
         }
-        expect(TokenType.FN_OPERATOR, tokens);
+        expect(TokenType.FN_OPERATOR);
 
-        Node root = expression(tokens, true);
+        Node root = expression();
 
         // Убедимся, что в функции не используются неизвестные переменные
         Set<String> allVariables = new HashSet<>();
@@ -265,15 +853,43 @@ public class Interpreter {
                                                    "declared in signature)");
             }
         }
-        functions.put(nameToken.value, new FunctionInfo(root, argNames));
+        resolve(root, argNames);
+        FunctionInfo function = functions.isOptimizeFunctions() ?
+                FunctionOptimizer.optimize(root, argNames) :
+                new FunctionInfo(root, argNames);
+        functions.declare(name, function);
 
         return null;
     }
 
-    private void traverse(Node n, Consumer<Node> consumer) {
-        consumer.accept(n);
-        for (Node child : n.children) {
-            traverse(child, consumer);
+    // Pre-order walk with an explicit stack, trees may be deeper than the Java stack allows.
+    private static void traverse(Node root, Consumer<Node> consumer) {
+        Deque<Node> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            Node n = nodes.pop();
+            consumer.accept(n);
+            for (int i = n.children.size() - 1; i >= 0; i--) {
+                nodes.push(n.children.get(i));
+            }
+        }
+    }
+
+    // Rules of the parser, see expression()
+    private enum Rule {EXPRESSION, FACTOR, ADD_OPERAND, MUL_OPERAND, CALL_ARGUMENT, ASSIGNED_VALUE, CLOSE_PAREN}
+
+    // Rule to start, or to continue with the node parsed last.
+    private static final class Step {
+        final Rule rule;
+        final boolean allowMultiple;
+        // Left operand (set with the operator), function call or assignment being parsed
+        Node node;
+        String operator;
+
+        Step(Rule rule, boolean allowMultiple, Node node) {
+            this.rule = rule;
+            this.allowMultiple = allowMultiple;
+            this.node = node;
         }
     }
 
@@ -282,149 +898,132 @@ public class Interpreter {
      * factor          ::= number | identifier | assignment | '(' expression ')' | function-call | factor {[*\] factor}+
      * assignment      ::= identifier '=' expression
      * function-call   ::= fn-name { expression }
+     * <p>
+     * Recursive descent with the pending rules on an explicit stack instead of the Java one, so nesting
+     * of parentheses and calls is not limited. 'value' is the node parsed last.
      */
-    private Node expression(Deque<Token> tokens, boolean allowMultipleAddOp) {
-        if (tokens.isEmpty()) {
-            throw new RuntimeException("Expected expression, but tokens list is empty");
-        }
-
-        Node first = factor(tokens, true);
-        if (tokens.isEmpty()) {
-            return first;
-        }
+    private Node expression() {
+        Deque<Step> steps = new ArrayDeque<>();
+        steps.push(new Step(Rule.EXPRESSION, true, null));
+        Node value = null;
+        while (!steps.isEmpty()) {
+            Step step = steps.pop();
+            switch (step.rule) {
+                case EXPRESSION:
+                    if (tokens.isEmpty()) {
+                        throw new RuntimeException("Expected expression, but tokens list is empty");
+                    }
+                    steps.push(new Step(Rule.ADD_OPERAND, step.allowMultiple, null));
+                    steps.push(new Step(Rule.FACTOR, true, null));
+                    break;
+
+                case ADD_OPERAND:
+                case MUL_OPERAND:
+                    // value is the first operand, or the right one of step.operator
+                    if (step.operator != null) {
+                        value = operation(step.operator, step.node, value);
+                    }
+                    TokenType operator = step.rule == Rule.ADD_OPERAND ? TokenType.ADD_OP : TokenType.MUL_OP;
+                    if (step.allowMultiple && tokens.peek() == operator) {
+                        step.operator = tokens.text(tokens.poll());
+                        step.node = value;
+                        steps.push(step);
+                        steps.push(step.rule == Rule.ADD_OPERAND ?
+                                new Step(Rule.EXPRESSION, false, null) :
+                                new Step(Rule.FACTOR, false, null));
+                    }
+                    break;
+
+                case FACTOR:
+                    if (tokens.isEmpty()) {
+                        throw new RuntimeException("Expected factor, but tokens list is empty");
+                    }
+                    steps.push(new Step(Rule.MUL_OPERAND, step.allowMultiple, null));
+                    if (tokens.peek() == TokenType.NUMBER) {
+                        value = new NumberNode(tokens.text(tokens.poll()));
+                    } else if (tokens.peek() == TokenType.IDENTIFIER) {
+                        String name = tokens.text(tokens.poll());
+                        FunctionInfo function = functions.get(name);
+                        if (function != null) {
+                            value = new FunctionCallNode(name, function);
+                            if (!function.argNames.isEmpty()) {
+                                steps.push(new Step(Rule.CALL_ARGUMENT, true, value));
+                                steps.push(new Step(Rule.EXPRESSION, true, null));
+                            }
+
+                        } else if (tokens.peek() == TokenType.ASSIGNMENT_OP) {
+                            Node node = new AssignmentNode(name);
+                            tokens.poll();
+                            steps.push(new Step(Rule.ASSIGNED_VALUE, true, node));
+                            steps.push(new Step(Rule.EXPRESSION, true, null));
+
+                        } else {
+                            value = new VariableNode(name);
+                        }
+                    } else {
+                        expect(TokenType.OPEN_PAREN);
+                        steps.push(new Step(Rule.CLOSE_PAREN, true, null));
+                        steps.push(new Step(Rule.EXPRESSION, true, null));
+                    }
+                    break;
+
+                case CALL_ARGUMENT:
+                    step.node.add(value);
+                    if (step.node.children.size() < ((FunctionCallNode) step.node).getFunction().argNames.size()) {
+                        steps.push(step);
+                        steps.push(new Step(Rule.EXPRESSION, true, null));
+                    } else {
+                        value = step.node;
+                    }
+                    break;
+
+                case ASSIGNED_VALUE:
+                    step.node.add(value);
+                    value = step.node;
+                    break;
+
+                case CLOSE_PAREN:
+                    expect(TokenType.CLOSE_PAREN);
+                    break;
 
-        while (allowMultipleAddOp && !tokens.isEmpty() && tokens.peek().type == TokenType.ADD_OP) {
-            Token addOperator = expect(TokenType.ADD_OP, tokens);
-            Node second = expression(tokens, false);
-
-            Node addOperation = new OperationNode(addOperator.value);
-            addOperation.add(first);
-            addOperation.add(second);
-            first = addOperation;
-        }
-
-        return first;
-    }
-
-    // factor ::= number | function-call  | assignment | identifier | '(' expression ')' | factor mul_op factor
-    private Node factor(Deque<Token> tokens, boolean allowMultipleMulOp) {
-        if (tokens.isEmpty()) {
-            throw new RuntimeException("Expected factor, but tokens list is empty");
-        }
-
-        Node first;
-        if (tokens.peek().type == TokenType.NUMBER) {
-            first = new NumberNode(tokens.poll().value);
-        } else if (tokens.peek().type == TokenType.IDENTIFIER) {
-            Token cur = tokens.poll();
-            if (functions.containsKey(cur.value)) {
-                first = functionCall(cur.value, tokens);
-
-            } else if (!tokens.isEmpty() && tokens.peek().type == TokenType.ASSIGNMENT_OP) {
-                Node node = new AssignmentNode(cur.value);
-                tokens.poll();
-                node.add(expression(tokens, true));
-                first = node;
-
-            } else {
-                first = new VariableNode(cur.value);
+                default:
+                    throw new IllegalStateException("Unexpected rule: " + step.rule);
             }
-        } else {
-            expect(TokenType.OPEN_PAREN, tokens);
-            first = expression(tokens, true);
-            expect(TokenType.CLOSE_PAREN, tokens);
-        }
-
-        while (allowMultipleMulOp && !tokens.isEmpty() && tokens.peek().type == TokenType.MUL_OP) {
-            Token operator = tokens.poll();
-            Node second = factor(tokens, false);
-
-            Node mulOperation = new OperationNode(operator.value);
-            mulOperation.add(first);
-            mulOperation.add(second);
-            first = mulOperation;
         }
-
-        return first;
+        return value;
     }
 
-    // function-call ::= fn-name { expression }
-    private Node functionCall(String name, Deque<Token> tokens) {
-        Node funcNode = new FunctionCallNode(name);
-
-        for (String argName : functions.get(name).argNames) {
-            funcNode.add(expression(tokens, true));
-        }
-
-        return funcNode;
+    private static Node operation(String operator, Node first, Node second) {
+        Node res = new OperationNode(operator);
+        res.add(first);
+        res.add(second);
+        return res;
     }
 
-    private Token expect(TokenType type, Deque<Token> tokens) {
+    // Index of the next token, which must be of the type.
+    private int expect(TokenType type) {
         if (tokens.isEmpty()) {
             throw new IllegalArgumentException("Expected token: " + type + ", but tokens list is empty");
         }
 
-        Token next = tokens.poll();
-        if (next.type != type) {
-            throw new IllegalArgumentException("Expected token: " + type + ", but actual is: " + next.type);
+        int next = tokens.poll();
+        if (tokens.type(next) != type) {
+            throw new IllegalArgumentException("Expected token: " + type + ", but actual is: " + tokens.type(next));
         }
         return next;
     }
 
 
+    /**
+     * Tokens of the input, see {@link TokenScanner}.
+     */
     protected static Deque<Token> tokenize(String input) {
-        Deque<Token> tokens = new LinkedList<>();
-        input = input != null ? input.trim() : null;
-        if (input == null || input.isEmpty()) {
-            return tokens;
-        }
-
-        Pattern pattern = Pattern.compile("=>|[-+*/%=\\(\\)]|[A-Za-z_][A-Za-z0-9_]*|[0-9]*(\\.?[0-9]+)");
-        Matcher m = pattern.matcher(input);
-        while (m.find()) {
-            String token = m.group();
-            tokens.add(new Token(token, getTokenType(token)));
+        TokenScanner scanner = new TokenScanner();
+        scanner.scan(input);
+        Deque<Token> tokens = new ArrayDeque<>();
+        for (int i = 0; i < scanner.size(); i++) {
+            tokens.add(new Token(scanner.text(i), scanner.type(i)));
         }
         return tokens;
     }
-
-    protected static TokenType getTokenType(String token) {
-        if (token.equals("fn")) {
-            return TokenType.FN_KEYWORD;
-        }
-        if (token.equals("=>")) {
-            return TokenType.FN_OPERATOR;
-        }
-        if (token.equals("=")) {
-            return TokenType.ASSIGNMENT_OP;
-        }
-        if (token.equals("(")) {
-            return TokenType.OPEN_PAREN;
-        }
-        if (token.equals(")")) {
-            return TokenType.CLOSE_PAREN;
-        }
-        if (Arrays.asList("+", "-").contains(token)) {
-            return TokenType.ADD_OP;
-        }
-        if (Arrays.asList("*", "/", "%").contains(token)) {
-            return TokenType.MUL_OP;
-        }
-        if (isDigit(token.charAt(0))) {
-            return TokenType.NUMBER;
-        }
-        if (isLetter(token.charAt(0))) {
-            return TokenType.IDENTIFIER;
-        }
-
-        throw new RuntimeException("Unrecognized token: '" + token + "'");
-    }
-
-    private static boolean isDigit(char ch) {
-        return ch >= '0' && ch <= '9';
-    }
-
-    private static boolean isLetter(char ch) {
-        return ch == '_' || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
-    }
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Calls of user-defined functions: the postfix programs of the bodies as written and simplified at declaration
+ * vs. the bodies compiled to bytecode vs. batches of rows evaluated a block at a time (one thread and a fork/join pool),
+ * input() of a few formulas repeated with changing variables, with and without the parsed-AST cache,
+ * and input() of formulas nested deeper than a recursive parser or evaluator could go.
+ * Usage: InterpreterBenchmark [calls count] [nesting depth] (default 5 000 000, 100 000).
+ *
+ * @author borunovv
+ */
+public class InterpreterBenchmark {
+
+    private static final int ITERATIONS = 3;
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        measure("interpreted, as written", calls, new FunctionRegistry(Integer.MAX_VALUE, false));
+        measure("interpreted", calls, new FunctionRegistry(Integer.MAX_VALUE));
+        measure("compiled", calls, new FunctionRegistry());
+        measureBatch("batch", calls, null);
+        measureBatch("batch, fork/join pool", calls, ForkJoinPool.commonPool());
+
+        measureInputs("input, parsed each time", calls / 10, 0);
+        measureInputs("input, parsed cache", calls / 10, Interpreter.DEFAULT_PARSED_CACHE_CAPACITY);
+
+        measureNesting("nested parentheses", depth, "(", "x", " * 3 - 1)");
+        measureNesting("nested calls", depth, "avg x (", "x", ")");
+    }
+
+    private static void measure(String name, int calls, FunctionRegistry registry) {
+        Interpreter interpreter = new Interpreter(registry);
+        for (String function : InterpreterFixtures.FUNCTIONS) {
+            interpreter.input(function);
+        }
+        double checksum = 0;
+        long best = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                checksum += interpreter.call("score", i, i % 100, 3);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-25s calls: %9d, best: %6d ms, %7.1f M calls/s, checksum: %.6e",
+                name, calls, best / 1_000_000, calls * 1000.0 / best, checksum));
+    }
+
+    private static void measureBatch(String name, int calls, ForkJoinPool pool) {
+        Interpreter interpreter = new Interpreter();
+        for (String function : InterpreterFixtures.FUNCTIONS) {
+            interpreter.input(function);
+        }
+        double[][] columns = new double[3][calls];
+        for (int i = 0; i < calls; i++) {
+            columns[0][i] = i;
+            columns[1][i] = i % 100;
+            columns[2][i] = 3;
+        }
+        double[] res = new double[calls];
+        double checksum = 0;
+        long best = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            if (pool != null) {
+                interpreter.callBatch("score", columns, res, pool);
+            } else {
+                interpreter.callBatch("score", columns, res);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            for (double value : res) {
+                checksum += value;
+            }
+        }
+        System.out.println(String.format("%-25s calls: %9d, best: %6d ms, %7.1f M calls/s, checksum: %.6e",
+                name, calls, best / 1_000_000, calls * 1000.0 / best, checksum));
+    }
+
+    private static void measureNesting(String name, int depth, String open, String inner, String close) {
+        Interpreter interpreter = new Interpreter();
+        for (String function : InterpreterFixtures.FUNCTIONS) {
+            interpreter.input(function);
+        }
+        interpreter.input("x = 1");
+        StringBuilder formula = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            formula.append(open);
+        }
+        formula.append(inner);
+        for (int i = 0; i < depth; i++) {
+            formula.append(close);
+        }
+        long start = System.nanoTime();
+        double res = interpreter.input(formula.toString());
+        System.out.println(String.format("%-25s depth: %9d, %6d ms, result: %.6e",
+                name, depth, (System.nanoTime() - start) / 1_000_000, res));
+    }
+
+    private static void measureInputs(String name, int lines, int parsedCacheCapacity) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setParsedCacheCapacity(parsedCacheCapacity);
+        for (String function : InterpreterFixtures.FUNCTIONS) {
+            interpreter.input(function);
+        }
+        double checksum = 0;
+        long best = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lines; i += InterpreterFixtures.FORMULAS.length + 3) {
+                interpreter.input("price = " + i % 1000);
+                interpreter.input("qty = " + i % 7);
+                interpreter.input("fee = 2.5");
+                for (String formula : InterpreterFixtures.FORMULAS) {
+                    checksum += interpreter.input(formula);
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-25s lines: %8d, best: %6d ms, %7.2f M lines/s, checksum: %.6e",
+                name, lines, best / 1_000_000, lines * 1000.0 / best, checksum));
+    }
+}
@@ -0,0 +1,27 @@
+package com.borunovv.codewars.interpreter;
+
+/**
+ * Inputs shared by the interpreter benchmarks: function declarations and formulas using them
+ * with the variables price, qty and fee.
+ *
+ * @author borunovv
+ */
+final class InterpreterFixtures {
+
+    static final String[] FUNCTIONS = {
+            "fn avg a b => (a + b) / 2",
+            "fn poly x y => x * x * 3 + y * 2 - x / (y + 1) % 7",
+            "fn norm x y => (x * x + y * y) * (x * x + y * y) / 4 + x * (2 + 3)",
+            "fn score a b c => poly a b + avg (b * c) (a - c) * 0.5 + norm a c",
+    };
+
+    static final String[] FORMULAS = {
+            "total = price * qty + fee",
+            "score price qty fee",
+            "(price - fee) / (qty + 1) % 7",
+            "avg total price",
+    };
+
+    private InterpreterFixtures() {
+    }
+}
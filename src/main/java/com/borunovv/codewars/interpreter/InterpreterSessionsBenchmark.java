@@ -0,0 +1,80 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many short sessions evaluated by a pool of threads, each with its own variables: every session declaring
+ * the functions again vs. sessions of one shared {@link FunctionRegistry}. Results of both must be the same.
+ * Usage: InterpreterSessionsBenchmark [sessions count] [threads] (default 100 000, 4).
+ *
+ * @author borunovv
+ */
+public class InterpreterSessionsBenchmark {
+
+    private static final int LINES_PER_SESSION = 50;
+
+    public static void main(String[] args) throws InterruptedException {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        double[] declared = measure("declared per session", sessions, threads, null);
+        FunctionRegistry registry = new FunctionRegistry();
+        Interpreter declaring = new Interpreter(registry);
+        for (String function : InterpreterFixtures.FUNCTIONS) {
+            declaring.input(function);
+        }
+        double[] shared = measure("shared functions", sessions, threads, registry);
+        for (int i = 0; i < sessions; i++) {
+            if (Double.doubleToLongBits(declared[i]) != Double.doubleToLongBits(shared[i])) {
+                throw new IllegalStateException("Different results of session " + i + ": "
+                                                + declared[i] + " and " + shared[i]);
+            }
+        }
+    }
+
+    // Result of each session (sum of its formulas); registry null means each session declares the functions itself.
+    private static double[] measure(String name, int sessions, int threads, FunctionRegistry registry)
+            throws InterruptedException {
+        double[] res = new double[sessions];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            int session = i;
+            executor.execute(() -> res[session] = run(session, registry));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        double checksum = 0;
+        for (double value : res) {
+            checksum += value;
+        }
+        System.out.println(String.format("%-22s sessions: %7d, threads: %2d, %6d ms, %9.0f sessions/s, checksum: %.6e",
+                name, sessions, threads, elapsed / 1_000_000, sessions * 1e9 / elapsed, checksum));
+        return res;
+    }
+
+    private static double run(int session, FunctionRegistry registry) {
+        Interpreter interpreter;
+        if (registry != null) {
+            interpreter = new Interpreter(registry);
+        } else {
+            interpreter = new Interpreter();
+            for (String function : InterpreterFixtures.FUNCTIONS) {
+                interpreter.input(function);
+            }
+        }
+        double res = 0;
+        interpreter.input("fee = " + session % 10);
+        for (int i = 0; i < LINES_PER_SESSION; i += InterpreterFixtures.FORMULAS.length + 2) {
+            interpreter.input("price = " + (session + i) % 1000);
+            interpreter.input("qty = " + i % 7);
+            for (String formula : InterpreterFixtures.FORMULAS) {
+                res += interpreter.input(formula);
+            }
+        }
+        return res;
+    }
+}
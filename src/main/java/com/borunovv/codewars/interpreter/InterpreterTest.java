@@ -0,0 +1,165 @@
+package com.borunovv.codewars.interpreter;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks of the interpreter beyond the kata examples: limits of nested calls, and results of the simplified
+ * and compiled function bodies the same as of the bodies as written.
+ * Fails with IllegalStateException at the first unexpected result.
+ *
+ * @author borunovv
+ */
+public class InterpreterTest {
+
+    public static void main(String[] args) {
+        runawayRecursion();
+        compiledCallChain();
+        optimizedDoubles();
+        batches();
+        scannerErrors();
+        System.out.println("OK");
+    }
+
+    // A self-recursive function fails with the call depth error in the interpreter and the batch evaluator,
+    // the session stays usable.
+    private static void runawayRecursion() {
+        Interpreter interpreter = new Interpreter(new FunctionRegistry(Integer.MAX_VALUE));
+        interpreter.input("fn f x => x");
+        interpreter.input("fn f x => f x");
+        expectDepthExceeded(() -> interpreter.input("f 1"));
+        expectDepthExceeded(() -> interpreter.call("f", 1));
+        expectDepthExceeded(() -> interpreter.callBatch("f", new double[][]{{1, 2, 3}}, new double[3]));
+
+        interpreter.setMaxCallDepth(10);
+        interpreter.input("fn g x => x + 1");
+        interpreter.input("fn h x => g (g x)");
+        check(interpreter.input("h 1") == 3, "h 1 after a failed call");
+        expectDepthExceeded(() -> interpreter.input("f 1"));
+    }
+
+    // Calls nested deeper than the Java stack allows give the same result before and after the functions
+    // are compiled, runaway recursion of compiled functions fails as interpreted.
+    private static void compiledCallChain() {
+        Interpreter interpreter = new Interpreter();
+        int length = 3000;
+        interpreter.input("fn f0 x => x + 1");
+        for (int i = 1; i < length; i++) {
+            interpreter.input("fn f" + i + " x => f" + (i - 1) + " x + 1");
+        }
+        for (int i = 0; i < 2 * FunctionRegistry.DEFAULT_COMPILE_THRESHOLD; i++) {
+            check(interpreter.input("f" + (length - 1) + " 0") == length, "call chain, call " + i);
+        }
+        check(interpreter.call("f" + (length - 1), 1) == length + 1, "call chain, call()");
+
+        interpreter.setMaxCallDepth(length);
+        interpreter.input("fn r x => x");
+        interpreter.input("fn r x => r x + 1");
+        for (int i = 0; i < 2 * FunctionRegistry.DEFAULT_COMPILE_THRESHOLD; i++) {
+            expectDepthExceeded(() -> interpreter.input("r 1"));
+        }
+    }
+
+    // Rewrites at declaration (x * 1, x / 1, x - 0, x / 2^k -> x * 2^-k) give the same doubles as the bodies
+    // as written, for signed zeros, NaN, infinities and subnormals, interpreted, compiled and in batches.
+    private static void optimizedDoubles() {
+        String[] bodies = {
+                "x * 1", "1 * x", "x / 1", "x - 0", "x + 0", "x * 0", "x / 2", "x / 0.5", "x / 1024", "x / 3",
+                "x / " + new BigDecimal(Double.MIN_NORMAL).toPlainString(),
+                "x / " + new BigDecimal(Math.scalb(1.0, Double.MAX_EXPONENT)).toPlainString(),
+                "x / " + new BigDecimal(Double.MIN_VALUE).toPlainString(),
+                "(x / 4) * 1 + (x / 4) * 1 - 0",
+        };
+        double[] values = {
+                0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE,
+                -Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, -Double.MAX_VALUE, 1.5, -3,
+        };
+        Interpreter asWritten = new Interpreter(new FunctionRegistry(Integer.MAX_VALUE, false));
+        Interpreter optimized = new Interpreter(new FunctionRegistry(Integer.MAX_VALUE, true));
+        Interpreter compiled = new Interpreter(new FunctionRegistry(1, true));
+        double[] batch = new double[values.length];
+        for (String body : bodies) {
+            for (Interpreter interpreter : new Interpreter[]{asWritten, optimized, compiled}) {
+                interpreter.input("fn f x => " + body);
+            }
+            optimized.callBatch("f", new double[][]{values}, batch);
+            for (int i = 0; i < values.length; i++) {
+                double expected = asWritten.call("f", values[i]);
+                String name = body + " of " + values[i];
+                checkSame(expected, optimized.call("f", values[i]), name + ", simplified");
+                checkSame(expected, compiled.call("f", values[i]), name + ", compiled");
+                checkSame(expected, batch[i], name + ", batch");
+            }
+        }
+    }
+
+    // callBatch() gives the results of call() row by row, on one thread and split between tasks of a pool,
+    // with a partial last block; a variable assigned by the body holds its value for the last row.
+    private static void batches() {
+        Interpreter interpreter = new Interpreter();
+        interpreter.input("fn avg a b => (a + b) / 2");
+        interpreter.input("fn poly x y => x * x * 3 + y * 2 - x / (y + 1) % 7 + avg x y");
+        interpreter.input("fn keep x y => (last = x - y) * 2");
+        int rows = 2 * BatchEvaluator.PARALLEL_ROWS + 37;
+        double[][] columns = new double[2][rows];
+        for (int row = 0; row < rows; row++) {
+            columns[0][row] = row * 0.75 - 1000;
+            columns[1][row] = row % 13;
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (String name : new String[]{"poly", "keep"}) {
+                double[] single = new double[rows];
+                double[] parallel = new double[rows];
+                double last = "keep".equals(name) ? columns[0][rows - 1] - columns[1][rows - 1] : 0;
+                interpreter.input("last = 0");
+                interpreter.callBatch(name, columns, single);
+                check(interpreter.input("last") == last, name + ": variable after a batch");
+                interpreter.input("last = 0");
+                interpreter.callBatch(name, columns, parallel, pool);
+                check(interpreter.input("last") == last, name + ": variable after a parallel batch");
+                for (int row = 0; row < rows; row++) {
+                    double expected = interpreter.call(name, columns[0][row], columns[1][row]);
+                    checkSame(expected, single[row], name + ", batch row " + row);
+                    checkSame(expected, parallel[row], name + ", parallel batch row " + row);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void checkSame(double expected, double actual, String name) {
+        check(Double.doubleToLongBits(expected) == Double.doubleToLongBits(actual),
+                name + ": " + actual + ", expected " + expected);
+    }
+
+    // Characters out of the grammar fail with their position; a number needs a digit after its dot.
+    private static void scannerErrors() {
+        Interpreter interpreter = new Interpreter();
+        expectError(() -> interpreter.input("1 # 2"), "Unexpected character '#' at position 2");
+        expectError(() -> interpreter.input("1."), "Unexpected character '.' at position 1");
+        expectError(() -> interpreter.input("x = 2 . 5"), "Unexpected character '.' at position 6");
+        check(interpreter.input("1.5 + 0.25") == 1.75, "fraction");
+    }
+
+    private static void expectDepthExceeded(Runnable evaluation) {
+        expectError(evaluation, "Maximum call depth exceeded");
+    }
+
+    private static void expectError(Runnable evaluation, String message) {
+        try {
+            evaluation.run();
+        } catch (IllegalArgumentException e) {
+            check(message.equals(e.getMessage()), "unexpected error: " + e.getMessage() + ", expected: " + message);
+            return;
+        }
+        throw new IllegalStateException("Expected error: " + message);
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -1,19 +1,41 @@
 package com.borunovv.codewars.interpreter;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Simple Interactive Interpreter
  * Challenge URL: https://www.codewars.com/kata/52ffcfa4aff455b3c2000750
+ * Usage: Main [script file | -]. With a file or "-" (stdin) runs the script by {@link ScriptRunner}.
+ * Without arguments reads statements one by one from the console, or from stdin without a prompt
+ * when there is no console, printing each result as soon as it's ready.
  *
  * @author borunovv
  */
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            // Script file or "-" for stdin
+            ScriptRunner.main(args);
+            return;
+        }
+        // No console: stdin is a pipe (e.g. from another program), which waits for each result
+        BufferedReader in = System.console() == null
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : null;
         Interpreter interpreter = new Interpreter();
         while (true) {
-            System.out.print("> ");
-            String line = System.console().readLine();
-            if (line.equals("exit"))
+            String line;
+            if (in == null) {
+                System.out.print("> ");
+                line = System.console().readLine();
+            } else {
+                line = in.readLine();
+            }
+            if (line == null || line.equals("exit"))
                 break;
 
             try {
@@ -0,0 +1,210 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Resolved expression tree lowered to a flat array of postfix instructions, evaluated by a loop over a double[]
+ * operand stack ({@link Interpreter}, {@link BatchEvaluator}) instead of recursive calls of Node.evaluate().
+ * Instructions are an opcode and its operands in one int[]:
+ * <pre>
+ * NUMBER k           push constants[k]
+ * LOCAL slot         push stack[frame + slot]: argument or temporary of the function
+ * GLOBAL slot name   push global variable, names[name] for the error if it's not defined
+ * ADD .. REMAINDER   pop right, pop left, push left op right
+ * ADD_NUMBER k ..    left op constants[k], the right operand is a number (one instruction less to dispatch)
+ * ADD_LOCAL slot ..  left op stack[frame + slot]
+ * ASSIGN slot        global variable = top of the operand stack (not popped)
+ * STORE slot         stack[frame + slot] = top of the operand stack (not popped)
+ * RESOLVE call       take the current definition of calls[call] and check its arity, before the arguments
+ * CALL               pop the arguments of the function resolved last, push its value
+ * </pre>
+ *
+ * @author borunovv
+ */
+final class Postfix {
+
+    static final int NUMBER = 0;
+    static final int LOCAL = 1;
+    static final int GLOBAL = 2;
+    static final int ADD = 3;
+    static final int SUBTRACT = 4;
+    static final int MULTIPLY = 5;
+    static final int DIVIDE = 6;
+    static final int REMAINDER = 7;
+    static final int ASSIGN = 8;
+    static final int STORE = 9;
+    static final int RESOLVE = 10;
+    static final int CALL = 11;
+    // ADD_NUMBER - ADD == REMAINDER_NUMBER - REMAINDER == NUMBER_OPERAND, the same for locals
+    static final int ADD_NUMBER = 12;
+    static final int SUBTRACT_NUMBER = 13;
+    static final int MULTIPLY_NUMBER = 14;
+    static final int DIVIDE_NUMBER = 15;
+    static final int REMAINDER_NUMBER = 16;
+    static final int ADD_LOCAL = 17;
+    static final int SUBTRACT_LOCAL = 18;
+    static final int MULTIPLY_LOCAL = 19;
+    static final int DIVIDE_LOCAL = 20;
+    static final int REMAINDER_LOCAL = 21;
+    static final int NUMBER_OPERAND = ADD_NUMBER - ADD;
+    static final int LOCAL_OPERAND = ADD_LOCAL - ADD;
+
+    final int[] code;
+    final double[] constants;
+    final String[] names;
+    final Interpreter.FunctionCallNode[] calls;
+    // Operand stack slots used by the program itself (not by the functions it calls)
+    final int maxDepth;
+
+    private int size;
+    private int depth;
+
+    /**
+     * Lowers the tree in evaluation order: operands, then the operation. The walk uses an explicit stack.
+     */
+    Postfix(Interpreter.Node root) {
+        int[] code = new int[16];
+        double[] constants = new double[4];
+        int constantCount = 0;
+        List<String> names = new ArrayList<>();
+        List<Interpreter.FunctionCallNode> calls = new ArrayList<>();
+        int maxDepth = 0;
+
+        Deque<Interpreter.Node> nodes = new ArrayDeque<>();
+        // Nodes whose children are lowered, so the node itself is next
+        Deque<Interpreter.Node> exits = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            Interpreter.Node node = nodes.pop();
+            if (node == exits.peek()) {
+                exits.pop();
+                switch (node.type) {
+                    case MATH_OPERATION:
+                        int opcode = opcode(((Interpreter.OperationNode) node).getOperation());
+                        // A number or local right operand was pushed last: the operation takes it instead
+                        int operand = size - 2;
+                        if (isLeaf(node.children.get(1)) && code[operand] == NUMBER) {
+                            code[operand] = opcode + NUMBER_OPERAND;
+                        } else if (isLeaf(node.children.get(1)) && code[operand] == LOCAL) {
+                            code[operand] = opcode + LOCAL_OPERAND;
+                        } else {
+                            code = emit(code, opcode);
+                        }
+                        depth--;
+                        break;
+                    case ASSIGNMENT:
+                        code = emit(code, ASSIGN, ((Interpreter.AssignmentNode) node).getSlot());
+                        break;
+                    case TEMPORARY:
+                        code = emit(code, STORE, ((Interpreter.TemporaryNode) node).getSlot());
+                        break;
+                    case FUNCTION_CALL:
+                        code = emit(code, CALL);
+                        depth -= node.children.size() - 1;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected node: " + node.type);
+                }
+                continue;
+            }
+            switch (node.type) {
+                case NUMBER:
+                    code = emit(code, NUMBER, constantCount);
+                    if (constantCount == constants.length) {
+                        constants = Arrays.copyOf(constants, constantCount * 2);
+                    }
+                    constants[constantCount++] = ((Interpreter.NumberNode) node).getValue();
+                    depth++;
+                    break;
+                case IDENTIFIER:
+                    Interpreter.VariableNode variable = (Interpreter.VariableNode) node;
+                    if (variable.isGlobal()) {
+                        code = emit(code, GLOBAL, variable.getSlot());
+                        code = emit(code, names.size());
+                        names.add(variable.getName());
+                    } else {
+                        code = emit(code, LOCAL, variable.getSlot());
+                    }
+                    depth++;
+                    break;
+                case TEMPORARY:
+                    if (node.children.isEmpty()) {
+                        code = emit(code, LOCAL, ((Interpreter.TemporaryNode) node).getSlot());
+                        depth++;
+                        break;
+                    }
+                    exit(node, nodes, exits);
+                    break;
+                case FUNCTION_CALL:
+                    code = emit(code, RESOLVE, calls.size());
+                    calls.add((Interpreter.FunctionCallNode) node);
+                    if (node.children.isEmpty()) {
+                        code = emit(code, CALL);
+                        depth++;
+                        break;
+                    }
+                    exit(node, nodes, exits);
+                    break;
+                default:
+                    exit(node, nodes, exits);
+                    break;
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        this.code = Arrays.copyOf(code, size);
+        this.constants = Arrays.copyOf(constants, constantCount);
+        this.names = names.toArray(new String[0]);
+        this.calls = calls.toArray(new Interpreter.FunctionCallNode[0]);
+        this.maxDepth = maxDepth;
+    }
+
+    // Number, argument or temporary read: pushed by one NUMBER or LOCAL instruction.
+    private static boolean isLeaf(Interpreter.Node node) {
+        return node.type == Interpreter.NodeType.NUMBER
+               || node.type == Interpreter.NodeType.IDENTIFIER && !((Interpreter.VariableNode) node).isGlobal()
+               || node.type == Interpreter.NodeType.TEMPORARY && node.children.isEmpty();
+    }
+
+    // The node comes back after its children.
+    private static void exit(Interpreter.Node node, Deque<Interpreter.Node> nodes, Deque<Interpreter.Node> exits) {
+        nodes.push(node);
+        exits.push(node);
+        for (int i = node.children.size() - 1; i >= 0; i--) {
+            nodes.push(node.children.get(i));
+        }
+    }
+
+    private int[] emit(int[] code, int value) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = value;
+        return code;
+    }
+
+    private int[] emit(int[] code, int opcode, int operand) {
+        return emit(emit(code, opcode), operand);
+    }
+
+    static int opcode(String operation) {
+        switch (operation) {
+            case "+":
+                return ADD;
+            case "-":
+                return SUBTRACT;
+            case "*":
+                return MULTIPLY;
+            case "/":
+                return DIVIDE;
+            case "%":
+                return REMAINDER;
+            default:
+                throw new IllegalArgumentException("Unrecognized operator: '" + operation + "'");
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.borunovv.codewars.interpreter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * Non-interactive mode of the {@link Main} interpreter: executes a script of statements, one per line,
+ * from a file or stdin, and writes the results the same way (value or "ERROR: message" per statement,
+ * nothing for statements without a value). The script is read through a channel in large blocks and
+ * the results are written through a buffered writer, so millions of lines don't cost a system call each.
+ * "exit" stops the script. Statements count, throughput and latency percentiles go to stderr.
+ * Usage: ScriptRunner [script file] (stdin if absent or "-").
+ *
+ * @author borunovv
+ */
+public class ScriptRunner {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        ReadableByteChannel channel = args.length > 0 && !args[0].equals("-")
+                ? FileChannel.open(Paths.get(args[0]))
+                : Channels.newChannel(System.in);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        Statistics statistics;
+        try (LineReader reader = new LineReader(channel)) {
+            statistics = run(new Interpreter(), reader, out);
+        } finally {
+            out.flush();
+        }
+        System.err.println(statistics);
+    }
+
+    /**
+     * Executes the statements of 'reader' until its end or "exit", writing the results to 'out'
+     * (not flushed, the caller does).
+     */
+    public static Statistics run(Interpreter interpreter, LineReader reader, Writer out) throws IOException {
+        Statistics statistics = new Statistics();
+        long start = System.nanoTime();
+        String line;
+        while ((line = reader.readLine()) != null && !line.equals("exit")) {
+            long statementStart = System.nanoTime();
+            String res;
+            try {
+                Double value = interpreter.input(line);
+                res = value != null ? value.toString() : null;
+            } catch (Exception e) {
+                res = "ERROR: " + e.getMessage();
+                statistics.errors++;
+            }
+            statistics.latencies.record(System.nanoTime() - statementStart);
+            if (res != null) {
+                out.write(res);
+                out.write('\n');
+            }
+        }
+        statistics.elapsedNanos = System.nanoTime() - start;
+        return statistics;
+    }
+
+    /**
+     * Lines of UTF-8 text read from a channel a block at a time ("\n" or "\r\n" separated).
+     */
+    public static final class LineReader implements Closeable {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        // Decoded, not yet returned part of the block
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final StringBuilder line = new StringBuilder();
+        private boolean endOfInput;
+
+        public LineReader(ReadableByteChannel channel) {
+            this.channel = channel;
+            chars.flip();
+        }
+
+        /**
+         * Next line without the separator, null at the end of the input.
+         */
+        public String readLine() throws IOException {
+            while (true) {
+                while (chars.hasRemaining()) {
+                    char c = chars.get();
+                    if (c == '\n') {
+                        return takeLine();
+                    }
+                    line.append(c);
+                }
+                if (endOfInput) {
+                    return line.length() > 0 ? takeLine() : null;
+                }
+                fill();
+            }
+        }
+
+        private void fill() throws IOException {
+            chars.clear();
+            if (channel.read(bytes) < 0) {
+                endOfInput = true;
+                bytes.flip();
+                decoder.decode(bytes, chars, true);
+                decoder.flush(chars);
+            } else {
+                bytes.flip();
+                // An incomplete character at the end of the block stays in 'bytes' for the next read
+                decoder.decode(bytes, chars, false);
+            }
+            bytes.compact();
+            chars.flip();
+        }
+
+        private String takeLine() {
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                length--;
+            }
+            String res = line.substring(0, length);
+            line.setLength(0);
+            return res;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Statements executed by a run: count, errors, wall time and the latency of each statement.
+     */
+    public static final class Statistics {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long errors;
+        private long elapsedNanos;
+
+        public long getStatements() {
+            return latencies.getCount();
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getStatementsPerSecond() {
+            return elapsedNanos > 0 ? getStatements() * 1e9 / elapsedNanos : 0;
+        }
+
+        // Latency (ns) not exceeded by the given fraction of statements, e.g. 0.99.
+        public long getLatencyPercentile(double fraction) {
+            return latencies.percentile(fraction);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("statements: %d, errors: %d, %d ms, %.0f statements/s%n"
+                                 + "latency, us: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                    getStatements(), errors, elapsedNanos / 1_000_000, getStatementsPerSecond(),
+                    latencies.percentile(0.5) / 1e3, latencies.percentile(0.9) / 1e3,
+                    latencies.percentile(0.99) / 1e3, latencies.percentile(0.999) / 1e3,
+                    latencies.getMax() / 1e3);
+        }
+    }
+
+    /**
+     * Counts of latencies in log-linear buckets: 32 buckets per power of two, so a percentile is within ~3%
+     * of the exact value whatever the count of statements, in a fixed 15 KB.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+
+        // Values below 2^(SUB_BITS + 1) are exact, then each power of two has 2^SUB_BITS buckets
+        private final long[] counts = new long[(65 - SUB_BITS) << SUB_BITS];
+        private long count;
+        private long max;
+
+        void record(long nanos) {
+            counts[index(nanos)]++;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        long percentile(double fraction) {
+            long target = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    // Highest value of the bucket
+                    return Math.min(lowest(i + 1) - 1, max);
+                }
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+            return (shift << SUB_BITS) + (int) (value >>> shift);
+        }
+
+        // Lowest value falling into the bucket.
+        private static long lowest(int index) {
+            int shift = Math.max(0, (index >> SUB_BITS) - 1);
+            return (long) (index - (shift << SUB_BITS)) << shift;
+        }
+    }
+}
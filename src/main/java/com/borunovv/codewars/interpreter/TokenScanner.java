@@ -0,0 +1,167 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * Single pass scanner of an {@link Interpreter} input: each character is classified by a table lookup,
+ * tokens are kept as their types and [start, end) offsets into the input, so scanning allocates nothing
+ * (the parser takes the text of names and numbers only). Characters up to ' ' separate tokens,
+ * any other character out of the grammar is an error with its position.
+ * The parser reads the tokens in order: peek, poll, isEmpty, as from a queue.
+ *
+ * @author borunovv
+ */
+final class TokenScanner {
+
+    // Character classes
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 3;
+    private static final byte DOT = 4;
+    private static final byte EQUALS = 5;
+    // The character is a token by itself, its type is in SINGLE_TYPES
+    private static final byte SINGLE = 6;
+
+    private static final byte[] CLASSES = new byte[128];
+    private static final Interpreter.TokenType[] SINGLE_TYPES = new Interpreter.TokenType[128];
+
+    static {
+        Arrays.fill(CLASSES, 0, ' ' + 1, SPACE);
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = LETTER;
+            CLASSES[Character.toUpperCase(c)] = LETTER;
+        }
+        CLASSES['_'] = LETTER;
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = DIGIT;
+        }
+        CLASSES['.'] = DOT;
+        CLASSES['='] = EQUALS;
+        single('+', Interpreter.TokenType.ADD_OP);
+        single('-', Interpreter.TokenType.ADD_OP);
+        single('*', Interpreter.TokenType.MUL_OP);
+        single('/', Interpreter.TokenType.MUL_OP);
+        single('%', Interpreter.TokenType.MUL_OP);
+        single('(', Interpreter.TokenType.OPEN_PAREN);
+        single(')', Interpreter.TokenType.CLOSE_PAREN);
+    }
+
+    private static void single(char c, Interpreter.TokenType type) {
+        CLASSES[c] = SINGLE;
+        SINGLE_TYPES[c] = type;
+    }
+
+    private String input;
+    private Interpreter.TokenType[] types = new Interpreter.TokenType[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int count;
+    // Next token to read
+    private int position;
+
+    /**
+     * Scans the input (null is empty), replacing the tokens scanned before.
+     */
+    void scan(String input) {
+        this.input = input;
+        count = 0;
+        position = 0;
+        int length = input != null ? input.length() : 0;
+        int i = 0;
+        while (i < length) {
+            char c = input.charAt(i);
+            int start = i++;
+            switch (c < 128 ? CLASSES[c] : OTHER) {
+                case SPACE:
+                    continue;
+                case SINGLE:
+                    add(SINGLE_TYPES[c], start, i);
+                    break;
+                case EQUALS:
+                    if (i < length && input.charAt(i) == '>') {
+                        add(Interpreter.TokenType.FN_OPERATOR, start, ++i);
+                    } else {
+                        add(Interpreter.TokenType.ASSIGNMENT_OP, start, i);
+                    }
+                    break;
+                case LETTER:
+                    while (i < length && (is(input.charAt(i), LETTER) || is(input.charAt(i), DIGIT))) {
+                        i++;
+                    }
+                    add(i - start == 2 && input.startsWith("fn", start) ?
+                            Interpreter.TokenType.FN_KEYWORD :
+                            Interpreter.TokenType.IDENTIFIER, start, i);
+                    break;
+                case DIGIT:
+                    i = digits(input, i, length);
+                    // The fraction needs a digit after the dot, "1." is the number 1 and an unexpected '.'
+                    if (i + 1 < length && input.charAt(i) == '.' && is(input.charAt(i + 1), DIGIT)) {
+                        i = digits(input, i + 1, length);
+                    }
+                    add(Interpreter.TokenType.NUMBER, start, i);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected character '" + c + "' at position " + start);
+            }
+        }
+    }
+
+    private static boolean is(char c, byte characterClass) {
+        return c < 128 && CLASSES[c] == characterClass;
+    }
+
+    private static int digits(String input, int i, int length) {
+        while (i < length && is(input.charAt(i), DIGIT)) {
+            i++;
+        }
+        return i;
+    }
+
+    private void add(Interpreter.TokenType type, int start, int end) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        types[count] = type;
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    boolean isEmpty() {
+        return position == count;
+    }
+
+    // Type of the next token, null if there are no more.
+    Interpreter.TokenType peek() {
+        return position < count ? types[position] : null;
+    }
+
+    // Index of the next token, which is read then.
+    int poll() {
+        return position++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    Interpreter.TokenType type(int token) {
+        return types[token];
+    }
+
+    String text(int token) {
+        return input.substring(starts[token], ends[token]);
+    }
+
+    int start(int token) {
+        return starts[token];
+    }
+
+    // The token as Interpreter.Token.toString() shows it.
+    String describe(int token) {
+        return '\'' + text(token) + "' (" + types[token] + ')';
+    }
+}
@@ -0,0 +1,98 @@
+package com.borunovv.codewars.interpreter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tokenizing of Interpreter inputs: the former regex tokenizer (pattern compiled on every call and once)
+ * vs. the {@link TokenScanner}. Types of the regex matches are taken by scanning each match alone.
+ * The tokens of all must be the same.
+ * Usage: TokenizerBenchmark [lines count] (default 1 000 000).
+ *
+ * @author borunovv
+ */
+public class TokenizerBenchmark {
+
+    private static final String[] lines = lines(
+            "x = 12.75",
+            "discounted_total_2 = (total_price - discount_amount * 0.15) / (quantity_of_items + 1)");
+
+    private static final String REGEX = "=>|[-+*/%=\\(\\)]|[A-Za-z_][A-Za-z0-9_]*|[0-9]*(\\.?[0-9]+)";
+    private static final Pattern PATTERN = Pattern.compile(REGEX);
+
+    private static final int ITERATIONS = 5;
+
+    private interface Tokenizer {
+        // Count of tokens, their types are added to 'types'
+        int tokenize(String input, Deque<Interpreter.TokenType> types);
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        for (String line : lines) {
+            Deque<Interpreter.TokenType> expected = new ArrayDeque<>();
+            Deque<Interpreter.TokenType> actual = new ArrayDeque<>();
+            regex(line, expected, Pattern.compile(REGEX));
+            scanner(line, actual, new TokenScanner());
+            if (!Arrays.equals(expected.toArray(), actual.toArray())) {
+                throw new IllegalStateException("Different tokens of '" + line + "': " + expected + " and " + actual);
+            }
+        }
+
+        measure("regex, compiled per call", count, (input, types) -> regex(input, types, Pattern.compile(REGEX)));
+        measure("regex, compiled once", count, (input, types) -> regex(input, types, PATTERN));
+        TokenScanner scanner = new TokenScanner();
+        measure("scanner", count, (input, types) -> scanner(input, types, scanner));
+    }
+
+    private static void measure(String name, int count, Tokenizer tokenizer) {
+        Deque<Interpreter.TokenType> types = new ArrayDeque<>();
+        long best = Long.MAX_VALUE;
+        long tokens = 0;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            tokens = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                types.clear();
+                tokens += tokenizer.tokenize(lines[i % lines.length], types);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-25s lines: %8d, best: %6d ms, %6.2f M lines/s, %6.1f M tokens/s",
+                name, count, best / 1_000_000, count * 1e3 / best, tokens * 1e3 / best));
+    }
+
+    // Functions and formulas of the other benchmarks, then the given lines.
+    private static String[] lines(String... more) {
+        List<String> res = new ArrayList<>(Arrays.asList(InterpreterFixtures.FUNCTIONS));
+        res.addAll(Arrays.asList(InterpreterFixtures.FORMULAS));
+        res.addAll(Arrays.asList(more));
+        return res.toArray(new String[0]);
+    }
+
+    private static int regex(String input, Deque<Interpreter.TokenType> types, Pattern pattern) {
+        input = input.trim();
+        Matcher m = pattern.matcher(input);
+        TokenScanner token = new TokenScanner();
+        int res = 0;
+        while (m.find()) {
+            token.scan(m.group());
+            types.add(token.type(0));
+            res++;
+        }
+        return res;
+    }
+
+    private static int scanner(String input, Deque<Interpreter.TokenType> types, TokenScanner scanner) {
+        scanner.scan(input);
+        while (!scanner.isEmpty()) {
+            types.add(scanner.type(scanner.poll()));
+        }
+        return scanner.size();
+    }
+}
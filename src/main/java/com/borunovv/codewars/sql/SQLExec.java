@@ -1,9 +1,52 @@
 package z_codewars.sql;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 /**
  * Task: http://www.codewars.com/kata/simple-sql-engine/
@@ -11,594 +54,6704 @@ import java.util.Map;
  */
 public class SQLExec {
 
+    private static final PlanCache planCache = new PlanCache(256);
+
+    private static final ResultCache resultCache = new ResultCache(0);
+
+    private static final String TABLE_FILE_SUFFIX = ".table";
+
+    private static final List<QueryListener> listeners = new CopyOnWriteArrayList<>();
+
     public static DataSet exec(Map<String, DataSet> db, String sql) {
-        Query query = new Query(new Tokenizer(sql.toLowerCase()));
-        query.parse();
-        return query.execute(db);
+        return exec(db, sql, 1);
     }
 
-    private enum TokenType {SELECT, FROM, JOIN, ON, WHERE, COMMA, COMPARISON, LITERAL, QUOTED_LITERAL, EOF}
+    /**
+     * Executes the query on up to 'parallelism' threads: scans, filters and hash join builds are split
+     * between them. The result, including row order, is the same as of the single threaded execution
+     * (except rounding of SUM and AVG of doubles, which are summed by parts).
+     */
+    public static DataSet exec(Map<String, DataSet> db, String sql, int parallelism) {
+        return prepare(sql).executeParallel(db, parallelism);
+    }
 
-    private static class Token {
-        final TokenType type;
-        final String value;
+    /**
+     * Lazily executed query, see {@link PreparedStatement#stream(Map, Object...)}.
+     */
+    public static Cursor stream(Map<String, DataSet> db, String sql) {
+        return prepare(sql).stream(db);
+    }
 
-        Token(String value) {
-            this.type = determineType(value);
-            this.value = value;
+    /**
+     * Compiles the query (or takes it from the plan cache). Comparison operands may be '?' placeholders,
+     * numbered from left to right and bound on {@link PreparedStatement#execute(Map, Object...)}.
+     */
+    public static PreparedStatement prepare(String sql) {
+        String normalized = normalize(sql);
+        PreparedStatement statement = planCache.get(normalized);
+        if (statement == null) {
+            Tokenizer tokenizer = new Tokenizer(normalized);
+            Query query = new Query(tokenizer);
+            query.parse();
+            statement = new PreparedStatement(normalized, query, tokenizer.parameterCount);
+            planCache.put(normalized, statement);
         }
+        return statement;
+    }
 
-        Token(TokenType type) {
-            this.type = type;
-            this.value = null;
-        }
-
-        private TokenType determineType(String value) {
-            String lower = value.toLowerCase();
-            switch (lower) {
-                case "select":
-                    return TokenType.SELECT;
-                case "from":
-                    return TokenType.FROM;
-                case "join":
-                    return TokenType.JOIN;
-                case "on":
-                    return TokenType.ON;
-                case "where":
-                    return TokenType.WHERE;
-                case ",":
-                    return TokenType.COMMA;
-                case "<":
-                case "<=":
-                case ">":
-                case ">=":
-                case "=":
-                case "<>":
-                    return TokenType.COMPARISON;
-                default:
-                    return value.startsWith("'") ?
-                            TokenType.QUOTED_LITERAL :
-                            TokenType.LITERAL;
-            }
-        }
+    /**
+     * Operator tree of the query with the join algorithms, without running it.
+     * The same is returned as rows of column 'plan' by exec(db, "EXPLAIN SELECT ...").
+     */
+    public static QueryProfile explain(Map<String, DataSet> db, String sql) {
+        return prepare(sql).explain(db);
+    }
 
-        @Override
-        public String toString() {
-            return "{" + type + (value != null ? ": " + value : "") + "}";
-        }
+    /**
+     * Runs the query and returns its operator tree with rows in and out, time and allocated bytes
+     * of every operator, see also "EXPLAIN ANALYZE SELECT ...".
+     */
+    public static QueryProfile explainAnalyze(Map<String, DataSet> db, String sql) {
+        return prepare(sql).explainAnalyze(db);
     }
 
-    private static class Tokenizer {
-        private String data;
-        private int pos;
+    // While any listener is registered, all queries are profiled as by EXPLAIN ANALYZE.
+    public static void addQueryListener(QueryListener listener) {
+        listeners.add(listener);
+    }
 
-        Tokenizer(String data) {
-            this.data = data;
-        }
+    public static void removeQueryListener(QueryListener listener) {
+        listeners.remove(listener);
+    }
 
-        Token next() {
-            skipSpaces();
-            int start = pos;
-            skipNoneSpaces();
-            if (pos > start) {
-                String value = data.substring(start, pos);
-                return new Token(value);
-            } else {
-                return new Token(TokenType.EOF);
-            }
+    public static PlanCache getPlanCache() {
+        return planCache;
+    }
+
+    // Disabled until given a capacity.
+    public static ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public static void createIndex(Map<String, DataSet> db, String table, String column) {
+        createIndex(db, table, column, IndexType.SORTED);
+    }
+
+    public static void createIndex(Map<String, DataSet> db, String table, String column, IndexType type) {
+        DataSet ds = db.get(table);
+        if (ds == null) {
+            throw new RuntimeException("Table not found: " + table);
         }
+        ds.createIndex(column, type);
+    }
 
-        Token peek() {
-            int curPos = pos;
-            Token t = next();
-            pos = curPos;
-            return t;
+    /**
+     * Writes the table in the binary columnar format of {@link #mapTable(Path)}.
+     */
+    public static void saveTable(DataSet table, Path file) throws IOException {
+        TableFile.write(table.snapshot(), file);
+    }
+
+    /**
+     * Read-only table backed by the file written by {@link #saveTable(DataSet, Path)}: values are
+     * memory-mapped, queries read them straight from the OS page cache. Indexes can be created as usual.
+     */
+    public static DataSet mapTable(Path file) throws IOException {
+        return TableFile.map(file);
+    }
+
+    // Saves every table to 'directory/<name>.table'.
+    public static void saveDatabase(Map<String, DataSet> db, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (Map.Entry<String, DataSet> entry : db.entrySet()) {
+            saveTable(entry.getValue(), directory.resolve(entry.getKey() + TABLE_FILE_SUFFIX));
         }
+    }
 
-        private void skipSpaces() {
-            while (!isEOF() && isSpace(data.charAt(pos))) {
-                pos++;
+    // Maps all '*.table' files of the directory, named by the file name without the suffix.
+    public static Map<String, DataSet> mapDatabase(Path directory) throws IOException {
+        Map<String, DataSet> db = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + TABLE_FILE_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                db.put(name.substring(0, name.length() - TABLE_FILE_SUFFIX.length()), mapTable(file));
             }
         }
+        return db;
+    }
 
-        private void skipNoneSpaces() {
-            if (isEOF()) return;
-            boolean quoted = data.charAt(pos) == '\'';
-            if (!quoted) {
-                while (!isEOF() && !isSpace(data.charAt(pos))) {
-                    pos++;
-                }
-            } else {
-                while (!isEOF()) {
-                    pos++;
-                    char ch = data.charAt(pos);
-                    if (ch == '\'') {
-                        pos++;
-                        if (pos < data.length() && data.charAt(pos) == '\'') {
-                        } else {
-                            pos++;
-                            return;
-                        }
-                    }
-                }
-                throw new RuntimeException("Expected closing quote");
+    // Lower case with whitespace runs collapsed to a single space, quoted literals are kept as is.
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char ch = sql.charAt(i);
+            if (ch == '\'') {
+                quoted = !quoted;
+            }
+            if (!quoted && Character.isWhitespace(ch)) {
+                space = true;
+                continue;
             }
+            if (space && sb.length() > 0) {
+                sb.append(' ');
+            }
+            space = false;
+            sb.append(quoted ? ch : Character.toLowerCase(ch));
         }
+        return sb.toString();
+    }
 
+    /**
+     * Parsed query. Immutable and safe to execute from many threads at once.
+     */
+    public static final class PreparedStatement {
+        private final String sql;
+        private final Query query;
+        private final int parameterCount;
 
-        private boolean isEOF() {
-            return pos >= data.length();
+        private PreparedStatement(String sql, Query query, int parameterCount) {
+            this.sql = sql;
+            this.query = query;
+            this.parameterCount = parameterCount;
         }
 
-        private boolean isSpace(char ch) {
-            return " \n\r\t,".contains("" + ch);
+        public String getSql() {
+            return sql;
         }
-    }
-
-    public static class DataSet {
-        private List<Map<String, Object>> rows = new ArrayList<>();
 
-        public void addRow(Map<String, Object> row) {
-            rows.add(row);
+        public int getParameterCount() {
+            return parameterCount;
         }
 
-        public List<Map<String, Object>> getRows() {
-            return rows;
+        public DataSet execute(Map<String, DataSet> db, Object... params) {
+            return executeParallel(db, 1, params);
         }
 
-        public DSRow addRow() {
-            Map<String, Object> row = new LinkedHashMap<>();
-            addRow(row);
-            return new DSRow(row);
+        // See SQLExec.exec(Map, String, int). EXPLAIN [ANALYZE] queries return the plan, a line per row.
+        public DataSet executeParallel(Map<String, DataSet> db, int parallelism, Object... params) {
+            return executeWith(Options.DEFAULT, db, parallelism, params);
         }
 
-        @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder();
-            if (rows.isEmpty()) {
-                sb.append("[empty]");
-            } else {
-                for (Map.Entry<String, Object> entry : rows.get(0).entrySet()) {
-                    sb.append(entry.getKey()).append("\t");
-                }
-                sb.append("\n");
-
-                for (Map<String, Object> row : rows) {
-                    for (Map.Entry<String, Object> entry : row.entrySet()) {
-                        sb.append(entry.getValue()).append("\t");
-                    }
-                    sb.append("\n");
-                }
+        // Execution with other than the default algorithm settings, for benchmarks.
+        DataSet executeWith(Options options, Map<String, DataSet> db, int parallelism, Object... params) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
             }
-
-            return sb.toString();
+            if (query.explain) {
+                return profile(db, parallelism, query.analyze, params).toDataSet();
+            }
+            QueryProfile profile = listeners.isEmpty() ? null : new QueryProfile(sql, true);
+            Context context = new Context(db, bind(params), parallelism, options, profile);
+            if (!resultCache.isEnabled()) {
+                return execute(context);
+            }
+            List<String> tables = query.from.tables();
+            long[] versions = new long[tables.size()];
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = context.table(tables.get(i)).version;
+            }
+            List<Object> key = new ArrayList<>(Arrays.asList(context.params));
+            key.add(sql);
+            DataSet cached = resultCache.get(key, versions);
+            if (cached != null) {
+                return cached.copyOnWrite();
+            }
+            DataSet res = execute(context);
+            resultCache.put(key, versions, res.snapshot());
+            return res;
         }
-    }
-
-    public static class DSRow {
-        private Map<String, Object> row;
 
-        DSRow(Map<String, Object> row) {
-            this.row = row;
+        private DataSet execute(Context context) {
+            DataSet res = query.execute(context);
+            if (context.profile != null) {
+                finish(context.profile);
+            }
+            return res;
         }
 
-        public DSRow with(String key, long value) {
-            row.put(key, value);
-            return this;
+        // Plan of the query: operators and join algorithms. Nothing is read, no hash tables are built.
+        public QueryProfile explain(Map<String, DataSet> db, Object... params) {
+            return profile(db, 1, false, params);
         }
 
-        public DSRow with(String key, double value) {
-            row.put(key, value);
-            return this;
+        // Executes the query, collecting row counts, time and allocated bytes of every operator.
+        public QueryProfile explainAnalyze(Map<String, DataSet> db, Object... params) {
+            return profile(db, 1, true, params);
         }
 
-        public DSRow with(String key, String value) {
-            row.put(key, value);
-            return this;
+        private QueryProfile profile(Map<String, DataSet> db, int parallelism, boolean analyze, Object[] params) {
+            QueryProfile profile = new QueryProfile(sql, analyze);
+            Context context = new Context(db, bind(params), parallelism, Options.DEFAULT, profile);
+            if (analyze) {
+                query.execute(context);
+                finish(profile);
+            } else {
+                query.plan(context);
+                profile.finish();
+            }
+            return profile;
         }
-    }
-
-    private static abstract class SQLItem {
-        Tokenizer tokenizer;
 
-        private SQLItem(Tokenizer tokenizer) {
-            this.tokenizer = tokenizer;
+        private static void finish(QueryProfile profile) {
+            profile.finish();
+            for (QueryListener listener : listeners) {
+                listener.queryExecuted(profile);
+            }
         }
 
-        public abstract void parse();
-
-        Token nextToken() {
-            return tokenizer.next();
+        /**
+         * Result rows are produced while the cursor is read, in the order of {@link #execute}.
+         * Tables are joined in written order (with single table conditions still applied before joins),
+         * so apart from hash tables of joined tables memory use doesn't depend on the result size.
+         * ORDER BY reads all the rows before returning the first one, keeping up to
+         * {@link Options#DEFAULT_SORT_RUN_SIZE} of them in memory (or LIMIT n of them) and the rest in temp files.
+         */
+        public Cursor stream(Map<String, DataSet> db, Object... params) {
+            return streamWith(Options.DEFAULT, db, params);
         }
 
-        Token peekToken() {
-            return tokenizer.peek();
+        // Streaming with other than the default algorithm settings, for benchmarks.
+        Cursor streamWith(Options options, Map<String, DataSet> db, Object... params) {
+            if (query.explain) {
+                DataSet res = executeParallel(db, 1, params);
+                return new Cursor(Pipeline.scan(1, 0, res.size(), null).open(0, res.size()), Projection.of(res));
+            }
+            QueryProfile profile = listeners.isEmpty() ? null : new QueryProfile(sql, true);
+            Cursor cursor = query.stream(new Context(db, bind(params), 1, options, profile));
+            if (profile != null) {
+                cursor.onEnd = () -> finish(profile);
+            }
+            return cursor;
         }
 
-        protected Token expected(TokenType type) {
-            Token t = tokenizer.next();
-            if (t.type != type) {
-                throw new RuntimeException("Expected token: " + type + ", actual: " + t);
+        private Object[] bind(Object[] params) {
+            if (params.length != parameterCount) {
+                throw new IllegalArgumentException("Expected " + parameterCount + " parameters, actual: "
+                        + params.length);
             }
-            return t;
+            Object[] values = new Object[params.length];
+            for (int i = 0; i < params.length; i++) {
+                values[i] = toParameterValue(params[i], i);
+            }
+            return values;
         }
 
-        DataSet makeFullColumnNames(String table, DataSet ds) {
-            DataSet res = new DataSet();
-            for (Map<String, Object> row : ds.getRows()) {
-                Map<String, Object> newRow = new LinkedHashMap<>();
-                for (Map.Entry<String, Object> entry : row.entrySet()) {
-                    newRow.put(table.toLowerCase() + "." + entry.getKey().toLowerCase(), entry.getValue());
-                }
-                res.addRow(newRow);
+        private static Object toParameterValue(Object value, int index) {
+            if (value instanceof Long || value instanceof Double || value instanceof String) {
+                return value;
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return ((Number) value).longValue();
+            } else if (value instanceof Float) {
+                return ((Number) value).doubleValue();
             }
+            throw new IllegalArgumentException("Unsupported value of parameter #" + (index + 1) + ": " + value);
+        }
 
-            return res;
+        @Override
+        public String toString() {
+            return sql;
         }
     }
 
-    private static class Comparison extends SQLItem {
-        private String leftOperand;
-        private String rightOperand;
-        private String operation;
+    /**
+     * Forward-only query result. The cursor is a reusable view of the current row: values are read
+     * straight from the tables, nothing is allocated per row (except boxing in {@link #get(int)}).
+     * A cursor not read to the end should be closed: ORDER BY may keep sorted runs in temp files.
+     * Not thread-safe.
+     */
+    public static final class Cursor implements AutoCloseable {
+        private final BatchOperator input;
+        private final Projection projection;
+        private RowBatch batch;
+        private int position;
+        private boolean done;
+        // Called once when the end is reached, may be null
+        private Runnable onEnd;
 
-        public Comparison(Tokenizer tokenizer) {
-            super(tokenizer);
+        private Cursor(BatchOperator input, Projection projection) {
+            this.input = input;
+            this.projection = projection;
         }
 
-        public Comparison(String leftOperand, String rightOperand, String operation) {
-            super(null);
-            this.leftOperand = leftOperand;
-            this.rightOperand = rightOperand;
-            this.operation = operation;
+        // Moves to the next row; false at the end.
+        public boolean next() {
+            if (batch != null && ++position < batch.size) {
+                return true;
+            }
+            batch = done ? null : input.next();
+            position = 0;
+            if (batch == null) {
+                if (!done && onEnd != null) {
+                    onEnd.run();
+                }
+                done = true;
+                return false;
+            }
+            projection.check(batch);
+            return true;
         }
 
+        // Deletes temp files of the query; next() returns false afterwards.
         @Override
-        public void parse() {
-            leftOperand = parseOperand();
-            operation = expected(TokenType.COMPARISON).value;
-            rightOperand = parseOperand();
+        public void close() {
+            done = true;
+            batch = null;
+            input.close();
         }
 
-        private String parseOperand() {
-            Token t = nextToken();
-            if (t.type == TokenType.LITERAL || t.type == TokenType.QUOTED_LITERAL) {
-                return t.value;
-            } else {
-                throw new RuntimeException("Comparison: expected literal or quoted literal. Found: " + t);
-            }
+        public int getColumnCount() {
+            return projection.names.length;
         }
 
-        boolean check(Map<String, Object> row) {
-            Object leftOperandValue = getOperandValue(leftOperand, row);
-            Object rightOperandValue = getOperandValue(rightOperand, row);
-            return performOperation(leftOperandValue, rightOperandValue, operation);
+        public String getColumnName(int column) {
+            return projection.names[column];
         }
 
-        private boolean performOperation(Object left, Object right, String operation) {
-            left = toCommonType(left, right);
-            right = toCommonType(right, left);
-            switch (operation) {
-                case "<=":
-                    return doLessEqual(left, right);
-                case "<":
-                    return doLess(left, right);
-                case ">=":
-                    return doGreaterEqual(left, right);
-                case ">":
-                    return doGreater(left, right);
-                case "=":
-                    return doEquals(left, right);
-                case "<>":
-                    return doNotEquals(left, right);
-                default:
-                    throw new IllegalArgumentException("Unimplemented operation: " + operation);
+        // Index of the selected column, -1 if not selected.
+        public int findColumn(String name) {
+            for (int i = 0; i < projection.names.length; i++) {
+                if (projection.names[i].equalsIgnoreCase(name)) {
+                    return i;
+                }
             }
+            return -1;
         }
 
-        private Object toCommonType(Object obj, Object other) {
-            if (obj.getClass().equals(other.getClass())) {
-                return obj;
-            }
-            if (obj instanceof Long) {
-                if (other instanceof Long) return obj;
-                if (other instanceof Double) return (double) (Long) obj;
-            } else if (obj instanceof Double) {
-                if (other instanceof Double) return obj;
-                if (other instanceof Long) return obj;
-            } else if (obj instanceof String) {
-                if (other instanceof String) return obj;
-            }
-
-            throw new RuntimeException("Comparison: incompatible operand types: "
-                    + obj.getClass().getSimpleName() + " and " + other.getClass().getSimpleName());
+        // Only aggregation results (e.g. SUM of no values) may have absent values.
+        public boolean isNull(int column) {
+            return values(column).isNull(row(column));
         }
 
-        private boolean doLessEqual(Object left, Object right) {
-            if (left instanceof Long) {
-                return (long) left <= (long) right;
-            } else if (left instanceof Double) {
-                return (double) left <= (double) right;
-            } else if (left instanceof String) {
-                return ((String) left).compareToIgnoreCase((String) right) <= 0;
-            }
-            throw new RuntimeException("Unsupported type: " + left.getClass().getSimpleName());
+        // Long, Double or String value, null if absent.
+        public Object get(int column) {
+            return values(column).get(row(column));
         }
 
-        private boolean doLess(Object left, Object right) {
-            if (left instanceof Long) {
-                return (long) left < (long) right;
-            } else if (left instanceof Double) {
-                return (double) left < (double) right;
-            } else if (left instanceof String) {
-                return ((String) left).compareToIgnoreCase((String) right) < 0;
+        public long getLong(int column) {
+            Column values = values(column);
+            if (values.type() == ColumnType.LONG) {
+                return ((LongColumn) values).getLong(row(column));
+            } else if (values.type() == ColumnType.DOUBLE) {
+                DoubleColumn doubles = (DoubleColumn) values;
+                int row = row(column);
+                return doubles.isLong(row) ? doubles.getLong(row) : (long) doubles.getDouble(row);
             }
-            throw new RuntimeException("Unsupported type: " + left.getClass().getSimpleName());
+            throw new IllegalStateException("Column '" + projection.names[column] + "' holds strings");
         }
 
-        private boolean doGreaterEqual(Object left, Object right) {
-            if (left instanceof Long) {
-                return (long) left >= (long) right;
-            } else if (left instanceof Double) {
-                return (double) left >= (double) right;
-            } else if (left instanceof String) {
-                return ((String) left).compareToIgnoreCase((String) right) >= 0;
+        public double getDouble(int column) {
+            Column values = values(column);
+            if (values.type() == ColumnType.LONG) {
+                return ((LongColumn) values).getLong(row(column));
+            } else if (values.type() == ColumnType.DOUBLE) {
+                return ((DoubleColumn) values).getDouble(row(column));
             }
-            throw new RuntimeException("Unsupported type: " + left.getClass().getSimpleName());
+            throw new IllegalStateException("Column '" + projection.names[column] + "' holds strings");
         }
 
-        private boolean doGreater(Object left, Object right) {
-            if (left instanceof Long) {
-                return (long) left > (long) right;
-            } else if (left instanceof Double) {
-                return (double) left > (double) right;
-            } else if (left instanceof String) {
-                return ((String) left).compareToIgnoreCase((String) right) > 0;
-            }
-            throw new RuntimeException("Unsupported type: " + left.getClass().getSimpleName());
+        public String getString(int column) {
+            Column values = values(column);
+            return values.type() == ColumnType.STRING ?
+                    ((StringColumn) values).getString(row(column)) :
+                    String.valueOf(values.get(row(column)));
         }
 
-        private boolean doEquals(Object left, Object right) {
-            if (left instanceof Long) {
-                return (long) left == (long) right;
-            } else if (left instanceof Double) {
-                return (double) left == (double) right;
-            } else if (left instanceof String) {
-                return ((String) left).compareToIgnoreCase((String) right) == 0;
+        private Column values(int column) {
+            if (batch == null) {
+                throw new IllegalStateException("No current row");
             }
-            throw new RuntimeException("Unsupported type: " + left.getClass().getSimpleName());
+            return projection.columns[column];
         }
 
-        private boolean doNotEquals(Object left, Object right) {
-            return !doEquals(left, right);
+        private int row(int column) {
+            return batch.rows[projection.slots[column]][position];
         }
 
-        private Object getOperandValue(String operand, Map<String, Object> row) {
-            Object operandValue = isColumn(operand) ?
-                    row.get(operand) :
-                    isNumber(operand) ?
-                            toNumber(operand) :
-                            unQuote(operand);
-            if (operandValue == null) {
-                throw new RuntimeException("Not found column " + operand + " in result set");
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Cursor{");
+            for (int i = 0; batch != null && i < getColumnCount(); i++) {
+                sb.append(i > 0 ? ", " : "").append(getColumnName(i)).append("=").append(get(i));
             }
-            return operandValue;
+            return sb.append("}").toString();
         }
+    }
 
-        private String unQuote(String s) {
-            if (s.startsWith("'") && s.endsWith("'")) {
-                String res = s.substring(1, s.length() - 1);
-                res = res.replaceAll("''", "'");
-                return res;
-            } else {
-                throw new RuntimeException("Expected quoted literal: " + s);
-            }
-        }
+    /**
+     * LRU cache of prepared statements keyed by normalized SQL text.
+     */
+    public static final class PlanCache {
+        private final LinkedHashMap<String, PreparedStatement> plans;
+        private int capacity;
+        private long hits;
+        private long misses;
 
-        private boolean isColumn(String s) {
-            boolean hasQuotes = s.contains("'") || s.contains("\"");
-            boolean containsDot = s.indexOf('.') > 0 && s.indexOf('.') < s.length();
-            boolean number = isNumber(s);
-            return !hasQuotes && !number && containsDot;
+        private PlanCache(int capacity) {
+            this.capacity = capacity;
+            this.plans = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    return size() > PlanCache.this.capacity;
+                }
+            };
         }
 
-        private boolean isNumber(String s) {
-            try {
-                double d = Double.parseDouble(s);
-                return true;
-            } catch (Exception ignore) {
-                return false;
+        private synchronized PreparedStatement get(String sql) {
+            PreparedStatement statement = plans.get(sql);
+            if (statement != null) {
+                hits++;
+            } else {
+                misses++;
             }
+            return statement;
         }
 
-        private Number toNumber(String s) {
-            double d = Double.parseDouble(s);
-            long l = (long) d;
-            if (d != (double) l) return d;
-            return l;
+        private synchronized void put(String sql, PreparedStatement statement) {
+            if (capacity > 0) {
+                plans.put(sql, statement);
+            }
         }
-    }
 
+        public synchronized long getHits() {
+            return hits;
+        }
 
-    private static class Where extends SQLItem {
-        private Comparison comparison = null;
+        public synchronized long getMisses() {
+            return misses;
+        }
 
-        private Where(Tokenizer tokenizer) {
-            super(tokenizer);
+        public synchronized int size() {
+            return plans.size();
         }
 
-        @Override
-        public void parse() {
-            expected(TokenType.WHERE);
-            comparison = new Comparison(tokenizer);
-            comparison.parse();
+        public synchronized int getCapacity() {
+            return capacity;
         }
 
-        private DataSet execute(DataSet ds) {
-            if (comparison == null) {
-                throw new RuntimeException("Where: didn't parsed properly");
-            } else {
-                DataSet res = new DataSet();
-                for (Map<String, Object> row : ds.getRows()) {
-                    if (comparison.check(row)) {
-                        res.addRow(row);
-                    }
-                }
-                return res;
+        // Zero disables caching.
+        public synchronized void setCapacity(int capacity) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("Negative capacity: " + capacity);
+            }
+            this.capacity = capacity;
+            while (plans.size() > capacity) {
+                plans.remove(plans.keySet().iterator().next());
             }
         }
-    }
-
-    private static class Join extends SQLItem {
-        private Comparison comparison;
-        private String table;
 
-        private Join(Tokenizer tokenizer) {
-            super(tokenizer);
+        public synchronized void clear() {
+            plans.clear();
+            hits = 0;
+            misses = 0;
         }
 
         @Override
-        public void parse() {
-            expected(TokenType.JOIN);
-            table = expected(TokenType.LITERAL).value;
-            expected(TokenType.ON);
-            comparison = new Comparison(tokenizer);
-            comparison.parse();
+        public synchronized String toString() {
+            return "PlanCache{size=" + plans.size() + ", hits=" + hits + ", misses=" + misses + "}";
         }
+    }
 
-        private DataSet execute(DataSet left, Map<String, DataSet> db) {
-            DataSet right = db.get(table);
-            if (right == null) {
-                throw new RuntimeException("Table not found: " + table);
-            }
-            right = makeFullColumnNames(table, right);
+    /**
+     * LRU cache of query results keyed by normalized SQL text and parameters, bounded by the estimated
+     * size of the results. An entry is valid for the versions of the queried tables it was computed on:
+     * every write to a table gives its next snapshot a new version, so the first lookup after a change
+     * drops the entry (counted as an invalidation) and runs the query again.
+     * Cached results are read-only snapshots; every caller gets its own copy-on-write view of one, writable as
+     * an uncached result is. Hits are not executed, so query listeners don't see them. Used by exec() and
+     * PreparedStatement.execute(), not by streamed queries.
+     */
+    public static final class ResultCache {
+        // Per entry: key, version array and map node
+        private static final int ENTRY_BYTES = 128;
 
-            // Decart's product
-            DataSet res = new DataSet();
-            for (Map<String, Object> leftRow : left.getRows()) {
-                for (Map<String, Object> rightRow : right.getRows()) {
-                    Map<String, Object> merged = new LinkedHashMap<>(leftRow);
-                    merged.putAll(rightRow);
-                    if (comparison.check(merged)) {
-                        res.addRow(merged);
-                    }
-                }
+        private final LinkedHashMap<List<Object>, Entry> results = new LinkedHashMap<>(16, 0.75f, true);
+        private long capacityBytes;
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long invalidations;
+        private long evictions;
+
+        private static final class Entry {
+            final long[] versions;
+            final DataSet result;
+            final long bytes;
+
+            Entry(long[] versions, DataSet result, long bytes) {
+                this.versions = versions;
+                this.result = result;
+                this.bytes = bytes;
             }
-            return res;
         }
-    }
 
-    private static class From extends SQLItem {
-        private List<Join> joins = new ArrayList<>();
-        private String table;
+        private ResultCache(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+        }
 
-        private From(Tokenizer tokenizer) {
-            super(tokenizer);
+        private synchronized boolean isEnabled() {
+            return capacityBytes > 0;
         }
 
-        private DataSet execute(Map<String, DataSet> db) {
-            DataSet res = db.get(table);
-            if (res == null) {
-                throw new RuntimeException("Table not found: " + table);
+        private synchronized DataSet get(List<Object> key, long[] versions) {
+            Entry entry = results.get(key);
+            if (entry != null && !Arrays.equals(entry.versions, versions)) {
+                remove(key);
+                invalidations++;
+                entry = null;
             }
-            res = makeFullColumnNames(table, res);
-            for (Join join : joins) {
-                res = join.execute(res, db);
+            if (entry == null) {
+                misses++;
+                return null;
             }
-
-            return res;
+            hits++;
+            return entry.result;
         }
 
-        @Override
-        public void parse() {
-            expected(TokenType.FROM);
-            table = expected(TokenType.LITERAL).value;
-            while (peekToken().type == TokenType.JOIN) {
-                Join join = new Join(tokenizer);
-                join.parse();
-                joins.add(join);
+        private synchronized void put(List<Object> key, long[] versions, DataSet result) {
+            long size = ENTRY_BYTES + estimateBytes(result);
+            if (size > capacityBytes) {
+                return;
             }
+            remove(key);
+            results.put(key, new Entry(versions, result, size));
+            bytes += size;
+            evict();
         }
-    }
 
-    private static class Select extends SQLItem {
-        private List<String> columns = new ArrayList<>();
+        private void remove(List<Object> key) {
+            Entry entry = results.remove(key);
+            if (entry != null) {
+                bytes -= entry.bytes;
+            }
+        }
 
-        private Select(Tokenizer tokenizer) {
-            super(tokenizer);
+        private void evict() {
+            Iterator<Map.Entry<List<Object>, Entry>> eldest = results.entrySet().iterator();
+            while (bytes > capacityBytes) {
+                bytes -= eldest.next().getValue().bytes;
+                eldest.remove();
+                evictions++;
+            }
         }
 
-        private DataSet execute(DataSet ds) {
-            DataSet res = new DataSet();
-            for (Map<String, Object> row : ds.getRows()) {
-                Map<String, Object> selectedColumns = filter(row);
-                res.addRow(selectedColumns);
+        // Vectors and null bitmaps; strings are codes into dictionaries shared with the tables.
+        private static long estimateBytes(DataSet result) {
+            long res = 0;
+            for (int i = 0; i < result.schema().size(); i++) {
+                Column column = result.column(i);
+                res += 64 + (long) result.size() * (column.type() == ColumnType.STRING ? 4 : 8) + result.size() / 8;
             }
             return res;
         }
 
-        private Map<String, Object> filter(Map<String, Object> row) {
-            Map<String, Object> res = new LinkedHashMap<>();
-            for (String column : columns) {
-                if (!row.containsKey(column)) {
-                    throw new RuntimeException("Undefined column name '" + column + "'");
-                }
-                res.put(column, row.get(column));
-            }
+        public synchronized long getHits() {
+            return hits;
+        }
 
-            return res;
+        public synchronized long getMisses() {
+            return misses;
         }
 
-        @Override
-        public void parse() {
-            expected(TokenType.SELECT);
-            while (peekToken().type == TokenType.LITERAL) {
-                Token t = nextToken();
-                columns.add(parseColumnName(t.value));
-            }
-            if (columns.size() == 0) {
-                throw new RuntimeException("Select: expected at least 1 column name");
-            }
+        // Hits / lookups, 0 if there were none.
+        public synchronized double getHitRate() {
+            return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
         }
 
-        private String parseColumnName(String value) {
-            String[] items = value.split("\\.");
-            if (items.length != 2 || items[0].trim().length() == 0 || items[1].trim().length() == 0) {
-                throw new RuntimeException("Bad column name: " + value + ". Expected format: table.column");
-            }
-            return value;
+        // Entries dropped because a queried table has changed.
+        public synchronized long getInvalidations() {
+            return invalidations;
         }
 
-    }
+        // Entries dropped to stay within the capacity.
+        public synchronized long getEvictions() {
+            return evictions;
+        }
 
-    private static class Query extends SQLItem {
-        private Select select;
+        public synchronized int size() {
+            return results.size();
+        }
+
+        // Estimated size of the cached results.
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        public synchronized long getCapacityBytes() {
+            return capacityBytes;
+        }
+
+        // Zero disables caching.
+        public synchronized void setCapacityBytes(long capacityBytes) {
+            if (capacityBytes < 0) {
+                throw new IllegalArgumentException("Negative capacity: " + capacityBytes);
+            }
+            this.capacityBytes = capacityBytes;
+            evict();
+        }
+
+        public synchronized void clear() {
+            results.clear();
+            bytes = 0;
+            hits = 0;
+            misses = 0;
+            invalidations = 0;
+            evictions = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("ResultCache{size=%d, bytes=%d, hits=%d, misses=%d, hitRate=%.3f, invalidations=%d,"
+                    + " evictions=%d}", results.size(), bytes, hits, misses, getHitRate(), invalidations, evictions);
+        }
+    }
+
+    /**
+     * Receives the profile of every query executed while the listener is registered,
+     * see {@link #addQueryListener(QueryListener)}. Called on the thread that executed the query
+     * (for a streamed query, the one that read the cursor to the end).
+     */
+    public interface QueryListener {
+        void queryExecuted(QueryProfile profile);
+    }
+
+    /**
+     * Operator tree of a planned query, with execution statistics if the query was run
+     * (EXPLAIN ANALYZE or a query listener). Printed by {@link #toString()}.
+     */
+    public static final class QueryProfile {
+        private final String sql;
+        private final boolean analyzed;
+        private final long start = System.nanoTime();
+        private OperatorProfile root;
+        private long timeNanos;
+
+        private QueryProfile(String sql, boolean analyzed) {
+            this.sql = sql;
+            this.analyzed = analyzed;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        // False for EXPLAIN: the query was only planned, statistics are zero.
+        public boolean isAnalyzed() {
+            return analyzed;
+        }
+
+        // Select, the last operator of every plan.
+        public OperatorProfile getRoot() {
+            return root;
+        }
+
+        public long getRows() {
+            return root.getRowsOut();
+        }
+
+        // Wall time from the start of execution to the last row (of a cursor: to its end).
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        // Sum over all operators, -1 if the JVM doesn't count allocated bytes.
+        public long getAllocatedBytes() {
+            return root.getTotalAllocatedBytes();
+        }
+
+        private void finish() {
+            timeNanos = System.nanoTime() - start;
+        }
+
+        // One row per line of toString(), column 'plan'.
+        private DataSet toDataSet() {
+            DataSet res = new DataSet();
+            for (String line : toString().split("\n")) {
+                res.addRow().with("plan", line);
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if (analyzed) {
+                sb.append(String.format("Query: rows: %d, time: %.3f ms, allocated: %s\n",
+                        getRows(), timeNanos / 1e6, OperatorProfile.formatBytes(getAllocatedBytes())));
+            }
+            root.append(sb, "", analyzed);
+            return sb.toString().trim();
+        }
+    }
+
+    /**
+     * Operator of a query plan: From (table scan), Where (filter), Join, Build (hash table of a joined table),
+     * Restore order (of reordered joins), Aggregate, Order by or Select. Time and allocated bytes are the
+     * operator's own, without its inputs, summed over the query's threads.
+     */
+    public static final class OperatorProfile {
+        private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private static final boolean allocationCounted = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+
+        private final String name;
+        private final String detail;
+        private final String algorithm;
+        private final List<OperatorProfile> inputs = new ArrayList<>();
+        // Input read by this operator while it is measured: the time and bytes of its batches are subtracted.
+        private final OperatorProfile pulled;
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        // Part of the above spent producing batches for the next operator
+        private final LongAdder pulledNanos = new LongAdder();
+        private final LongAdder pulledBytes = new LongAdder();
+
+        private OperatorProfile(String name, String detail, String algorithm, OperatorProfile pulled) {
+            this.name = name;
+            this.detail = detail;
+            this.algorithm = algorithm;
+            this.pulled = pulled;
+            if (pulled != null) {
+                inputs.add(pulled);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Table, condition or columns the operator works on.
+        public String getDetail() {
+            return detail;
+        }
+
+        // Join algorithm: "hash join", "index join" or "nested loop", null for other operators.
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public List<OperatorProfile> getInputs() {
+            return Collections.unmodifiableList(inputs);
+        }
+
+        // Sum of the inputs' output; for a table scan, the rows scanned.
+        public long getRowsIn() {
+            if (inputs.isEmpty()) {
+                return getRowsOut();
+            }
+            long res = 0;
+            for (OperatorProfile input : inputs) {
+                res += input.getRowsOut();
+            }
+            return res;
+        }
+
+        public long getRowsOut() {
+            return rows.sum();
+        }
+
+        public long getTimeNanos() {
+            return Math.max(nanos.sum() - (pulled != null ? pulled.pulledNanos.sum() : 0), 0);
+        }
+
+        // -1 if the JVM doesn't count allocated bytes.
+        public long getAllocatedBytes() {
+            if (!allocationCounted) {
+                return -1;
+            }
+            return Math.max(bytes.sum() - (pulled != null ? pulled.pulledBytes.sum() : 0), 0);
+        }
+
+        private long getTotalAllocatedBytes() {
+            long res = getAllocatedBytes();
+            for (OperatorProfile input : inputs) {
+                res += res >= 0 ? input.getTotalAllocatedBytes() : 0;
+            }
+            return res;
+        }
+
+        private OperatorProfile input(OperatorProfile input) {
+            if (input != null) {
+                inputs.add(input);
+            }
+            return this;
+        }
+
+        private void add(long rows, long nanos, long bytes) {
+            this.rows.add(rows);
+            this.nanos.add(nanos);
+            this.bytes.add(bytes);
+        }
+
+        // A batch returned to the next operator.
+        private void addPulled(long rows, long nanos, long bytes) {
+            add(rows, nanos, bytes);
+            pulledNanos.add(nanos);
+            pulledBytes.add(bytes);
+        }
+
+        // The sink measured on the thread running it; its rows are added by the caller.
+        private <T> Function<BatchOperator, T> measure(Function<BatchOperator, T> sink) {
+            return input -> {
+                long start = System.nanoTime();
+                long allocated = allocatedBytes();
+                T res = sink.apply(input);
+                add(0, System.nanoTime() - start, allocatedBytes() - allocated);
+                return res;
+            };
+        }
+
+        private IntConsumer measureTask(IntConsumer task) {
+            return i -> {
+                long start = System.nanoTime();
+                long allocated = allocatedBytes();
+                task.accept(i);
+                add(0, System.nanoTime() - start, allocatedBytes() - allocated);
+            };
+        }
+
+        // Allocated by the current thread so far, 0 if not counted.
+        private static long allocatedBytes() {
+            return allocationCounted ?
+                    ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()) :
+                    0;
+        }
+
+        private static String formatBytes(long bytes) {
+            if (bytes < 0) {
+                return "n/a";
+            }
+            return bytes < 1024 ? bytes + " B" :
+                    bytes < 1024 * 1024 ? String.format("%.1f KB", bytes / 1024.0) :
+                            String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+
+        private void append(StringBuilder sb, String indent, boolean analyzed) {
+            sb.append(indent).append(name).append(' ').append(detail);
+            if (algorithm != null) {
+                sb.append(" (").append(algorithm).append(')');
+            }
+            if (analyzed) {
+                sb.append(String.format("  [rows in: %d, out: %d, time: %.3f ms, allocated: %s]",
+                        getRowsIn(), getRowsOut(), getTimeNanos() / 1e6, formatBytes(getAllocatedBytes())));
+            }
+            sb.append('\n');
+            for (OperatorProfile input : inputs) {
+                input.append(sb, indent + "  ", analyzed);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            append(sb, "", true);
+            return sb.toString().trim();
+        }
+    }
+
+    /**
+     * Algorithm settings of a query execution. Queries use {@link #DEFAULT}; benchmarks compare it with
+     * other settings through {@link PreparedStatement#executeWith} and {@link PreparedStatement#streamWith}.
+     */
+    static final class Options {
+        // Tuples per in-memory ORDER BY run; longer sorts spill runs to temp files.
+        static final int DEFAULT_SORT_RUN_SIZE = 1 << 20;
+
+        static final Options DEFAULT = new Options(true, DEFAULT_SORT_RUN_SIZE);
+
+        // When false, every join without an index falls back to the nested loop.
+        final boolean hashJoin;
+        final int sortRunSize;
+
+        private Options(boolean hashJoin, int sortRunSize) {
+            if (sortRunSize < 1) {
+                throw new IllegalArgumentException("Sort run size must be positive: " + sortRunSize);
+            }
+            this.hashJoin = hashJoin;
+            this.sortRunSize = sortRunSize;
+        }
+
+        Options withHashJoin(boolean hashJoin) {
+            return new Options(hashJoin, sortRunSize);
+        }
+
+        Options withSortRunSize(int sortRunSize) {
+            return new Options(hashJoin, sortRunSize);
+        }
+    }
+
+    // Per-call execution state: the database, bound parameter values, the number of threads, the algorithm
+    // settings and the profile.
+    private static final class Context {
+        // Shared by all queries, a thread per core. Threads of the default factory are daemons.
+        private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        final Map<String, DataSet> db;
+        final Object[] params;
+        final int parallelism;
+        final Options options;
+        // Null if the query is not profiled
+        final QueryProfile profile;
+        // Table name -> snapshot read by the query
+        private final Map<String, DataSet> snapshots = new HashMap<>();
+
+        Context(Map<String, DataSet> db, Object[] params, int parallelism) {
+            this(db, params, parallelism, Options.DEFAULT, null);
+        }
+
+        Context(Map<String, DataSet> db, Object[] params, int parallelism, Options options, QueryProfile profile) {
+            this.db = db;
+            this.params = params;
+            this.parallelism = parallelism;
+            this.options = options;
+            this.profile = profile;
+        }
+
+        // Snapshot of the table pinned by the first call, so all reads of the query see the same rows.
+        DataSet table(String name) {
+            DataSet res = snapshots.get(name);
+            if (res == null) {
+                DataSet table = db.get(name);
+                if (table == null) {
+                    throw new RuntimeException("Table not found: " + name);
+                }
+                res = table.snapshot();
+                snapshots.put(name, res);
+            }
+            return res;
+        }
+
+        // EXPLAIN: the query is planned, but no rows are read and no hash tables are built.
+        boolean planOnly() {
+            return profile != null && !profile.analyzed;
+        }
+
+        // New plan operator reading 'pulled', null if the query is not profiled.
+        OperatorProfile operator(String name, String detail, OperatorProfile pulled) {
+            return operator(name, detail, null, pulled);
+        }
+
+        // Other inputs (may be null) are read before the operator runs, e.g. by a hash table build.
+        OperatorProfile operator(String name, String detail, String algorithm, OperatorProfile pulled,
+                                 OperatorProfile... inputs) {
+            if (profile == null) {
+                return null;
+            }
+            OperatorProfile res = new OperatorProfile(name, detail, algorithm, pulled);
+            for (OperatorProfile input : inputs) {
+                res.input(input);
+            }
+            return res;
+        }
+
+        /**
+         * Runs tasks 0..count-1 by up to 'parallelism' workers of the shared fork/join pool, which take
+         * the next task index until none is left. All tasks are run even if some fail; then the exception
+         * (or error) of the first failed one by index is rethrown as is.
+         */
+        void forEach(int count, IntConsumer task) {
+            if (parallelism == 1 || count == 1) {
+                for (int i = 0; i < count; i++) {
+                    task.accept(i);
+                }
+                return;
+            }
+            Throwable[] failures = new Throwable[count];
+            AtomicInteger next = new AtomicInteger();
+            List<Callable<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(parallelism, count); i++) {
+                workers.add(() -> {
+                    for (int index = next.getAndIncrement(); index < count; index = next.getAndIncrement()) {
+                        try {
+                            task.accept(index);
+                        } catch (Throwable e) {
+                            failures[index] = e;
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> worker : pool.invokeAll(workers)) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    throw rethrow(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for query tasks", e);
+                }
+            }
+            for (Throwable failure : failures) {
+                if (failure != null) {
+                    throw rethrow(failure);
+                }
+            }
+        }
+
+        // Unchecked exceptions and errors as is, others wrapped.
+        private static RuntimeException rethrow(Throwable failure) {
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private enum TokenType {
+        EXPLAIN, ANALYZE, SELECT, FROM, JOIN, ON, WHERE, GROUP, BY, ORDER, ASC, DESC, LIMIT, COMMA, LEFT_PAREN, RIGHT_PAREN,
+        COMPARISON, PARAMETER, LITERAL, QUOTED_LITERAL, EOF
+    }
+
+    // Token types matched by name, ignoring case.
+    private static final TokenType[] KEYWORDS = {
+            TokenType.EXPLAIN, TokenType.ANALYZE, TokenType.SELECT, TokenType.FROM, TokenType.JOIN, TokenType.ON, TokenType.WHERE, TokenType.GROUP,
+            TokenType.BY, TokenType.ORDER, TokenType.ASC, TokenType.DESC, TokenType.LIMIT
+    };
+
+    /**
+     * Token as a [start, end) range of the query text, the value is cut out only when asked for.
+     */
+    private static class Token {
+        final TokenType type;
+        private final String text;
+        private final int start;
+        private final int end;
+        private String value;
+
+        Token(TokenType type, String text, int start, int end) {
+            this.type = type;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        // Null for EOF.
+        String value() {
+            if (value == null && type != TokenType.EOF) {
+                value = text.substring(start, end);
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + type + (type != TokenType.EOF ? ": " + value() : "") + "}";
+        }
+    }
+
+    /**
+     * Single pass lexer over the query text with one token of lookahead. Tokens are separated by spaces,
+     * line breaks, tabs and commas; parentheses are tokens of their own; quoted literals keep their case
+     * and may contain separators and doubled quotes.
+     */
+    private static class Tokenizer {
+        private final String data;
+        private int pos;
+        private Token lookahead;
+        private int parameterCount;
+
+        Tokenizer(String data) {
+            this.data = data;
+        }
+
+        Token next() {
+            Token t = peek();
+            lookahead = null;
+            return t;
+        }
+
+        Token peek() {
+            if (lookahead == null) {
+                lookahead = scan();
+            }
+            return lookahead;
+        }
+
+        private Token scan() {
+            while (pos < data.length() && isSpace(data.charAt(pos))) {
+                pos++;
+            }
+            int start = pos;
+            if (pos == data.length()) {
+                return new Token(TokenType.EOF, data, start, start);
+            }
+            char ch = data.charAt(pos++);
+            switch (ch) {
+                case '(':
+                    return new Token(TokenType.LEFT_PAREN, data, start, pos);
+                case ')':
+                    return new Token(TokenType.RIGHT_PAREN, data, start, pos);
+                case '\'':
+                    skipQuoted();
+                    return new Token(TokenType.QUOTED_LITERAL, data, start, pos);
+                default:
+                    while (pos < data.length() && !isSpace(data.charAt(pos)) && !isParenthesis(data.charAt(pos))) {
+                        pos++;
+                    }
+                    return new Token(determineType(start, pos), data, start, pos);
+            }
+        }
+
+        // Moves past the closing quote, a doubled quote is a part of the literal.
+        private void skipQuoted() {
+            while (pos < data.length()) {
+                if (data.charAt(pos++) == '\'') {
+                    if (pos < data.length() && data.charAt(pos) == '\'') {
+                        pos++;
+                    } else {
+                        return;
+                    }
+                }
+            }
+            throw new RuntimeException("Expected closing quote");
+        }
+
+        private TokenType determineType(int start, int end) {
+            int length = end - start;
+            char first = data.charAt(start);
+            if (length == 1) {
+                switch (first) {
+                    case '<':
+                    case '>':
+                    case '=':
+                        return TokenType.COMPARISON;
+                    case '?':
+                        return TokenType.PARAMETER;
+                    default:
+                        return TokenType.LITERAL;
+                }
+            }
+            if (length == 2 && (first == '<' || first == '>')) {
+                char second = data.charAt(start + 1);
+                if (second == '=' || (first == '<' && second == '>')) {
+                    return TokenType.COMPARISON;
+                }
+            }
+            for (TokenType keyword : KEYWORDS) {
+                String name = keyword.name();
+                if (name.length() == length && data.regionMatches(true, start, name, 0, length)) {
+                    return keyword;
+                }
+            }
+            return TokenType.LITERAL;
+        }
+
+        private static boolean isSpace(char ch) {
+            return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t' || ch == ',';
+        }
+
+        private static boolean isParenthesis(char ch) {
+            return ch == '(' || ch == ')';
+        }
+    }
+
+    /**
+     * Columnar table: every column is a primitive vector ({@code long[]}, {@code double[]}
+     * or dictionary codes for strings) described by a shared {@link Schema}.
+     * Column type is taken from the first value stored in it; a long column becomes a double column
+     * when a double value arrives, which keeps the exact values of its long rows (see {@link DoubleColumn}).
+     * Any other type mix is an error.
+     * Tables loaded by {@link #mapTable} read their vectors straight from the mapped file and are read-only.
+     * <p>
+     * Writes are synchronized on the table and never change data visible to a {@link #snapshot()}:
+     * appended rows go past the snapshot's row count, and a column (or index) is copied before its first
+     * rewrite of an earlier row. Every query reads snapshots pinned when it is planned, so rows can be
+     * appended by other threads while queries run; arrays left behind by copies are reclaimed by the GC
+     * together with the last snapshot using them.
+     * <p>
+     * A row added by {@link #addRow()} collects its values in the {@link DSRow} and is appended with all of
+     * them at once, when the thread that added it adds the next row or reads the table (e.g. runs a query).
+     * Until then snapshots taken by other threads don't see it, so they never see a partly filled row.
+     */
+    public static class DataSet {
+        private static final AtomicLong versions = new AtomicLong();
+
+        private Schema schema;
+        private Column[] columns;
+        private int rowCount;
+        // Lower cased column name -> index. Views made by withTablePrefix() share indexes of the table.
+        private Map<String, Index> indexes = new HashMap<>();
+        // Why rows can't be added (memory-mapped table or snapshot), null if they can
+        private String readOnly;
+        // Rows [0, sharedRows) are visible to snapshots, rewriting them copies the column or index first
+        private int sharedRows;
+        // Vectors and indexes are those of a read-only data set, copied by the first write, see copyOnWrite()
+        private boolean copyOnWrite;
+        // Last snapshot, reused until the next write
+        private DataSet snapshot;
+        // Unique stamp of the rows of a snapshot or read-only table, 0 for a writable table
+        private long version;
+        // Rows added by addRow() and not yet appended, at most one per thread
+        private final List<DSRow> openRows = new ArrayList<>(1);
+
+        public DataSet() {
+            this(Schema.EMPTY, new Column[0], 0);
+        }
+
+        private DataSet(Schema schema, Column[] columns, int rowCount) {
+            this.schema = schema;
+            this.columns = columns;
+            this.rowCount = rowCount;
+        }
+
+        // All values of the row become visible to snapshots at once.
+        public synchronized void addRow(Map<String, Object> row) {
+            appendOpenRow();
+            int index = newRow();
+            for (Map.Entry<String, Object> entry : row.entrySet()) {
+                set(index, entry.getKey(), entry.getValue());
+            }
+        }
+
+        /**
+         * Compatibility view: every access to an element builds a map of the row's non-null values.
+         * Unlike the former list of stored maps the view is read-only: changing the list or a row map throws
+         * UnsupportedOperationException.
+         *
+         * @deprecated rows are no longer stored as maps; stream a query with {@link SQLExec#stream} to read
+         * values without a map per row, add rows with {@link #addRow(Map)} or {@link #addRow()}.
+         */
+        @Deprecated
+        public List<Map<String, Object>> getRows() {
+            return new AbstractList<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> get(int index) {
+                    appendOpenRow();
+                    if (index < 0 || index >= rowCount) {
+                        throw new IndexOutOfBoundsException("Row: " + index + ", size: " + rowCount);
+                    }
+                    return Collections.unmodifiableMap(getRow(index));
+                }
+
+                @Override
+                public int size() {
+                    return DataSet.this.size();
+                }
+            };
+        }
+
+        // The row is appended with all its values by the next addRow() or read of the table by this thread.
+        public synchronized DSRow addRow() {
+            if (readOnly != null) {
+                throw new IllegalStateException(readOnly);
+            }
+            appendOpenRow();
+            DSRow res = new DSRow(this, Thread.currentThread());
+            openRows.add(res);
+            return res;
+        }
+
+        public synchronized int size() {
+            appendOpenRow();
+            return rowCount;
+        }
+
+        // Appends the row opened by this thread with addRow(), if any.
+        private synchronized void appendOpenRow() {
+            for (int i = 0; i < openRows.size(); i++) {
+                if (openRows.get(i).thread == Thread.currentThread()) {
+                    append(openRows.remove(i));
+                    return;
+                }
+            }
+        }
+
+        // All values of the row become visible to snapshots at once, later values are written to the row.
+        private synchronized void append(DSRow row) {
+            openRows.remove(row);
+            row.index = newRow();
+            for (int i = 0; i < row.keys.size(); i++) {
+                set(row.index, row.keys.get(i), row.values.get(i));
+            }
+            row.keys = null;
+            row.values = null;
+        }
+
+        /**
+         * Immutable view of the rows added so far, sharing vectors and indexes with the table.
+         * Later writes to the table don't change it; it is cheap and cached until the next write.
+         */
+        public synchronized DataSet snapshot() {
+            if (readOnly != null) {
+                return this;
+            }
+            appendOpenRow();
+            if (snapshot == null) {
+                Column[] views = new Column[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    views[i] = columns[i].share();
+                }
+                snapshot = new DataSet(schema, views, rowCount);
+                snapshot.readOnly = "Table snapshot is read-only";
+                snapshot.version = versions.incrementAndGet();
+                for (Map.Entry<String, Index> entry : indexes.entrySet()) {
+                    entry.getValue().shared = true;
+                    snapshot.indexes.put(entry.getKey(), entry.getValue());
+                }
+                sharedRows = rowCount;
+            }
+            return snapshot;
+        }
+
+        /**
+         * Writable data set with the rows of this read-only one. It reads the same vectors and indexes
+         * until the first write copies its rows, so this one is never changed.
+         */
+        DataSet copyOnWrite() {
+            DataSet res = new DataSet(schema, columns, rowCount);
+            res.indexes.putAll(indexes);
+            res.copyOnWrite = true;
+            return res;
+        }
+
+        // Own copies of the rows of a copy-on-write view. Vectors past the row count may have been written
+        // by the data set they come from, so only the rows are copied and indexes are rebuilt.
+        private void materialize() {
+            copyOnWrite = false;
+            Column[] copies = new Column[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                copies[i] = columns[i].emptyCopy();
+                copies[i].putRange(columns[i], rowCount, 0);
+            }
+            columns = copies;
+            Map<String, Index> shared = indexes;
+            indexes = new HashMap<>();
+            for (Map.Entry<String, Index> entry : shared.entrySet()) {
+                createIndex(entry.getKey(), entry.getValue().type);
+            }
+        }
+
+        /**
+         * Creates (or replaces) index on the column. WHERE and JOIN ON conditions on indexed columns
+         * are answered by lookups instead of scans.
+         */
+        public synchronized void createIndex(String column, IndexType type) {
+            Index index = type == IndexType.HASH ? new HashIndex() : new SortedIndex();
+            for (int i = 0; i < columns.length; i++) {
+                if (schema.name(i).equalsIgnoreCase(column)) {
+                    for (int row = 0; row < rowCount; row++) {
+                        Object value = columns[i].get(row);
+                        if (value != null) {
+                            index.add(value, row);
+                        }
+                    }
+                }
+            }
+            indexes.put(column.toLowerCase(), index);
+            snapshot = null;
+        }
+
+        public synchronized void dropIndex(String column) {
+            indexes.remove(column.toLowerCase());
+            snapshot = null;
+        }
+
+        Index index(String column) {
+            return indexes.isEmpty() ? null : indexes.get(column.toLowerCase());
+        }
+
+        private Map<String, Object> getRow(int row) {
+            Map<String, Object> res = new LinkedHashMap<>();
+            for (int i = 0; i < columns.length; i++) {
+                if (!columns[i].isNull(row)) {
+                    res.put(schema.name(i), columns[i].get(row));
+                }
+            }
+            return res;
+        }
+
+        private synchronized int newRow() {
+            if (readOnly != null) {
+                throw new IllegalStateException(readOnly);
+            }
+            if (copyOnWrite) {
+                materialize();
+            }
+            snapshot = null;
+            return rowCount++;
+        }
+
+        private void set(int row, String key, Object value) {
+            if (value == null) {
+                return;
+            }
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                setLong(row, key, ((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                setDouble(row, key, ((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                setString(row, key, (String) value);
+            } else {
+                throw new IllegalArgumentException("Unsupported value type for column '" + key + "': "
+                        + value.getClass().getSimpleName());
+            }
+        }
+
+        private synchronized void setLong(int row, String key, long value) {
+            Column column = column(key, ColumnType.LONG, row);
+            Object oldValue = column.get(row);
+            if (column.type() == ColumnType.DOUBLE) {
+                ((DoubleColumn) column).setLong(row, value);
+            } else {
+                ((LongColumn) column).set(row, value);
+            }
+            reindex(key, row, oldValue, value);
+        }
+
+        private synchronized void setDouble(int row, String key, double value) {
+            Column column = column(key, ColumnType.DOUBLE, row);
+            Object oldValue = column.get(row);
+            if (column.type() == ColumnType.LONG) {
+                column = ((LongColumn) column).toDoubleColumn();
+                columns[schema.indexOf(key)] = column;
+            }
+            ((DoubleColumn) column).set(row, value);
+            reindex(key, row, oldValue, value);
+        }
+
+        private synchronized void setString(int row, String key, String value) {
+            Column column = column(key, ColumnType.STRING, row);
+            Object oldValue = column.get(row);
+            ((StringColumn) column).set(row, value);
+            reindex(key, row, oldValue, value);
+        }
+
+        private void reindex(String key, int row, Object oldValue, Object newValue) {
+            Index index = index(key);
+            if (index != null) {
+                if (index.shared && row < sharedRows) {
+                    index = index.copy();
+                    indexes.put(key.toLowerCase(), index);
+                }
+                index.update(row, oldValue, newValue);
+            }
+        }
+
+        /**
+         * Finds column by name or adds a new one (all previous rows are null in it), ready for a write
+         * to the row: a column shared with snapshots is copied before rewriting one of their rows.
+         */
+        private Column column(String key, ColumnType type, int row) {
+            if (copyOnWrite) {
+                materialize();
+            }
+            snapshot = null;
+            int index = schema.indexOf(key);
+            if (index >= 0 && row < sharedRows && columns[index].shared) {
+                columns[index] = columns[index].copy();
+            }
+            if (index < 0) {
+                Column column = Column.create(type);
+                schema = schema.add(key);
+                columns = Arrays.copyOf(columns, columns.length + 1);
+                columns[columns.length - 1] = column;
+                return column;
+            }
+            checkType(key, type);
+            return columns[index];
+        }
+
+        // Fails if the column exists and can't store values of the type.
+        private synchronized void checkType(String key, ColumnType type) {
+            int index = schema.indexOf(key);
+            Column column = index >= 0 ? columns[index] : null;
+            boolean compatible = column == null || column.type() == type
+                    || column.type() != ColumnType.STRING && type != ColumnType.STRING;
+            if (!compatible) {
+                throw new IllegalArgumentException("Column '" + key + "' holds " + column.type()
+                        + " values, can't store " + type);
+            }
+        }
+
+        Schema schema() {
+            return schema;
+        }
+
+        Column column(int index) {
+            return columns[index];
+        }
+
+        Column column(String name) {
+            int index = schema.indexOf(name);
+            return index >= 0 ? columns[index] : null;
+        }
+
+        // Same columns (no copy) under names prefixed with 'table.', lower cased.
+        DataSet withTablePrefix(String table) {
+            Map<String, Column> res = new LinkedHashMap<>();
+            String prefix = table.toLowerCase() + ".";
+            for (int i = 0; i < columns.length; i++) {
+                res.put(prefix + schema.name(i).toLowerCase(), columns[i]);
+            }
+            DataSet view = of(res, rowCount);
+            for (Map.Entry<String, Index> entry : indexes.entrySet()) {
+                view.indexes.put(prefix + entry.getKey(), entry.getValue());
+            }
+            return view;
+        }
+
+        // View with only those of the given columns that exist (no copy), keeping their indexes.
+        DataSet project(Set<String> names) {
+            Map<String, Column> res = new LinkedHashMap<>();
+            for (int i = 0; i < columns.length; i++) {
+                if (names.contains(schema.name(i))) {
+                    res.put(schema.name(i), columns[i]);
+                }
+            }
+            DataSet view = of(res, rowCount);
+            for (Map.Entry<String, Index> entry : indexes.entrySet()) {
+                if (names.contains(entry.getKey())) {
+                    view.indexes.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return view;
+        }
+
+        // Appends 'count' rows, values of the i-th column are taken from sources[i] rows 'rows[i]'.
+        void appendGathered(Column[] sources, int[][] rows, int count) {
+            snapshot = null;
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].putGathered(sources[i], rows[i], count, rowCount);
+            }
+            rowCount += count;
+        }
+
+        // Appends all rows of a data set with the same columns.
+        void append(DataSet other) {
+            snapshot = null;
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].putRange(other.columns[i], other.rowCount, rowCount);
+            }
+            rowCount += other.rowCount;
+        }
+
+        static DataSet of(Map<String, Column> columns, int rowCount) {
+            return new DataSet(new Schema(new ArrayList<>(columns.keySet())),
+                    columns.values().toArray(new Column[0]), rowCount);
+        }
+
+        static DataSet readOnly(Map<String, Column> columns, int rowCount) {
+            DataSet res = of(columns, rowCount);
+            res.readOnly = "Memory-mapped table is read-only";
+            res.version = versions.incrementAndGet();
+            return res;
+        }
+
+        @Override
+        public synchronized String toString() {
+            appendOpenRow();
+            StringBuilder sb = new StringBuilder();
+            if (rowCount == 0) {
+                sb.append("[empty]");
+            } else {
+                for (int i = 0; i < columns.length; i++) {
+                    if (!columns[i].isNull(0)) {
+                        sb.append(schema.name(i)).append("\t");
+                    }
+                }
+                sb.append("\n");
+
+                for (int row = 0; row < rowCount; row++) {
+                    for (Column column : columns) {
+                        if (!column.isNull(row)) {
+                            sb.append(column.get(row)).append("\t");
+                        }
+                    }
+                    sb.append("\n");
+                }
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Row added by {@link DataSet#addRow()}. Values are collected here until the row is appended to the table,
+     * then written to the table's row.
+     */
+    public static class DSRow {
+        private final DataSet dataSet;
+        // Thread that added the row
+        final Thread thread;
+        // Values of the row not yet appended (by DataSet.append()), both null once it is appended
+        List<String> keys = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        // Row of the table, -1 until the row is appended
+        int index = -1;
+
+        DSRow(DataSet dataSet, Thread thread) {
+            this.dataSet = dataSet;
+            this.thread = thread;
+        }
+
+        public DSRow with(String key, long value) {
+            synchronized (dataSet) {
+                if (index < 0) {
+                    dataSet.checkType(key, ColumnType.LONG);
+                    keys.add(key);
+                    values.add(value);
+                } else {
+                    dataSet.setLong(index, key, value);
+                }
+            }
+            return this;
+        }
+
+        public DSRow with(String key, double value) {
+            synchronized (dataSet) {
+                if (index < 0) {
+                    dataSet.checkType(key, ColumnType.DOUBLE);
+                    keys.add(key);
+                    values.add(value);
+                } else {
+                    dataSet.setDouble(index, key, value);
+                }
+            }
+            return this;
+        }
+
+        public DSRow with(String key, String value) {
+            if (value == null) {
+                return this;
+            }
+            synchronized (dataSet) {
+                if (index < 0) {
+                    dataSet.checkType(key, ColumnType.STRING);
+                    keys.add(key);
+                    values.add(value);
+                } else {
+                    dataSet.setString(index, key, value);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Ordered column names, shared by all data sets of the same shape.
+     */
+    private static final class Schema {
+        static final Schema EMPTY = new Schema(Collections.<String>emptyList());
+
+        private final String[] names;
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        Schema(List<String> names) {
+            this.names = names.toArray(new String[0]);
+            for (int i = 0; i < this.names.length; i++) {
+                indexes.put(this.names[i], i);
+            }
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        String name(int index) {
+            return names[index];
+        }
+
+        int indexOf(String name) {
+            Integer index = indexes.get(name);
+            return index != null ? index : -1;
+        }
+
+        Schema add(String name) {
+            List<String> res = new ArrayList<>(Arrays.asList(names));
+            res.add(name);
+            return new Schema(res);
+        }
+    }
+
+    private enum ColumnType {LONG, DOUBLE, STRING}
+
+    /**
+     * Growable primitive vector with a null (absent value) bitmap.
+     * Values are only appended in place; once the vector is shared with a snapshot,
+     * the table rewrites an earlier row in a copy (see {@link DataSet#snapshot()}).
+     */
+    private static abstract class Column {
+        static final int INITIAL_CAPACITY = 16;
+
+        final Bits present;
+        // Vectors are referenced by a snapshot view
+        boolean shared;
+
+        Column() {
+            this(new Bits());
+        }
+
+        Column(Bits present) {
+            this.present = present;
+        }
+
+        static Column create(ColumnType type) {
+            switch (type) {
+                case LONG:
+                    return new LongColumn(INITIAL_CAPACITY);
+                case DOUBLE:
+                    return new DoubleColumn(INITIAL_CAPACITY);
+                case STRING:
+                    return new StringColumn(INITIAL_CAPACITY, new Dictionary());
+                default:
+                    throw new IllegalArgumentException("Unsupported column type: " + type);
+            }
+        }
+
+        abstract ColumnType type();
+
+        boolean isNull(int row) {
+            return !present.get(row);
+        }
+
+        // True if some of the first 'rowCount' rows has no value.
+        boolean hasNulls(int rowCount) {
+            return present.nextClearBit(0) < rowCount;
+        }
+
+        // Boxed value (Long, Double or String) or null.
+        abstract Object get(int row);
+
+        // Empty column of the same type (sharing the dictionary for strings).
+        abstract Column emptyCopy();
+
+        // Read-only view of the current vectors, they are never changed in place afterwards.
+        Column share() {
+            shared = true;
+            return view();
+        }
+
+        abstract Column view();
+
+        // Same values in new vectors.
+        abstract Column copy();
+
+        /**
+         * Stores values of source rows 'rows[0..count)' to rows at, at+1, ... of this column.
+         * Source is a column of the same type and has values in all the given rows.
+         */
+        abstract void putGathered(Column source, int[] rows, int count, int at);
+
+        // Stores the first 'count' values of a column of the same type to rows at, at+1, ...
+        abstract void putRange(Column source, int count, int at);
+
+        // Clears rows at, at+1, ... whose source rows (as passed to putGathered) have no value.
+        void clearAbsent(Column source, int[] rows, int count, int at) {
+            for (int i = 0; i < count; i++) {
+                if (source.isNull(rows[i])) {
+                    present.clear(at + i);
+                }
+            }
+        }
+
+        void copyPresence(Column source, int count, int at) {
+            for (int i = source.present.nextSetBit(0); i >= 0 && i < count; i = source.present.nextSetBit(i + 1)) {
+                present.set(at + i);
+            }
+        }
+
+        static int grow(int capacity, int row) {
+            return Math.max(capacity * 2, row + 1);
+        }
+
+        static void checkWritable(Buffer mapped) {
+            if (mapped != null) {
+                throw new IllegalStateException("Memory-mapped column is read-only");
+            }
+        }
+    }
+
+    /**
+     * Bit set that can share its words with read-only views: setting a bit never changes other bits
+     * of the word it is in, and growth copies the words, so views stay valid for the bits they had.
+     */
+    private static final class Bits {
+        private long[] words;
+
+        Bits() {
+            this(new long[1]);
+        }
+
+        private Bits(long[] words) {
+            this.words = words;
+        }
+
+        static Bits valueOf(LongBuffer buffer) {
+            long[] words = new long[Math.max(buffer.remaining(), 1)];
+            buffer.duplicate().get(words, 0, buffer.remaining());
+            return new Bits(words);
+        }
+
+        Bits view() {
+            return new Bits(words);
+        }
+
+        Bits copy() {
+            return new Bits(words.clone());
+        }
+
+        boolean get(int index) {
+            int word = index >>> 6;
+            return word < words.length && (words[word] & 1L << index) != 0;
+        }
+
+        void set(int index) {
+            int word = index >>> 6;
+            if (word >= words.length) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, word + 1));
+            }
+            words[word] |= 1L << index;
+        }
+
+        // Sets bits [from, to).
+        void set(int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            int last = (to - 1) >>> 6;
+            if (last >= words.length) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, last + 1));
+            }
+            int first = from >>> 6;
+            long firstMask = -1L << from;
+            long lastMask = -1L >>> -to;
+            if (first == last) {
+                words[first] |= firstMask & lastMask;
+                return;
+            }
+            words[first] |= firstMask;
+            for (int i = first + 1; i < last; i++) {
+                words[i] = -1L;
+            }
+            words[last] |= lastMask;
+        }
+
+        void clear(int index) {
+            int word = index >>> 6;
+            if (word < words.length) {
+                words[word] &= ~(1L << index);
+            }
+        }
+
+        void or(Bits other) {
+            if (other.words.length > words.length) {
+                words = Arrays.copyOf(words, other.words.length);
+            }
+            for (int i = 0; i < other.words.length; i++) {
+                words[i] |= other.words[i];
+            }
+        }
+
+        int nextSetBit(int from) {
+            int word = from >>> 6;
+            if (word >= words.length) {
+                return -1;
+            }
+            long bits = words[word] & -1L << from;
+            while (bits == 0) {
+                if (++word == words.length) {
+                    return -1;
+                }
+                bits = words[word];
+            }
+            return word * 64 + Long.numberOfTrailingZeros(bits);
+        }
+
+        int nextClearBit(int from) {
+            int word = from >>> 6;
+            if (word >= words.length) {
+                return from;
+            }
+            long bits = ~words[word] & -1L << from;
+            while (bits == 0) {
+                if (++word == words.length) {
+                    return word * 64;
+                }
+                bits = ~words[word];
+            }
+            return word * 64 + Long.numberOfTrailingZeros(bits);
+        }
+
+        long[] toLongArray() {
+            return words.clone();
+        }
+    }
+
+    private static final class LongColumn extends Column {
+        private long[] values;
+        // Values of a memory-mapped table (read-only), null for columns on the heap
+        private final LongBuffer mapped;
+
+        LongColumn(int capacity) {
+            values = new long[capacity];
+            mapped = null;
+        }
+
+        LongColumn(LongBuffer mapped) {
+            this.mapped = mapped;
+        }
+
+        private LongColumn(long[] values, Bits present) {
+            super(present);
+            this.values = values;
+            this.mapped = null;
+        }
+
+        @Override
+        ColumnType type() {
+            return ColumnType.LONG;
+        }
+
+        long getLong(int row) {
+            return mapped == null ? values[row] : mapped.get(row);
+        }
+
+        void set(int row, long value) {
+            checkWritable(mapped);
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = value;
+            present.set(row);
+        }
+
+        @Override
+        Object get(int row) {
+            return isNull(row) ? null : (Object) getLong(row);
+        }
+
+        @Override
+        void putRange(Column source, int count, int at) {
+            if (at + count > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, at + count - 1));
+            }
+            LongColumn from = (LongColumn) source;
+            if (from.mapped == null) {
+                System.arraycopy(from.values, 0, values, at, count);
+            } else {
+                from.mapped.duplicate().get(values, at, count);
+            }
+            copyPresence(source, count, at);
+        }
+
+        @Override
+        Column emptyCopy() {
+            return new LongColumn(INITIAL_CAPACITY);
+        }
+
+        @Override
+        Column view() {
+            return mapped == null ? new LongColumn(values, present.view()) : this;
+        }
+
+        @Override
+        Column copy() {
+            return mapped == null ? new LongColumn(values.clone(), present.copy()) : this;
+        }
+
+        @Override
+        void putGathered(Column source, int[] rows, int count, int at) {
+            if (at + count > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, at + count - 1));
+            }
+            LongColumn from = (LongColumn) source;
+            if (from.mapped == null) {
+                for (int i = 0; i < count; i++) {
+                    values[at + i] = from.values[rows[i]];
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    values[at + i] = from.mapped.get(rows[i]);
+                }
+            }
+            present.set(at, at + count);
+        }
+
+        // Double column with the values of this one as long rows.
+        DoubleColumn toDoubleColumn() {
+            double[] res = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                res[i] = values[i];
+            }
+            return new DoubleColumn(res, present.copy(), values.clone(), present.copy());
+        }
+    }
+
+    /**
+     * Double values, and long values of a column that also got doubles: a long row keeps its exact value
+     * (values[] has it widened to double) and a Long is returned for it, as it was stored.
+     */
+    private static final class DoubleColumn extends Column {
+        private double[] values;
+        // Values of a memory-mapped table (read-only), null for columns on the heap
+        private final DoubleBuffer mapped;
+        // Exact values of the long rows (in 'longs', or in 'mappedLongs' for a mapped column), null if there are none
+        private long[] longs;
+        private final LongBuffer mappedLongs;
+        private Bits longRows;
+
+        DoubleColumn(int capacity) {
+            values = new double[capacity];
+            mapped = null;
+            mappedLongs = null;
+        }
+
+        // 'mappedLongs' and 'longRows' are null if no row holds a long value.
+        DoubleColumn(DoubleBuffer mapped, LongBuffer mappedLongs, Bits longRows) {
+            this.mapped = mapped;
+            this.mappedLongs = mappedLongs;
+            this.longRows = longRows;
+        }
+
+        private DoubleColumn(double[] values, Bits present, long[] longs, Bits longRows) {
+            super(present);
+            this.values = values;
+            this.mapped = null;
+            this.mappedLongs = null;
+            this.longs = longs;
+            this.longRows = longRows;
+        }
+
+        @Override
+        ColumnType type() {
+            return ColumnType.DOUBLE;
+        }
+
+        double getDouble(int row) {
+            return mapped == null ? values[row] : mapped.get(row);
+        }
+
+        // True if some row holds a long value.
+        boolean hasLongs() {
+            return longRows != null;
+        }
+
+        boolean isLong(int row) {
+            return longRows != null && longRows.get(row);
+        }
+
+        // Exact value of a long row.
+        long getLong(int row) {
+            return mappedLongs == null ? longs[row] : mappedLongs.get(row);
+        }
+
+        // Long rows, null if there are none.
+        Bits longRows() {
+            return longRows;
+        }
+
+        void set(int row, double value) {
+            checkWritable(mapped);
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = value;
+            present.set(row);
+            if (longRows != null) {
+                longRows.clear(row);
+            }
+        }
+
+        void setLong(int row, long value) {
+            set(row, value);
+            ensureLongs(row + 1);
+            longs[row] = value;
+            longRows.set(row);
+        }
+
+        private void ensureLongs(int capacity) {
+            if (longRows == null) {
+                longs = new long[Math.max(capacity, values.length)];
+                longRows = new Bits();
+            } else if (capacity > longs.length) {
+                longs = Arrays.copyOf(longs, grow(longs.length, capacity - 1));
+            }
+        }
+
+        @Override
+        Object get(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            return isLong(row) ? (Object) getLong(row) : (Object) getDouble(row);
+        }
+
+        @Override
+        void putRange(Column source, int count, int at) {
+            if (at + count > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, at + count - 1));
+            }
+            DoubleColumn from = (DoubleColumn) source;
+            if (from.mapped == null) {
+                System.arraycopy(from.values, 0, values, at, count);
+            } else {
+                from.mapped.duplicate().get(values, at, count);
+            }
+            copyPresence(source, count, at);
+            if (from.longRows != null) {
+                ensureLongs(at + count);
+                for (int i = from.longRows.nextSetBit(0); i >= 0 && i < count; i = from.longRows.nextSetBit(i + 1)) {
+                    longs[at + i] = from.getLong(i);
+                    longRows.set(at + i);
+                }
+            }
+        }
+
+        @Override
+        Column emptyCopy() {
+            return new DoubleColumn(INITIAL_CAPACITY);
+        }
+
+        @Override
+        Column view() {
+            return mapped == null ?
+                    new DoubleColumn(values, present.view(), longs, longRows != null ? longRows.view() : null) :
+                    this;
+        }
+
+        @Override
+        Column copy() {
+            return mapped == null ?
+                    new DoubleColumn(values.clone(), present.copy(), longs != null ? longs.clone() : null,
+                            longRows != null ? longRows.copy() : null) :
+                    this;
+        }
+
+        @Override
+        void putGathered(Column source, int[] rows, int count, int at) {
+            if (at + count > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, at + count - 1));
+            }
+            DoubleColumn from = (DoubleColumn) source;
+            if (from.mapped == null) {
+                for (int i = 0; i < count; i++) {
+                    values[at + i] = from.values[rows[i]];
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    values[at + i] = from.mapped.get(rows[i]);
+                }
+            }
+            present.set(at, at + count);
+            if (from.longRows != null) {
+                for (int i = 0; i < count; i++) {
+                    if (from.longRows.get(rows[i])) {
+                        ensureLongs(at + count);
+                        longs[at + i] = from.getLong(rows[i]);
+                        longRows.set(at + i);
+                    }
+                }
+            }
+        }
+    }
+
+    // Strings are stored as codes into a dictionary shared with all copies.
+    private static final class StringColumn extends Column {
+        // Replaced by an extension when a value is added to a frozen dictionary
+        private Dictionary dictionary;
+        private int[] codes;
+        // Codes of a memory-mapped table (read-only), null for columns on the heap
+        private final IntBuffer mapped;
+
+        StringColumn(int capacity, Dictionary dictionary) {
+            this.codes = new int[capacity];
+            this.dictionary = dictionary;
+            this.mapped = null;
+        }
+
+        StringColumn(IntBuffer mapped, Dictionary dictionary) {
+            this.dictionary = dictionary;
+            this.mapped = mapped;
+        }
+
+        private StringColumn(int[] codes, Bits present, Dictionary dictionary) {
+            super(present);
+            this.codes = codes;
+            this.dictionary = dictionary;
+            this.mapped = null;
+        }
+
+        @Override
+        ColumnType type() {
+            return ColumnType.STRING;
+        }
+
+        String getString(int row) {
+            return dictionary.decode(getCode(row));
+        }
+
+        int getCode(int row) {
+            return mapped == null ? codes[row] : mapped.get(row);
+        }
+
+        void setCode(int row, int code) {
+            checkWritable(mapped);
+            if (row >= codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length, row));
+            }
+            codes[row] = code;
+            present.set(row);
+        }
+
+        Dictionary dictionary() {
+            return dictionary;
+        }
+
+        void set(int row, String value) {
+            checkWritable(mapped);
+            if (row >= codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length, row));
+            }
+            codes[row] = writableDictionary().encode(value);
+            present.set(row);
+        }
+
+        // Codes of the frozen dictionary stay valid in its extension.
+        private Dictionary writableDictionary() {
+            if (dictionary.frozen) {
+                dictionary = new Dictionary(dictionary);
+            }
+            return dictionary;
+        }
+
+        @Override
+        Object get(int row) {
+            return isNull(row) ? null : getString(row);
+        }
+
+        @Override
+        void putRange(Column source, int count, int at) {
+            if (at + count > codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length, at + count - 1));
+            }
+            StringColumn from = (StringColumn) source;
+            if (from.dictionary == dictionary && from.mapped == null) {
+                System.arraycopy(from.codes, 0, codes, at, count);
+            } else if (from.dictionary == dictionary) {
+                from.mapped.duplicate().get(codes, at, count);
+            } else {
+                Dictionary dictionary = writableDictionary();
+                for (int i = 0; i < count; i++) {
+                    if (!from.isNull(i)) {
+                        codes[at + i] = dictionary.encode(from.getString(i));
+                    }
+                }
+            }
+            copyPresence(source, count, at);
+        }
+
+        @Override
+        Column emptyCopy() {
+            return new StringColumn(INITIAL_CAPACITY, dictionary);
+        }
+
+        @Override
+        Column view() {
+            return mapped == null ? new StringColumn(codes, present.view(), dictionary.view()) : this;
+        }
+
+        @Override
+        Column copy() {
+            return mapped == null ? new StringColumn(codes.clone(), present.copy(), dictionary) : this;
+        }
+
+        @Override
+        void putGathered(Column source, int[] rows, int count, int at) {
+            if (at + count > codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length, at + count - 1));
+            }
+            StringColumn from = (StringColumn) source;
+            if (from.dictionary == dictionary && from.mapped == null) {
+                for (int i = 0; i < count; i++) {
+                    codes[at + i] = from.codes[rows[i]];
+                }
+            } else if (from.dictionary == dictionary) {
+                for (int i = 0; i < count; i++) {
+                    codes[at + i] = from.mapped.get(rows[i]);
+                }
+            } else {
+                Dictionary dictionary = writableDictionary();
+                for (int i = 0; i < count; i++) {
+                    codes[at + i] = dictionary.encode(from.getString(rows[i]));
+                }
+            }
+            present.set(at, at + count);
+        }
+    }
+
+    // Strings by code.
+    private interface StringTable {
+        int size();
+
+        String get(int code);
+    }
+
+    /**
+     * Values are only appended, so a frozen view of a dictionary (used by table snapshots) shares its
+     * values array. Frozen dictionaries are not changed: a column adding a value extends the dictionary,
+     * keeping its codes.
+     */
+    private static final class Dictionary implements StringTable {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private String[] values;
+        private int count;
+        // Extended strings: codes [0, stored.size()) are taken from them (e.g. a memory-mapped file), new ones follow
+        private final StringTable stored;
+        private boolean storedEncoded;
+        final boolean frozen;
+        // Frozen view of the current values, reset when a value is added
+        private Dictionary view;
+
+        Dictionary() {
+            this(null);
+        }
+
+        Dictionary(StringTable stored) {
+            this(stored, new String[16], 0, false);
+        }
+
+        private Dictionary(StringTable stored, String[] values, int count, boolean frozen) {
+            this.stored = stored;
+            this.values = values;
+            this.count = count;
+            this.frozen = frozen;
+        }
+
+        static Dictionary frozen(StringTable strings) {
+            return new Dictionary(strings, new String[0], 0, true);
+        }
+
+        int encode(String value) {
+            if (frozen) {
+                throw new IllegalStateException("Dictionary is frozen");
+            }
+            if (stored != null && !storedEncoded) {
+                for (int code = 0; code < stored.size(); code++) {
+                    codes.put(stored.get(code), code);
+                }
+                storedEncoded = true;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = size();
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count++] = value;
+                codes.put(value, code);
+                view = null;
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            int storedSize = stored != null ? stored.size() : 0;
+            return code < storedSize ? stored.get(code) : values[code - storedSize];
+        }
+
+        @Override
+        public int size() {
+            return (stored != null ? stored.size() : 0) + count;
+        }
+
+        @Override
+        public String get(int code) {
+            return decode(code);
+        }
+
+        Dictionary view() {
+            if (frozen) {
+                return this;
+            }
+            if (view == null) {
+                view = new Dictionary(stored, values, count, true);
+            }
+            return view;
+        }
+
+        // Code -> rank of the value in case-insensitive order (equal ranks for values equal ignoring case).
+        int[] ranks() {
+            Integer[] sorted = new Integer[size()];
+            for (int code = 0; code < sorted.length; code++) {
+                sorted[code] = code;
+            }
+            Arrays.sort(sorted, (a, b) -> decode(a).compareToIgnoreCase(decode(b)));
+            int[] res = new int[sorted.length];
+            for (int i = 1; i < sorted.length; i++) {
+                boolean same = decode(sorted[i]).compareToIgnoreCase(decode(sorted[i - 1])) == 0;
+                res[sorted[i]] = same ? res[sorted[i - 1]] : i;
+            }
+            return res;
+        }
+    }
+
+    // Strings of a memory-mapped dictionary: UTF-8 bytes, value i is at [offsets[i], offsets[i + 1]).
+    private static final class StoredStrings implements StringTable {
+        private final IntBuffer offsets;
+        private final ByteBuffer bytes;
+
+        StoredStrings(IntBuffer offsets, ByteBuffer bytes) {
+            this.offsets = offsets;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int size() {
+            return offsets.capacity() - 1;
+        }
+
+        @Override
+        public String get(int index) {
+            int from = offsets.get(index);
+            byte[] value = new byte[offsets.get(index + 1) - from];
+            ByteBuffer view = bytes.duplicate();
+            view.position(from);
+            view.get(value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Binary columnar table file. Columns are memory-mapped read-only with FileChannel.map(), so a mapped
+     * table costs no loading and the OS page cache holds it once for all processes that map it. Only null
+     * and long row bitmaps (1 bit per row) are copied to the heap. Each section must be under 2 GB.
+     * Layout (little-endian, sections aligned to 8 bytes):
+     * - header: magic, version, row count, column count, directory length (ints);
+     * - directory, per column: name (int length + UTF-8), type, dictionary size (ints),
+     * offsets of values, null bitmap (-1 if no nulls), dictionary (-1 if not strings), long values
+     * and long row bitmap (both -1 if not a double column with long rows) (longs);
+     * - values: longs, doubles or int dictionary codes, one per row;
+     * - null bitmap: longs, bit set for rows with a value;
+     * - dictionary: (size + 1) int offsets into the UTF-8 bytes that follow them;
+     * - long values: exact longs of a double column, one per row (0 for double rows);
+     * - long row bitmap: longs, bit set for rows with a long value.
+     * Version 1 files have no long values and long row bitmaps and are still mapped.
+     */
+    private static final class TableFile {
+        private static final int MAGIC = 0x544C5153; // "SQLT"
+        private static final int VERSION = 2;
+        private static final int OFFSETS = 5;
+        private static final int HEADER_SIZE = 5 * 4;
+        private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+        static void write(DataSet ds, Path file) throws IOException {
+            int rowCount = ds.size();
+            int columnCount = ds.schema().size();
+            byte[][] names = new byte[columnCount][];
+            byte[][][] dictionaries = new byte[columnCount][][];
+            long[] offsets = new long[OFFSETS * columnCount];
+            int directorySize = 0;
+            for (int i = 0; i < columnCount; i++) {
+                names[i] = ds.schema().name(i).getBytes(StandardCharsets.UTF_8);
+                directorySize += 4 + names[i].length + 2 * 4 + OFFSETS * 8;
+            }
+            long position = align(HEADER_SIZE + directorySize);
+            for (int i = 0; i < columnCount; i++) {
+                Column column = ds.column(i);
+                int at = OFFSETS * i;
+                offsets[at] = position;
+                position = align(position + (long) rowCount * (column.type() == ColumnType.STRING ? 4 : 8));
+                offsets[at + 1] = column.hasNulls(rowCount) ? position : -1;
+                position = column.hasNulls(rowCount) ? position + bitmapWords(rowCount) * 8L : position;
+                offsets[at + 2] = -1;
+                if (column.type() == ColumnType.STRING) {
+                    Dictionary dictionary = ((StringColumn) column).dictionary();
+                    dictionaries[i] = new byte[dictionary.size()][];
+                    long bytes = 0;
+                    for (int code = 0; code < dictionaries[i].length; code++) {
+                        dictionaries[i][code] = dictionary.decode(code).getBytes(StandardCharsets.UTF_8);
+                        bytes += dictionaries[i][code].length;
+                    }
+                    if (bytes > Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException("Strings of column '" + ds.schema().name(i)
+                                + "' exceed 2 GB");
+                    }
+                    offsets[at + 2] = position;
+                    position = align(align(position + 4L * (dictionaries[i].length + 1)) + bytes);
+                }
+                boolean longs = column instanceof DoubleColumn && ((DoubleColumn) column).hasLongs();
+                offsets[at + 3] = longs ? position : -1;
+                offsets[at + 4] = longs ? position + rowCount * 8L : -1;
+                position = longs ? position + rowCount * 8L + bitmapWords(rowCount) * 8L : position;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 Output out = new Output(channel)) {
+                out.putInt(MAGIC).putInt(VERSION).putInt(rowCount).putInt(columnCount).putInt(directorySize);
+                for (int i = 0; i < columnCount; i++) {
+                    out.putInt(names[i].length).put(names[i]);
+                    out.putInt(ds.column(i).type().ordinal());
+                    out.putInt(dictionaries[i] != null ? dictionaries[i].length : 0);
+                    for (int k = 0; k < OFFSETS; k++) {
+                        out.putLong(offsets[OFFSETS * i + k]);
+                    }
+                }
+                for (int i = 0; i < columnCount; i++) {
+                    writeColumn(out, ds.column(i), rowCount, offsets[OFFSETS * i + 1] >= 0, dictionaries[i]);
+                }
+            }
+        }
+
+        private static void writeColumn(Output out, Column column, int rowCount, boolean hasNulls,
+                                        byte[][] dictionary) throws IOException {
+            out.align();
+            for (int row = 0; row < rowCount; row++) {
+                boolean absent = column.isNull(row);
+                if (column.type() == ColumnType.LONG) {
+                    out.putLong(absent ? 0 : ((LongColumn) column).getLong(row));
+                } else if (column.type() == ColumnType.DOUBLE) {
+                    out.putDouble(absent ? 0 : ((DoubleColumn) column).getDouble(row));
+                } else {
+                    out.putInt(absent ? 0 : ((StringColumn) column).getCode(row));
+                }
+            }
+            out.align();
+            if (hasNulls) {
+                long[] words = Arrays.copyOf(column.present.toLongArray(), bitmapWords(rowCount));
+                for (long word : words) {
+                    out.putLong(word);
+                }
+            }
+            if (dictionary != null) {
+                int offset = 0;
+                out.putInt(offset);
+                for (byte[] value : dictionary) {
+                    offset += value.length;
+                    out.putInt(offset);
+                }
+                out.align();
+                for (byte[] value : dictionary) {
+                    out.put(value);
+                }
+                out.align();
+            }
+            if (column instanceof DoubleColumn && ((DoubleColumn) column).hasLongs()) {
+                DoubleColumn doubles = (DoubleColumn) column;
+                for (int row = 0; row < rowCount; row++) {
+                    out.putLong(doubles.isLong(row) ? doubles.getLong(row) : 0);
+                }
+                for (long word : Arrays.copyOf(doubles.longRows().toLongArray(), bitmapWords(rowCount))) {
+                    out.putLong(word);
+                }
+            }
+        }
+
+        static DataSet map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = read(channel, 0, HEADER_SIZE);
+                if (header.getInt() != MAGIC) {
+                    throw new IOException("Not a table file: " + file);
+                }
+                int version = header.getInt();
+                if (version != 1 && version != VERSION) {
+                    throw new IOException("Unsupported table file version " + version + ": " + file);
+                }
+                int rowCount = header.getInt();
+                int columnCount = header.getInt();
+                ByteBuffer directory = read(channel, HEADER_SIZE, header.getInt());
+
+                Map<String, Column> columns = new LinkedHashMap<>();
+                for (int i = 0; i < columnCount; i++) {
+                    byte[] name = new byte[directory.getInt()];
+                    directory.get(name);
+                    ColumnType type = ColumnType.values()[directory.getInt()];
+                    int dictionarySize = directory.getInt();
+                    long valuesOffset = directory.getLong();
+                    long bitmapOffset = directory.getLong();
+                    long dictionaryOffset = directory.getLong();
+                    long longsOffset = version > 1 ? directory.getLong() : -1;
+                    long longRowsOffset = version > 1 ? directory.getLong() : -1;
+
+                    Column column;
+                    if (type == ColumnType.LONG) {
+                        column = new LongColumn(map(channel, valuesOffset, rowCount * 8L).asLongBuffer());
+                    } else if (type == ColumnType.DOUBLE) {
+                        column = new DoubleColumn(map(channel, valuesOffset, rowCount * 8L).asDoubleBuffer(),
+                                longsOffset >= 0 ? map(channel, longsOffset, rowCount * 8L).asLongBuffer() : null,
+                                longRowsOffset >= 0 ? Bits.valueOf(map(channel, longRowsOffset,
+                                        bitmapWords(rowCount) * 8L).asLongBuffer()) : null);
+                    } else {
+                        long bytesOffset = align(dictionaryOffset + 4L * (dictionarySize + 1));
+                        IntBuffer offsets = map(channel, dictionaryOffset, 4L * (dictionarySize + 1)).asIntBuffer();
+                        ByteBuffer bytes = map(channel, bytesOffset, offsets.get(dictionarySize));
+                        column = new StringColumn(map(channel, valuesOffset, rowCount * 4L).asIntBuffer(),
+                                Dictionary.frozen(new StoredStrings(offsets, bytes)));
+                    }
+                    if (bitmapOffset >= 0) {
+                        column.present.or(Bits.valueOf(map(channel, bitmapOffset,
+                                bitmapWords(rowCount) * 8L).asLongBuffer()));
+                    } else {
+                        column.present.set(0, rowCount);
+                    }
+                    columns.put(new String(name, StandardCharsets.UTF_8), column);
+                }
+                return DataSet.readOnly(columns, rowCount);
+            }
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+            ByteBuffer res = ByteBuffer.allocate(size).order(ORDER);
+            while (res.hasRemaining()) {
+                if (channel.read(res, position + res.position()) < 0) {
+                    throw new IOException("Unexpected end of table file");
+                }
+            }
+            res.flip();
+            return res;
+        }
+
+        private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ORDER);
+        }
+
+        private static int bitmapWords(int rowCount) {
+            return (rowCount + 63) / 64;
+        }
+
+        private static long align(long position) {
+            return (position + 7) & ~7L;
+        }
+
+        // Buffered sequential writer.
+        private static final class Output implements AutoCloseable {
+            private final FileChannel channel;
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ORDER);
+            private long position;
+
+            Output(FileChannel channel) {
+                this.channel = channel;
+            }
+
+            Output putInt(int value) throws IOException {
+                ensure(4).putInt(value);
+                position += 4;
+                return this;
+            }
+
+            Output putLong(long value) throws IOException {
+                ensure(8).putLong(value);
+                position += 8;
+                return this;
+            }
+
+            Output putDouble(double value) throws IOException {
+                ensure(8).putDouble(value);
+                position += 8;
+                return this;
+            }
+
+            Output put(byte[] bytes) throws IOException {
+                for (int from = 0; from < bytes.length; ) {
+                    int count = Math.min(bytes.length - from, ensure(1).remaining());
+                    buffer.put(bytes, from, count);
+                    from += count;
+                }
+                position += bytes.length;
+                return this;
+            }
+
+            void align() throws IOException {
+                while (position % 8 != 0) {
+                    ensure(1).put((byte) 0);
+                    position++;
+                }
+            }
+
+            private ByteBuffer ensure(int bytes) throws IOException {
+                if (buffer.remaining() < bytes) {
+                    flush();
+                }
+                return buffer;
+            }
+
+            private void flush() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }
+    }
+
+    public enum IndexType {
+        /**
+         * Point lookups only.
+         */
+        HASH,
+        /**
+         * Point and range lookups.
+         */
+        SORTED
+    }
+
+    /**
+     * Secondary index on one column: value -> ascending row numbers. Kept up to date by DataSet setters.
+     * Snapshots share the index with the table and read only rows below their row count: appending rows
+     * only adds larger row numbers, and the table copies a shared index before changing an earlier row.
+     */
+    private static abstract class Index {
+        final IndexType type;
+        // Referenced by a snapshot
+        boolean shared;
+
+        Index(IndexType type) {
+            this.type = type;
+        }
+
+        abstract void add(Object value, int row);
+
+        abstract void remove(Object value, int row);
+
+        // Live list of rows with value equal to key (ascending), null if none.
+        abstract RowList get(Object key);
+
+        // Same entries in new lists.
+        abstract Index copy();
+
+        // Rows (ascending) with value in relation 'op' to key (column op key), or null if the index can't answer.
+        abstract IntList lookup(Operator op, Object key);
+
+        boolean supports(Operator op) {
+            return op == Operator.EQ || type == IndexType.SORTED && op != Operator.NE;
+        }
+
+        void update(int row, Object oldValue, Object newValue) {
+            if (oldValue != null) {
+                remove(oldValue, row);
+            }
+            add(newValue, row);
+        }
+
+        // Key normalized so that values equal by '=' semantics are equal as hash keys:
+        // integral doubles collapse to longs, strings are compared ignoring case.
+        static Object hashKey(Object value) {
+            if (value instanceof Double) {
+                double d = (Double) value;
+                long l = (long) d;
+                return d == (double) l ? (Object) l : value;
+            } else if (value instanceof String) {
+                String s = (String) value;
+                StringBuilder sb = new StringBuilder(s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    sb.append(Character.toLowerCase(Character.toUpperCase(s.charAt(i))));
+                }
+                return sb.toString();
+            }
+            return value;
+        }
+
+        // Order consistent with comparison operators: numbers by value, strings ignoring case.
+        static int compare(Object a, Object b) {
+            if (a instanceof String) {
+                return ((String) a).compareToIgnoreCase((String) b);
+            } else if (a instanceof Long && b instanceof Long) {
+                return Long.compare((Long) a, (Long) b);
+            }
+            double x = ((Number) a).doubleValue();
+            double y = ((Number) b).doubleValue();
+            return x < y ? -1 : x > y ? 1 : 0;
+        }
+    }
+
+    private static final class HashIndex extends Index {
+        private final Map<Object, RowList> rows = new ConcurrentHashMap<>();
+
+        HashIndex() {
+            super(IndexType.HASH);
+        }
+
+        @Override
+        void add(Object value, int row) {
+            rows.computeIfAbsent(hashKey(value), k -> new RowList()).insertSorted(row);
+        }
+
+        @Override
+        void remove(Object value, int row) {
+            Object key = hashKey(value);
+            RowList list = rows.get(key);
+            if (list != null && list.remove(row) && list.size() == 0) {
+                rows.remove(key);
+            }
+        }
+
+        @Override
+        IntList lookup(Operator op, Object key) {
+            if (op != Operator.EQ) {
+                return null;
+            }
+            RowList list = rows.get(hashKey(key));
+            IntList res = new IntList();
+            if (list != null) {
+                list.copyTo(res, Integer.MAX_VALUE);
+            }
+            return res;
+        }
+
+        @Override
+        RowList get(Object key) {
+            return rows.get(hashKey(key));
+        }
+
+        @Override
+        Index copy() {
+            HashIndex res = new HashIndex();
+            for (Map.Entry<Object, RowList> entry : rows.entrySet()) {
+                res.rows.put(entry.getKey(), entry.getValue().copy());
+            }
+            return res;
+        }
+    }
+
+    private static final class SortedIndex extends Index {
+        private final ConcurrentSkipListMap<Object, RowList> rows = new ConcurrentSkipListMap<>(Index::compare);
+
+        SortedIndex() {
+            super(IndexType.SORTED);
+        }
+
+        @Override
+        void add(Object value, int row) {
+            rows.computeIfAbsent(value, k -> new RowList()).insertSorted(row);
+        }
+
+        @Override
+        void remove(Object value, int row) {
+            RowList list = rows.get(value);
+            if (list != null && list.remove(row) && list.size() == 0) {
+                rows.remove(value);
+            }
+        }
+
+        @Override
+        IntList lookup(Operator op, Object key) {
+            Map<Object, RowList> range;
+            switch (op) {
+                case EQ:
+                    RowList list = rows.get(key);
+                    range = list != null ? Collections.singletonMap(key, list) : Collections.emptyMap();
+                    break;
+                case LT:
+                    range = rows.headMap(key, false);
+                    break;
+                case LE:
+                    range = rows.headMap(key, true);
+                    break;
+                case GT:
+                    range = rows.tailMap(key, false);
+                    break;
+                case GE:
+                    range = rows.tailMap(key, true);
+                    break;
+                default:
+                    return null;
+            }
+            IntList res = new IntList();
+            for (RowList values : range.values()) {
+                values.copyTo(res, Integer.MAX_VALUE);
+            }
+            res.sort();
+            return res;
+        }
+
+        @Override
+        RowList get(Object key) {
+            return rows.get(key);
+        }
+
+        @Override
+        Index copy() {
+            SortedIndex res = new SortedIndex();
+            for (Map.Entry<Object, RowList> entry : rows.entrySet()) {
+                res.rows.put(entry.getKey(), entry.getValue().copy());
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Ascending rows of an index entry, changed by one writer (under the table lock) while snapshots read it.
+     * Rows are stored before the size is published, and inserting or removing a row only moves larger rows,
+     * so a reader sees every row below the row count of its snapshot.
+     */
+    private static final class RowList {
+        private volatile int[] values = new int[4];
+        private volatile int size;
+
+        int size() {
+            return size;
+        }
+
+        // Keeps ascending order; appending a value not less than the last one is O(1).
+        void insertSorted(int value) {
+            int[] values = this.values;
+            int size = this.size;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                this.values = values;
+            }
+            int pos = size;
+            if (size > 0 && values[size - 1] > value) {
+                pos = Arrays.binarySearch(values, 0, size, value);
+                pos = pos >= 0 ? pos : -pos - 1;
+                System.arraycopy(values, pos, values, pos + 1, size - pos);
+            }
+            values[pos] = value;
+            this.size = size + 1;
+        }
+
+        boolean remove(int value) {
+            int[] values = this.values;
+            int size = this.size;
+            int pos = Arrays.binarySearch(values, 0, size, value);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+            this.size = size - 1;
+            return true;
+        }
+
+        // Appends rows less than rowLimit to the list.
+        void copyTo(IntList res, int rowLimit) {
+            int size = this.size;
+            int[] values = this.values;
+            for (int i = 0; i < size && values[i] < rowLimit; i++) {
+                res.add(values[i]);
+            }
+        }
+
+        RowList copy() {
+            RowList res = new RowList();
+            res.values = Arrays.copyOf(values, Math.max(size, 4));
+            res.size = size;
+            return res;
+        }
+    }
+
+    private interface IntComparator {
+        int compare(int a, int b);
+    }
+
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] array() {
+            return values;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        // 0, 1, ..., count-1
+        static IntList range(int count) {
+            IntList res = new IntList();
+            res.values = new int[Math.max(count, 1)];
+            for (int i = 0; i < count; i++) {
+                res.values[i] = i;
+            }
+            res.size = count;
+            return res;
+        }
+
+        void addAll(IntList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        // Removes first occurrence, keeps order of the rest.
+        boolean remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+        // Stable sort by the given order.
+        void sort(IntComparator comparator) {
+            sort(values, new int[size], 0, size, comparator);
+        }
+
+        // Stable sort of values[from, to), buffer is at least as long as values.
+        static void sort(int[] values, int[] buffer, int from, int to, IntComparator comparator) {
+            mergeSort(values, buffer, from, to, comparator);
+        }
+
+        private static void mergeSort(int[] a, int[] buffer, int from, int to, IntComparator comparator) {
+            if (to - from < 2) {
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            mergeSort(a, buffer, from, middle, comparator);
+            mergeSort(a, buffer, middle, to, comparator);
+            if (comparator.compare(a[middle - 1], a[middle]) <= 0) {
+                return;
+            }
+            System.arraycopy(a, from, buffer, from, to - from);
+            int i = from;
+            int j = middle;
+            for (int k = from; k < to; k++) {
+                if (j >= to || i < middle && comparator.compare(buffer[i], buffer[j]) <= 0) {
+                    a[k] = buffer[i++];
+                } else {
+                    a[k] = buffer[j++];
+                }
+            }
+        }
+
+        // Keeps ascending order; appending a value not less than the last one is O(1).
+        void insertSorted(int value) {
+            if (size == 0 || values[size - 1] <= value) {
+                add(value);
+                return;
+            }
+            int pos = Arrays.binarySearch(values, 0, size, value);
+            pos = pos >= 0 ? pos : -pos - 1;
+            add(value);
+            System.arraycopy(values, pos, values, pos + 1, size - pos - 1);
+            values[pos] = value;
+        }
+    }
+
+    private static abstract class SQLItem {
+        Tokenizer tokenizer;
+
+        private SQLItem(Tokenizer tokenizer) {
+            this.tokenizer = tokenizer;
+        }
+
+        public abstract void parse();
+
+        Token nextToken() {
+            return tokenizer.next();
+        }
+
+        Token peekToken() {
+            return tokenizer.peek();
+        }
+
+        protected Token expected(TokenType type) {
+            Token t = tokenizer.next();
+            if (t.type != type) {
+                throw new RuntimeException("Expected token: " + type + ", actual: " + t);
+            }
+            return t;
+        }
+
+        // Column, or aggregate function if followed by '(': function(table.column), COUNT(*).
+        protected SelectItem parseItem() {
+            Token t = expected(TokenType.LITERAL);
+            if (peekToken().type != TokenType.LEFT_PAREN) {
+                return new SelectItem(parseColumnName(t.value()), null);
+            }
+            AggregateFunction function = AggregateFunction.of(t.value());
+            expected(TokenType.LEFT_PAREN);
+            String argument = expected(TokenType.LITERAL).value();
+            expected(TokenType.RIGHT_PAREN);
+            boolean all = function == AggregateFunction.COUNT && argument.equals("*");
+            return new SelectItem(all ? null : parseColumnName(argument), function);
+        }
+
+        protected static String parseColumnName(String value) {
+            String[] items = value.split("\\.");
+            if (items.length != 2 || items[0].trim().length() == 0 || items[1].trim().length() == 0) {
+                throw new RuntimeException("Bad column name: " + value + ". Expected format: table.column");
+            }
+            return value;
+        }
+    }
+
+    private enum Operator {
+        LT("<"), LE("<="), GT(">"), GE(">="), EQ("="), NE("<>");
+
+        final String text;
+
+        Operator(String text) {
+            this.text = text;
+        }
+
+        static Operator of(String text) {
+            for (Operator op : values()) {
+                if (op.text.equals(text)) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unimplemented operation: " + text);
+        }
+
+        // 'a op b' is the same as 'b op.flip() a'
+        Operator flip() {
+            switch (this) {
+                case LT:
+                    return GT;
+                case LE:
+                    return GE;
+                case GT:
+                    return LT;
+                case GE:
+                    return LE;
+                default:
+                    return this;
+            }
+        }
+
+        // Interprets result of compareTo().
+        boolean test(int cmp) {
+            switch (this) {
+                case LT:
+                    return cmp < 0;
+                case LE:
+                    return cmp <= 0;
+                case GT:
+                    return cmp > 0;
+                case GE:
+                    return cmp >= 0;
+                case EQ:
+                    return cmp == 0;
+                default:
+                    return cmp != 0;
+            }
+        }
+    }
+
+    /**
+     * Comparison operand as parsed: a column name, a pre-parsed literal (Long, Double or String)
+     * or a parameter placeholder.
+     */
+    private static final class Operand {
+        final String column;
+        final Object literal;
+        final int parameter;
+
+        private Operand(String column, Object literal, int parameter) {
+            this.column = column;
+            this.literal = literal;
+            this.parameter = parameter;
+        }
+
+        static Operand column(String name) {
+            return new Operand(name, null, -1);
+        }
+
+        static Operand literal(Object value) {
+            return new Operand(null, value, -1);
+        }
+
+        static Operand parameter(int index) {
+            return new Operand(null, null, index);
+        }
+
+        boolean isColumn() {
+            return column != null;
+        }
+
+        @Override
+        public String toString() {
+            return column != null ? column : parameter >= 0 ? "?" + (parameter + 1) : String.valueOf(literal);
+        }
+    }
+
+    /**
+     * Operand resolved against concrete data sets: either a column of the left/right side or a constant.
+     */
+    private static final class BoundOperand {
+        final String name;
+        final Column column;
+        final boolean rightSide;
+        final Object constant;
+
+        BoundOperand(String name, Column column, boolean rightSide, Object constant) {
+            this.name = name;
+            this.column = column;
+            this.rightSide = rightSide;
+            this.constant = constant;
+        }
+
+        boolean isConstant() {
+            return column == null;
+        }
+
+        ColumnType type() {
+            if (column != null) {
+                return column.type();
+            }
+            return constant instanceof Long ?
+                    ColumnType.LONG :
+                    constant instanceof Double ?
+                            ColumnType.DOUBLE :
+                            ColumnType.STRING;
+        }
+
+        String typeName() {
+            switch (type()) {
+                case LONG:
+                    return "Long";
+                case DOUBLE:
+                    return "Double";
+                default:
+                    return "String";
+            }
+        }
+
+        LongValues longValues() {
+            if (column == null) {
+                long value = (Long) constant;
+                return (l, r) -> value;
+            }
+            LongColumn values = (LongColumn) column;
+            return rightSide ?
+                    (l, r) -> values.getLong(r) :
+                    (l, r) -> values.getLong(l);
+        }
+
+        DoubleValues doubleValues() {
+            if (column == null) {
+                double value = ((Number) constant).doubleValue();
+                return (l, r) -> value;
+            }
+            if (column instanceof LongColumn) {
+                LongColumn values = (LongColumn) column;
+                return rightSide ?
+                        (l, r) -> values.getLong(r) :
+                        (l, r) -> values.getLong(l);
+            }
+            DoubleColumn values = (DoubleColumn) column;
+            return rightSide ?
+                    (l, r) -> values.getDouble(r) :
+                    (l, r) -> values.getDouble(l);
+        }
+
+        // Double column with long rows (see DoubleColumn)
+        boolean hasLongRows() {
+            return column instanceof DoubleColumn && ((DoubleColumn) column).hasLongs();
+        }
+
+        NumberValues numberValues() {
+            if (column == null) {
+                boolean isLong = constant instanceof Long;
+                long longValue = ((Number) constant).longValue();
+                double doubleValue = ((Number) constant).doubleValue();
+                return new NumberValues() {
+                    @Override
+                    public boolean isLong(int leftRow, int rightRow) {
+                        return isLong;
+                    }
+
+                    @Override
+                    public long getLong(int leftRow, int rightRow) {
+                        return longValue;
+                    }
+
+                    @Override
+                    public double getDouble(int leftRow, int rightRow) {
+                        return doubleValue;
+                    }
+                };
+            }
+            boolean right = rightSide;
+            if (column instanceof LongColumn) {
+                LongColumn values = (LongColumn) column;
+                return new NumberValues() {
+                    @Override
+                    public boolean isLong(int leftRow, int rightRow) {
+                        return true;
+                    }
+
+                    @Override
+                    public long getLong(int leftRow, int rightRow) {
+                        return values.getLong(right ? rightRow : leftRow);
+                    }
+
+                    @Override
+                    public double getDouble(int leftRow, int rightRow) {
+                        return values.getLong(right ? rightRow : leftRow);
+                    }
+                };
+            }
+            DoubleColumn values = (DoubleColumn) column;
+            return new NumberValues() {
+                @Override
+                public boolean isLong(int leftRow, int rightRow) {
+                    return values.isLong(right ? rightRow : leftRow);
+                }
+
+                @Override
+                public long getLong(int leftRow, int rightRow) {
+                    return values.getLong(right ? rightRow : leftRow);
+                }
+
+                @Override
+                public double getDouble(int leftRow, int rightRow) {
+                    return values.getDouble(right ? rightRow : leftRow);
+                }
+            };
+        }
+
+        StringValues stringValues() {
+            if (column == null) {
+                String value = (String) constant;
+                return (l, r) -> value;
+            }
+            StringColumn values = (StringColumn) column;
+            return rightSide ?
+                    (l, r) -> values.getString(r) :
+                    (l, r) -> values.getString(l);
+        }
+    }
+
+    // Checks a pair of rows: one for the left operand's data, one for the right operand's data.
+    // For a constant operand the caller passes the same row as for the other operand.
+    private interface RowPredicate {
+        boolean test(int leftRow, int rightRow);
+    }
+
+    private interface LongValues {
+        long get(int leftRow, int rightRow);
+    }
+
+    private interface DoubleValues {
+        double get(int leftRow, int rightRow);
+    }
+
+    private interface StringValues {
+        String get(int leftRow, int rightRow);
+    }
+
+    // Value of a numeric operand that may be a long or a double row by row.
+    private interface NumberValues {
+        boolean isLong(int leftRow, int rightRow);
+
+        long getLong(int leftRow, int rightRow);
+
+        double getDouble(int leftRow, int rightRow);
+    }
+
+    private static class Comparison extends SQLItem {
+        private Operand leftOperand;
+        private Operand rightOperand;
+        private Operator operation;
+
+        public Comparison(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        public Comparison(String leftOperand, String rightOperand, String operation) {
+            super(null);
+            this.leftOperand = toOperand(leftOperand);
+            this.rightOperand = toOperand(rightOperand);
+            this.operation = Operator.of(operation);
+        }
+
+        @Override
+        public void parse() {
+            leftOperand = parseOperand();
+            operation = Operator.of(expected(TokenType.COMPARISON).value());
+            rightOperand = parseOperand();
+        }
+
+        private Operand parseOperand() {
+            Token t = nextToken();
+            if (t.type == TokenType.PARAMETER) {
+                return Operand.parameter(tokenizer.parameterCount++);
+            } else if (t.type == TokenType.LITERAL || t.type == TokenType.QUOTED_LITERAL) {
+                return toOperand(t.value());
+            } else {
+                throw new RuntimeException("Comparison: expected literal, quoted literal or '?'. Found: " + t);
+            }
+        }
+
+        // Literals are parsed here once, not on every row.
+        private Operand toOperand(String value) {
+            if (isColumn(value)) {
+                return Operand.column(value);
+            }
+            return Operand.literal(isNumber(value) ? toNumber(value) : unQuote(value));
+        }
+
+        /**
+         * Compiles the comparison: left operand's column is taken from 'left', right operand's one from 'right'
+         * (the same data set for a single table). Column references are resolved and the predicate is specialized
+         * by operand types, so a row check neither allocates nor looks up names.
+         */
+        RowPredicate compile(DataSet left, DataSet right, Object[] params) {
+            BoundOperand a = bind(leftOperand, left, false, params);
+            BoundOperand b = bind(rightOperand, right, true, params);
+            if (a == null || b == null) {
+                return fail("Not found column " + (a == null ? leftOperand : rightOperand) + " in result set");
+            }
+            if (a.isConstant() && b.isConstant()) {
+                boolean result = compile(a, b).test(0, 0);
+                return (l, r) -> result;
+            }
+            return withNullCheck(compile(a, b), a, b, left, right);
+        }
+
+        private RowPredicate compile(BoundOperand a, BoundOperand b) {
+            ColumnType aType = a.type();
+            ColumnType bType = b.type();
+            if (aType == ColumnType.LONG && bType == ColumnType.LONG) {
+                return compareLongs(a, b);
+            } else if (aType != ColumnType.STRING && bType != ColumnType.STRING) {
+                return a.hasLongRows() || b.hasLongRows() ? compareNumbers(a, b) : compareDoubles(a, b);
+            } else if (aType == ColumnType.STRING && bType == ColumnType.STRING) {
+                return compareStrings(a, b);
+            }
+            return fail("Comparison: incompatible operand types: " + a.typeName() + " and " + b.typeName());
+        }
+
+        // Null if column is not found.
+        private BoundOperand bind(Operand operand, DataSet data, boolean rightSide, Object[] params) {
+            if (operand.parameter >= 0) {
+                return new BoundOperand(operand.toString(), null, rightSide, params[operand.parameter]);
+            } else if (!operand.isColumn()) {
+                return new BoundOperand(operand.toString(), null, rightSide, operand.literal);
+            }
+            Column column = data.column(operand.column);
+            return column != null ? new BoundOperand(operand.column, column, rightSide, null) : null;
+        }
+
+        private RowPredicate compareLongs(BoundOperand a, BoundOperand b) {
+            if (!a.isConstant() && b.isConstant()) {
+                return compareLongColumn((LongColumn) a.column, operation, (Long) b.constant);
+            } else if (a.isConstant() && !b.isConstant()) {
+                return compareLongColumn((LongColumn) b.column, operation.flip(), (Long) a.constant);
+            }
+            LongValues x = a.longValues();
+            LongValues y = b.longValues();
+            switch (operation) {
+                case LT:
+                    return (l, r) -> x.get(l, r) < y.get(l, r);
+                case LE:
+                    return (l, r) -> x.get(l, r) <= y.get(l, r);
+                case GT:
+                    return (l, r) -> x.get(l, r) > y.get(l, r);
+                case GE:
+                    return (l, r) -> x.get(l, r) >= y.get(l, r);
+                case EQ:
+                    return (l, r) -> x.get(l, r) == y.get(l, r);
+                default:
+                    return (l, r) -> x.get(l, r) != y.get(l, r);
+            }
+        }
+
+        // The hot WHERE case: long column vs constant (the column's row is passed for both operands).
+        private static RowPredicate compareLongColumn(LongColumn column, Operator op, long value) {
+            switch (op) {
+                case LT:
+                    return (l, r) -> column.getLong(l) < value;
+                case LE:
+                    return (l, r) -> column.getLong(l) <= value;
+                case GT:
+                    return (l, r) -> column.getLong(l) > value;
+                case GE:
+                    return (l, r) -> column.getLong(l) >= value;
+                case EQ:
+                    return (l, r) -> column.getLong(l) == value;
+                default:
+                    return (l, r) -> column.getLong(l) != value;
+            }
+        }
+
+        private RowPredicate compareDoubles(BoundOperand a, BoundOperand b) {
+            if (a.column instanceof DoubleColumn && b.isConstant()) {
+                return compareDoubleColumn((DoubleColumn) a.column, operation, ((Number) b.constant).doubleValue());
+            } else if (a.isConstant() && b.column instanceof DoubleColumn) {
+                return compareDoubleColumn((DoubleColumn) b.column, operation.flip(),
+                        ((Number) a.constant).doubleValue());
+            }
+            DoubleValues x = a.doubleValues();
+            DoubleValues y = b.doubleValues();
+            switch (operation) {
+                case LT:
+                    return (l, r) -> x.get(l, r) < y.get(l, r);
+                case LE:
+                    return (l, r) -> x.get(l, r) <= y.get(l, r);
+                case GT:
+                    return (l, r) -> x.get(l, r) > y.get(l, r);
+                case GE:
+                    return (l, r) -> x.get(l, r) >= y.get(l, r);
+                case EQ:
+                    return (l, r) -> x.get(l, r) == y.get(l, r);
+                default:
+                    return (l, r) -> x.get(l, r) != y.get(l, r);
+            }
+        }
+
+        // Long values compare exactly, as two Longs, a long and a double compare as doubles.
+        private RowPredicate compareNumbers(BoundOperand a, BoundOperand b) {
+            NumberValues x = a.numberValues();
+            NumberValues y = b.numberValues();
+            Operator op = operation;
+            return (l, r) -> x.isLong(l, r) && y.isLong(l, r) ?
+                    op.test(Long.compare(x.getLong(l, r), y.getLong(l, r))) :
+                    testDoubles(op, x.getDouble(l, r), y.getDouble(l, r));
+        }
+
+        private static boolean testDoubles(Operator op, double x, double y) {
+            switch (op) {
+                case LT:
+                    return x < y;
+                case LE:
+                    return x <= y;
+                case GT:
+                    return x > y;
+                case GE:
+                    return x >= y;
+                case EQ:
+                    return x == y;
+                default:
+                    return x != y;
+            }
+        }
+
+        private static RowPredicate compareDoubleColumn(DoubleColumn column, Operator op, double value) {
+            switch (op) {
+                case LT:
+                    return (l, r) -> column.getDouble(l) < value;
+                case LE:
+                    return (l, r) -> column.getDouble(l) <= value;
+                case GT:
+                    return (l, r) -> column.getDouble(l) > value;
+                case GE:
+                    return (l, r) -> column.getDouble(l) >= value;
+                case EQ:
+                    return (l, r) -> column.getDouble(l) == value;
+                default:
+                    return (l, r) -> column.getDouble(l) != value;
+            }
+        }
+
+        private RowPredicate compareStrings(BoundOperand a, BoundOperand b) {
+            if (!a.isConstant() && b.isConstant()) {
+                return compareStringColumn((StringColumn) a.column, operation, (String) b.constant);
+            } else if (a.isConstant() && !b.isConstant()) {
+                return compareStringColumn((StringColumn) b.column, operation.flip(), (String) a.constant);
+            }
+            StringValues x = a.stringValues();
+            StringValues y = b.stringValues();
+            Operator op = operation;
+            return (l, r) -> op.test(x.get(l, r).compareToIgnoreCase(y.get(l, r)));
+        }
+
+        // String column vs constant is evaluated once per dictionary entry, rows only look up the code.
+        private static RowPredicate compareStringColumn(StringColumn column, Operator op, String value) {
+            Dictionary dictionary = column.dictionary();
+            boolean[] matches = new boolean[dictionary.size()];
+            for (int code = 0; code < matches.length; code++) {
+                matches[code] = op.test(dictionary.decode(code).compareToIgnoreCase(value));
+            }
+            return (l, r) -> {
+                int code = column.getCode(l);
+                return code < matches.length ?
+                        matches[code] :
+                        op.test(dictionary.decode(code).compareToIgnoreCase(value));
+            };
+        }
+
+        private static RowPredicate fail(String message) {
+            return (l, r) -> {
+                throw new RuntimeException(message);
+            };
+        }
+
+        // Absent values can't be compared; the check is added only for columns that really have gaps.
+        private static RowPredicate withNullCheck(RowPredicate predicate, BoundOperand a, BoundOperand b,
+                                                  DataSet left, DataSet right) {
+            for (BoundOperand operand : new BoundOperand[]{a, b}) {
+                if (operand.isConstant()) {
+                    continue;
+                }
+                int size = operand.rightSide ? right.size() : left.size();
+                if (operand.column.hasNulls(size)) {
+                    RowPredicate inner = predicate;
+                    Column column = operand.column;
+                    boolean rightSide = operand.rightSide;
+                    String message = "Not found column " + operand.name + " in result set";
+                    predicate = (l, r) -> {
+                        if (column.isNull(rightSide ? r : l)) {
+                            throw new RuntimeException(message);
+                        }
+                        return inner.test(l, r);
+                    };
+                }
+            }
+            return predicate;
+        }
+
+        /**
+         * Rows of ds (ascending) matching 'column op constant' found by the column's index,
+         * or null if there is no suitable index and ds has to be scanned.
+         */
+        IntList lookup(DataSet ds, Object[] params) {
+            Operand column = leftOperand;
+            Operand constant = rightOperand;
+            Operator op = operation;
+            if (!column.isColumn()) {
+                column = rightOperand;
+                constant = leftOperand;
+                op = operation.flip();
+            }
+            if (!column.isColumn() || constant.isColumn()) {
+                return null;
+            }
+            Index index = ds.index(column.column);
+            Column values = ds.column(column.column);
+            if (index == null || values == null || !index.supports(op) || values.hasNulls(ds.size())) {
+                return null;
+            }
+            Object key = constant.parameter >= 0 ? params[constant.parameter] : constant.literal;
+            if ((values.type() == ColumnType.STRING) != (key instanceof String)) {
+                return null; // scan reports incompatible types
+            }
+            IntList rows = index.lookup(op, key);
+            if (rows == null) {
+                return null;
+            }
+            IntList res = new IntList();
+            for (int i = 0; i < rows.size() && rows.get(i) < ds.size(); i++) {
+                res.add(rows.get(i));
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return format(leftOperand) + " " + operation.text + " " + format(rightOperand);
+        }
+
+        private static String format(Operand operand) {
+            return operand.literal instanceof String ?
+                    "'" + ((String) operand.literal).replace("'", "''") + "'" :
+                    operand.toString();
+        }
+
+        // Guessed fraction of rows passing the condition, used to order joins.
+        double selectivity() {
+            switch (operation) {
+                case EQ:
+                    return leftOperand.isColumn() && rightOperand.isColumn() ? 0.5 : 0.1;
+                case NE:
+                    return 0.9;
+                default:
+                    return leftOperand.isColumn() && rightOperand.isColumn() ? 0.5 : 0.3;
+            }
+        }
+
+        List<String> columns() {
+            List<String> res = new ArrayList<>();
+            for (Operand operand : new Operand[]{leftOperand, rightOperand}) {
+                if (operand.isColumn()) {
+                    res.add(operand.column);
+                }
+            }
+            return res;
+        }
+
+        Set<String> tables() {
+            Set<String> res = new HashSet<>();
+            for (String column : columns()) {
+                res.add(column.substring(0, column.indexOf('.')));
+            }
+            return res;
+        }
+
+        private String unQuote(String s) {
+            if (s.startsWith("'") && s.endsWith("'")) {
+                String res = s.substring(1, s.length() - 1);
+                res = res.replace("''", "'");
+                return res;
+            } else {
+                throw new RuntimeException("Expected quoted literal: " + s);
+            }
+        }
+
+        private boolean isColumn(String s) {
+            boolean hasQuotes = s.contains("'") || s.contains("\"");
+            boolean containsDot = s.indexOf('.') > 0 && s.indexOf('.') < s.length();
+            boolean number = isNumber(s);
+            return !hasQuotes && !number && containsDot;
+        }
+
+        private boolean isNumber(String s) {
+            // Column names would fail below with an exception, which is slow on long statements
+            // ("NaN" and "Infinity" are the only numbers starting with a letter).
+            char first = s.isEmpty() ? ' ' : s.charAt(0);
+            if (Character.isLetter(first) && first != 'N' && first != 'I') {
+                return false;
+            }
+            try {
+                double d = Double.parseDouble(s);
+                return true;
+            } catch (Exception ignore) {
+                return false;
+            }
+        }
+
+        // Integers are parsed as longs, so literals above 2^53 keep their exact value.
+        private Number toNumber(String s) {
+            if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0
+                    && s.indexOf('N') < 0 && s.indexOf('I') < 0) {
+                try {
+                    return Long.parseLong(s);
+                } catch (NumberFormatException ignore) {
+                    // beyond the long range, or a Java suffix like "1d"
+                }
+            }
+            double d = Double.parseDouble(s);
+            long l = (long) d;
+            if (d != (double) l) return d;
+            return l;
+        }
+    }
+
+
+    private static class Where extends SQLItem {
+        private Comparison comparison = null;
+
+        private Where(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        @Override
+        public void parse() {
+            expected(TokenType.WHERE);
+            comparison = new Comparison(tokenizer);
+            comparison.parse();
+        }
+    }
+
+    private static class Join extends SQLItem {
+        private Comparison comparison;
+        private String table;
+
+        private Join(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        @Override
+        public void parse() {
+            expected(TokenType.JOIN);
+            table = expected(TokenType.LITERAL).value();
+            expected(TokenType.ON);
+            comparison = new Comparison(tokenizer);
+            comparison.parse();
+        }
+    }
+
+    private static class From extends SQLItem {
+        private List<Join> joins = new ArrayList<>();
+        private String table;
+
+        private From(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        // FROM table and joined tables in written order.
+        private List<String> tables() {
+            List<String> res = new ArrayList<>();
+            res.add(table);
+            for (Join join : joins) {
+                res.add(join.table);
+            }
+            return res;
+        }
+
+        @Override
+        public void parse() {
+            expected(TokenType.FROM);
+            table = expected(TokenType.LITERAL).value();
+            while (peekToken().type == TokenType.JOIN) {
+                Join join = new Join(tokenizer);
+                join.parse();
+                joins.add(join);
+            }
+        }
+    }
+
+    private enum AggregateFunction {
+        COUNT, SUM, AVG, MIN, MAX;
+
+        static AggregateFunction of(String name) {
+            for (AggregateFunction function : values()) {
+                if (function.name().equalsIgnoreCase(name)) {
+                    return function;
+                }
+            }
+            throw new RuntimeException("Unknown aggregate function: " + name);
+        }
+    }
+
+    // Selected column or aggregate function of a column (of all rows for COUNT(*)).
+    private static final class SelectItem {
+        final String column;
+        final AggregateFunction function;
+
+        SelectItem(String column, AggregateFunction function) {
+            this.column = column;
+            this.function = function;
+        }
+
+        boolean isAggregate() {
+            return function != null;
+        }
+
+        // Result column name: table.column or function(table.column)
+        String name() {
+            if (function == null) {
+                return column;
+            }
+            return function.name().toLowerCase() + "(" + (column != null ? column : "*") + ")";
+        }
+    }
+
+    private static class Select extends SQLItem {
+        // Plain columns
+        private List<String> columns = new ArrayList<>();
+        // Plain columns and aggregates in written order
+        private List<SelectItem> items = new ArrayList<>();
+
+        private Select(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        boolean hasAggregates() {
+            for (SelectItem item : items) {
+                if (item.isAggregate()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void parse() {
+            expected(TokenType.SELECT);
+            while (peekToken().type == TokenType.LITERAL) {
+                SelectItem item = parseItem();
+                if (!item.isAggregate()) {
+                    columns.add(item.column);
+                }
+                items.add(item);
+            }
+            if (items.size() == 0) {
+                throw new RuntimeException("Select: expected at least 1 column name");
+            }
+        }
+    }
+
+    private static class GroupBy extends SQLItem {
+        private List<String> columns = new ArrayList<>();
+
+        private GroupBy(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        @Override
+        public void parse() {
+            expected(TokenType.GROUP);
+            expected(TokenType.BY);
+            while (peekToken().type == TokenType.LITERAL) {
+                columns.add(parseColumnName(nextToken().value()));
+            }
+            if (columns.size() == 0) {
+                throw new RuntimeException("Group by: expected at least 1 column name");
+            }
+        }
+    }
+
+    /**
+     * ORDER BY item [ASC | DESC], ... [LIMIT n], or just LIMIT n (first rows in the unsorted order).
+     * Items are columns, or for aggregate queries the selected items (e.g. COUNT(*)).
+     */
+    private static class OrderBy extends SQLItem {
+        private List<SelectItem> items = new ArrayList<>();
+        private List<Boolean> descending = new ArrayList<>();
+        // -1 if no LIMIT
+        private int limit = -1;
+
+        private OrderBy(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        @Override
+        public void parse() {
+            if (peekToken().type == TokenType.ORDER) {
+                nextToken();
+                expected(TokenType.BY);
+                while (peekToken().type == TokenType.LITERAL) {
+                    items.add(parseItem());
+                    TokenType direction = peekToken().type;
+                    if (direction == TokenType.ASC || direction == TokenType.DESC) {
+                        nextToken();
+                    }
+                    descending.add(direction == TokenType.DESC);
+                }
+                if (items.size() == 0) {
+                    throw new RuntimeException("Order by: expected at least 1 column name");
+                }
+            }
+            if (peekToken().type == TokenType.LIMIT) {
+                nextToken();
+                String value = expected(TokenType.LITERAL).value();
+                try {
+                    limit = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (limit < 0) {
+                    throw new RuntimeException("Limit: expected non-negative integer, found: " + value);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            List<String> res = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                res.add(items.get(i).name() + (descending.get(i) ? " desc" : ""));
+            }
+            return (String.join(", ", res) + (limit >= 0 ? " limit " + limit : "")).trim();
+        }
+    }
+
+    private static class Query extends SQLItem {
+        // EXPLAIN [ANALYZE] prefix: the result is the query plan
+        private boolean explain;
+        private boolean analyze;
+        private Select select;
         private From from;
         private Where where;
+        private GroupBy groupBy;
+        private OrderBy orderBy;
+
+        public Query(Tokenizer tokenizer) {
+            super(tokenizer);
+        }
+
+        public DataSet execute(Context context) {
+            return new Planner(this, context, false).plan().execute(context);
+        }
+
+        public Cursor stream(Context context) {
+            return new Planner(this, context, true).plan().stream(context);
+        }
+
+        // Plans the query without running it (the operators are added to the context's profile).
+        public void plan(Context context) {
+            new Planner(this, context, false).plan();
+        }
+
+        @Override
+        public void parse() {
+            if (peekToken().type == TokenType.EXPLAIN) {
+                nextToken();
+                explain = true;
+                if (peekToken().type == TokenType.ANALYZE) {
+                    nextToken();
+                    analyze = true;
+                }
+            }
+            select = new Select(tokenizer);
+            select.parse();
+            from = new From(tokenizer);
+            from.parse();
+            if (peekToken().type == TokenType.WHERE) {
+                where = new Where(tokenizer);
+                where.parse();
+            }
+            if (peekToken().type == TokenType.GROUP) {
+                groupBy = new GroupBy(tokenizer);
+                groupBy.parse();
+            }
+            if (peekToken().type == TokenType.ORDER || peekToken().type == TokenType.LIMIT) {
+                orderBy = new OrderBy(tokenizer);
+                orderBy.parse();
+            }
+            if (isAggregate()) {
+                for (String column : select.columns) {
+                    if (groupBy == null || !groupBy.columns.contains(column)) {
+                        throw new RuntimeException("Column '" + column
+                                + "' must appear in GROUP BY or be used in an aggregate function");
+                    }
+                }
+            }
+            for (SelectItem item : orderBy != null ? orderBy.items : Collections.<SelectItem>emptyList()) {
+                if (isAggregate() && !selected(item)) {
+                    throw new RuntimeException("ORDER BY item '" + item.name()
+                            + "' of an aggregate query must be selected");
+                } else if (!isAggregate() && item.isAggregate()) {
+                    throw new RuntimeException("Aggregate function in ORDER BY of a query without aggregates: "
+                            + item.name());
+                }
+            }
+        }
+
+        private boolean selected(SelectItem item) {
+            for (SelectItem selected : select.items) {
+                if (selected.name().equals(item.name())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isAggregate() {
+            return groupBy != null || select.hasAggregates();
+        }
+    }
+
+    // Rows flow through the pipeline in batches of this size.
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * Batch of joined rows. Joined row is a tuple of row numbers, one per table of the query (slot).
+     * Values are read from the tables only by conditions and by the final projection.
+     */
+    private static final class RowBatch {
+        final int[][] rows;
+        int size;
+
+        RowBatch(int slots) {
+            rows = new int[slots][BATCH_SIZE];
+        }
+    }
+
+    /**
+     * Pull-based pipeline stage: scan -> filter -> join -> ... -> projection.
+     */
+    private interface BatchOperator {
+        // Next non-empty batch or null at the end. The batch may be reused by the next call.
+        RowBatch next();
+
+        // Releases resources (temp files of a sort) of the operator and its input, may be called more than once.
+        default void close() {
+        }
+    }
+
+    // Counts the input's rows, time and allocated bytes (including those of the operators it reads).
+    private static final class ProfiledOperator implements BatchOperator {
+        private final BatchOperator input;
+        private final OperatorProfile profile;
+
+        ProfiledOperator(BatchOperator input, OperatorProfile profile) {
+            this.input = input;
+            this.profile = profile;
+        }
+
+        static BatchOperator of(BatchOperator input, OperatorProfile profile) {
+            return profile != null ? new ProfiledOperator(input, profile) : input;
+        }
+
+        @Override
+        public RowBatch next() {
+            long start = System.nanoTime();
+            long allocated = OperatorProfile.allocatedBytes();
+            RowBatch batch = input.next();
+            profile.addPulled(batch != null ? batch.size : 0, System.nanoTime() - start,
+                    OperatorProfile.allocatedBytes() - allocated);
+            return batch;
+        }
+
+        @Override
+        public void close() {
+            input.close();
+        }
+    }
+
+    // Row numbers of the table in 'slot' at scan positions [from, to): all rows, or only the given ones (found by index).
+    private static final class ScanOperator implements BatchOperator {
+        private final RowBatch batch;
+        private final int slot;
+        private final IntList rows;
+        private final int end;
+        private int position;
+
+        ScanOperator(int slots, int slot, IntList rows, int from, int to) {
+            this.batch = new RowBatch(slots);
+            this.slot = slot;
+            this.rows = rows;
+            this.position = from;
+            this.end = to;
+        }
+
+        @Override
+        public RowBatch next() {
+            if (position >= end) {
+                return null;
+            }
+            int count = Math.min(BATCH_SIZE, end - position);
+            int[] out = batch.rows[slot];
+            if (rows != null) {
+                System.arraycopy(rows.array(), position, out, 0, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    out[i] = position + i;
+                }
+            }
+            position += count;
+            batch.size = count;
+            return batch;
+        }
+    }
+
+    // Already joined tuples [from, to).
+    private static final class TupleScanOperator implements BatchOperator {
+        private final RowBatch batch;
+        private final int[][] tuples;
+        private final int end;
+        private int position;
+
+        TupleScanOperator(int[][] tuples, int from, int to) {
+            this.batch = new RowBatch(tuples.length);
+            this.tuples = tuples;
+            this.position = from;
+            this.end = to;
+        }
+
+        @Override
+        public RowBatch next() {
+            if (position >= end) {
+                return null;
+            }
+            int count = Math.min(BATCH_SIZE, end - position);
+            for (int slot = 0; slot < tuples.length; slot++) {
+                System.arraycopy(tuples[slot], position, batch.rows[slot], 0, count);
+            }
+            position += count;
+            batch.size = count;
+            return batch;
+        }
+    }
+
+    // Comparison bound to the slots its operands read.
+    private static final class BoundCondition {
+        final RowPredicate predicate;
+        final int leftSlot;
+        final int rightSlot;
+
+        BoundCondition(RowPredicate predicate, int leftSlot, int rightSlot) {
+            this.predicate = predicate;
+            this.leftSlot = leftSlot;
+            this.rightSlot = rightSlot;
+        }
+
+        boolean test(RowBatch batch, int i) {
+            return predicate.test(batch.rows[leftSlot][i], batch.rows[rightSlot][i]);
+        }
+
+        // Tests tuple i of the batch extended with 'row' in 'slot'.
+        boolean test(RowBatch batch, int i, int slot, int row) {
+            int left = leftSlot == slot ? row : batch.rows[leftSlot][i];
+            int right = rightSlot == slot ? row : batch.rows[rightSlot][i];
+            return predicate.test(left, right);
+        }
+    }
+
+    // Compacts the batch in place, keeping tuples that pass the condition.
+    private static final class FilterOperator implements BatchOperator {
+        private final BatchOperator input;
+        private final BoundCondition condition;
+        private final int[] slots;
+
+        FilterOperator(BatchOperator input, BoundCondition condition, int[] slots) {
+            this.input = input;
+            this.condition = condition;
+            this.slots = slots;
+        }
+
+        @Override
+        public RowBatch next() {
+            RowBatch batch;
+            while ((batch = input.next()) != null) {
+                int count = 0;
+                for (int i = 0; i < batch.size; i++) {
+                    if (condition.test(batch, i)) {
+                        if (count != i) {
+                            for (int slot : slots) {
+                                batch.rows[slot][count] = batch.rows[slot][i];
+                            }
+                        }
+                        count++;
+                    }
+                }
+                if (count > 0) {
+                    batch.size = count;
+                    return batch;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            input.close();
+        }
+    }
+
+    /**
+     * Extends every input tuple with matching rows of the joined table (in 'slot').
+     * Output keeps input order, matches of one tuple go in ascending row order.
+     */
+    private static abstract class JoinOperator implements BatchOperator {
+        private final BatchOperator input;
+        final int slot;
+        private final int[] inputSlots;
+        private final int rowLimit;
+        private final RowBatch output;
+        private RowBatch current;
+        private int currentRow = -1;
+        private IntList matches;
+        private int matchPosition;
+        private boolean done;
+
+        JoinOperator(BatchOperator input, int slot, int[] inputSlots, int rowLimit, int slots) {
+            this.input = input;
+            this.slot = slot;
+            this.inputSlots = inputSlots;
+            this.rowLimit = rowLimit;
+            this.output = new RowBatch(slots);
+        }
+
+        // Ascending rows of the joined table matching tuple i of the batch, or null.
+        abstract IntList findMatches(RowBatch batch, int i);
+
+        @Override
+        public void close() {
+            input.close();
+        }
+
+        @Override
+        public RowBatch next() {
+            output.size = 0;
+            while (output.size < BATCH_SIZE) {
+                if (matches == null || matchPosition >= matches.size()) {
+                    if (!advance()) {
+                        break;
+                    }
+                    continue;
+                }
+                int row = matches.get(matchPosition++);
+                if (row >= rowLimit) {
+                    matchPosition = matches.size();
+                    continue;
+                }
+                for (int inputSlot : inputSlots) {
+                    output.rows[inputSlot][output.size] = current.rows[inputSlot][currentRow];
+                }
+                output.rows[slot][output.size] = row;
+                output.size++;
+            }
+            return output.size > 0 ? output : null;
+        }
+
+        // Moves to the next input tuple and finds its matches.
+        private boolean advance() {
+            if (done) {
+                return false;
+            }
+            currentRow++;
+            while (current == null || currentRow >= current.size) {
+                current = input.next();
+                currentRow = 0;
+                if (current == null) {
+                    done = true;
+                    return false;
+                }
+            }
+            matches = findMatches(current, currentRow);
+            matchPosition = 0;
+            return true;
+        }
+    }
+
+    // Checks every candidate row of the joined table; no conditions means a cross join.
+    private static final class NestedLoopJoinOperator extends JoinOperator {
+        private final IntList candidates;
+        private final BoundCondition[] conditions;
+        private final IntList matches = new IntList();
+
+        NestedLoopJoinOperator(BatchOperator input, int slot, int[] inputSlots, int slots,
+                               IntList candidates, BoundCondition[] conditions) {
+            super(input, slot, inputSlots, Integer.MAX_VALUE, slots);
+            this.candidates = candidates;
+            this.conditions = conditions;
+        }
+
+        @Override
+        IntList findMatches(RowBatch batch, int i) {
+            matches.clear();
+            for (int k = 0; k < candidates.size(); k++) {
+                int row = candidates.get(k);
+                boolean match = true;
+                for (BoundCondition condition : conditions) {
+                    if (!condition.test(batch, i, slot, row)) {
+                        match = false;
+                        break;
+                    }
+                }
+                if (match) {
+                    matches.add(row);
+                }
+            }
+            return matches;
+        }
+    }
+
+    // Equality join: input tuples probe the hash table of the joined table's key.
+    // Absent keys fail the query as the nested loop's comparison does, once a pair with them is compared.
+    private static final class HashJoinOperator extends JoinOperator {
+        private final JoinTable table;
+        private final Column probeKey;
+        private final int probeSlot;
+        private final String probeName;
+        private final String keyName;
+        private final IntList matches = new IntList();
+
+        HashJoinOperator(BatchOperator input, int slot, int[] inputSlots, int slots,
+                         JoinTable table, Column probeKey, int probeSlot, String probeName, String keyName) {
+            super(input, slot, inputSlots, Integer.MAX_VALUE, slots);
+            this.table = table;
+            this.probeKey = probeKey;
+            this.probeSlot = probeSlot;
+            this.probeName = probeName;
+            this.keyName = keyName;
+        }
+
+        @Override
+        IntList findMatches(RowBatch batch, int i) {
+            int row = batch.rows[probeSlot][i];
+            if (table.size() > 0 && probeKey.isNull(row)) {
+                throw new RuntimeException("Not found column " + probeName + " in result set");
+            }
+            if (table.hasNullKeys()) {
+                throw new RuntimeException("Not found column " + keyName + " in result set");
+            }
+            return table.size() == 0 ? null : table.get(probeKey, row, matches);
+        }
+    }
+
+    /**
+     * Hash table of the joined table's key column: key -> ascending rows, read-only once built.
+     * Built by all threads of the query: rows are scattered by key hash into partitions (one chunk
+     * of rows per task), then every partition is built by its own task.
+     * Long keys compared with long keys use {@link LongHashTable}, other keys are normalized by Index.hashKey().
+     */
+    private static final class JoinTable {
+        private final int bits;
+        private final LongHashTable[] longPartitions;
+        private final List<Map<Object, IntList>> partitions;
+        // Candidate rows, including those with an absent key (left out of the table)
+        private final int size;
+        private final boolean nullKeys;
+
+        private JoinTable(int bits, LongHashTable[] longPartitions, List<Map<Object, IntList>> partitions,
+                          int size, boolean nullKeys) {
+            this.bits = bits;
+            this.longPartitions = longPartitions;
+            this.partitions = partitions;
+            this.size = size;
+            this.nullKeys = nullKeys;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // True if some candidate row has no key.
+        boolean hasNullKeys() {
+            return nullKeys;
+        }
+
+        // Tasks are measured by 'profile' unless it is null.
+        static JoinTable build(Column key, IntList candidates, boolean longKeys, Context context,
+                               OperatorProfile profile) {
+            int partitionCount = Integer.highestOneBit(context.parallelism * 2 - 1);
+            int bits = Integer.numberOfTrailingZeros(partitionCount);
+            int size = candidates.size();
+            int chunkCount = Pipeline.morselCount(size, context.parallelism);
+            IntList[][] scattered = new IntList[chunkCount][partitionCount];
+            boolean[] nullKeys = new boolean[chunkCount];
+            context.forEach(chunkCount, measure(profile, chunk -> {
+                IntList[] out = scattered[chunk];
+                for (int p = 0; p < partitionCount; p++) {
+                    out[p] = new IntList();
+                }
+                int to = (int) ((long) size * (chunk + 1) / chunkCount);
+                for (int k = (int) ((long) size * chunk / chunkCount); k < to; k++) {
+                    int row = candidates.get(k);
+                    if (!key.isNull(row)) {
+                        out[partition(hash(key, row, longKeys), bits)].add(row);
+                    } else {
+                        nullKeys[chunk] = true;
+                    }
+                }
+            }));
+
+            LongHashTable[] longPartitions = longKeys ? new LongHashTable[partitionCount] : null;
+            List<Map<Object, IntList>> partitions = longKeys ?
+                    null :
+                    new ArrayList<>(Collections.<Map<Object, IntList>>nCopies(partitionCount, null));
+            context.forEach(partitionCount, measure(profile, p -> {
+                if (longKeys) {
+                    LongColumn values = (LongColumn) key;
+                    int count = 0;
+                    for (IntList[] chunk : scattered) {
+                        count += chunk[p].size();
+                    }
+                    LongHashTable table = new LongHashTable(count);
+                    // Descending, so every key's chain lists rows in ascending order.
+                    for (int chunk = chunkCount - 1; chunk >= 0; chunk--) {
+                        IntList rows = scattered[chunk][p];
+                        for (int k = rows.size() - 1; k >= 0; k--) {
+                            table.put(values.getLong(rows.get(k)), rows.get(k));
+                        }
+                    }
+                    longPartitions[p] = table;
+                } else {
+                    Map<Object, IntList> hash = new HashMap<>();
+                    for (IntList[] chunk : scattered) {
+                        IntList rows = chunk[p];
+                        for (int k = 0; k < rows.size(); k++) {
+                            hash.computeIfAbsent(Index.hashKey(key.get(rows.get(k))), v -> new IntList())
+                                    .add(rows.get(k));
+                        }
+                    }
+                    partitions.set(p, hash);
+                }
+            }));
+            if (profile != null) {
+                profile.add(size, 0, 0);
+            }
+            boolean anyNullKeys = false;
+            for (boolean chunkNullKeys : nullKeys) {
+                anyNullKeys |= chunkNullKeys;
+            }
+            return new JoinTable(bits, longPartitions, partitions, size, anyNullKeys);
+        }
+
+        private static IntConsumer measure(OperatorProfile profile, IntConsumer task) {
+            return profile != null ? profile.measureTask(task) : task;
+        }
+
+        // Rows matching the key of the probe row (null if none); 'buffer' may be filled and returned.
+        IntList get(Column probeKey, int row, IntList buffer) {
+            if (longPartitions != null) {
+                long value = ((LongColumn) probeKey).getLong(row);
+                buffer.clear();
+                longPartitions[partition(LongHashTable.mix(value), bits)].get(value, buffer);
+                return buffer;
+            }
+            Object value = Index.hashKey(probeKey.get(row));
+            return partitions.get(partition(LongHashTable.mix(value.hashCode()), bits)).get(value);
+        }
+
+        private static long hash(Column key, int row, boolean longKeys) {
+            return LongHashTable.mix(longKeys ?
+                    ((LongColumn) key).getLong(row) :
+                    Index.hashKey(key.get(row)).hashCode());
+        }
+
+        // Top bits of the hash: LongHashTable takes slots from the low ones.
+        private static int partition(long hash, int bits) {
+            return bits == 0 ? 0 : (int) (hash >>> (64 - bits));
+        }
+    }
+
+    // Equality join answered by the joined table's index, nothing is built. Used only if no key is absent;
+    // absent probe keys fail the query as in HashJoinOperator.
+    private static final class IndexJoinOperator extends JoinOperator {
+        private final Index index;
+        private final Column probeKey;
+        private final int probeSlot;
+        private final String probeName;
+        private final int rowLimit;
+        private final IntList matches = new IntList();
+
+        IndexJoinOperator(BatchOperator input, int slot, int[] inputSlots, int slots, int rowLimit,
+                          Index index, Column probeKey, int probeSlot, String probeName) {
+            super(input, slot, inputSlots, rowLimit, slots);
+            this.index = index;
+            this.probeKey = probeKey;
+            this.probeSlot = probeSlot;
+            this.probeName = probeName;
+            this.rowLimit = rowLimit;
+        }
+
+        @Override
+        IntList findMatches(RowBatch batch, int i) {
+            Object value = probeKey.get(batch.rows[probeSlot][i]);
+            if (value == null && rowLimit > 0) {
+                throw new RuntimeException("Not found column " + probeName + " in result set");
+            }
+            RowList rows = value != null ? index.get(value) : null;
+            if (rows == null) {
+                return null;
+            }
+            matches.clear();
+            rows.copyTo(matches, rowLimit);
+            return matches;
+        }
+    }
+
+    /**
+     * Open addressing hash table from long key to a chain of rows, no boxing.
+     */
+    private static final class LongHashTable {
+        private final long[] keys;
+        private final int[] heads;
+        private final int[] rows;
+        private final int[] next;
+        private final int mask;
+        private int size;
+
+        LongHashTable(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+            keys = new long[capacity];
+            heads = new int[capacity];
+            Arrays.fill(heads, -1);
+            rows = new int[Math.max(expectedSize, 1)];
+            next = new int[rows.length];
+            mask = capacity - 1;
+        }
+
+        // Added row becomes the first in its key's chain.
+        void put(long key, int row) {
+            int pos = find(key);
+            keys[pos] = key;
+            rows[size] = row;
+            next[size] = heads[pos];
+            heads[pos] = size++;
+        }
+
+        void get(long key, IntList out) {
+            for (int entry = heads[find(key)]; entry >= 0; entry = next[entry]) {
+                out.add(rows[entry]);
+            }
+        }
+
+        private int find(long key) {
+            int pos = (int) (mix(key) & mask);
+            while (heads[pos] >= 0 && keys[pos] != key) {
+                pos = (pos + 1) & mask;
+            }
+            return pos;
+        }
+
+        static long mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 32);
+        }
+    }
+
+    // Joined tuples sorted by row numbers of slots 0, 1, ..., which is the order of the query joined as written.
+    private static final class SortedTuples {
+        final int[][] rows;
+        final int size;
+
+        private SortedTuples(int[][] rows, int size) {
+            this.rows = rows;
+            this.size = size;
+        }
+
+        // Buffers all tuples of the input (blocking).
+        static SortedTuples collect(BatchOperator input, int slots) {
+            IntList[] buffered = new IntList[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                buffered[slot] = new IntList();
+            }
+            RowBatch batch;
+            while ((batch = input.next()) != null) {
+                for (int slot = 0; slot < slots; slot++) {
+                    for (int i = 0; i < batch.size; i++) {
+                        buffered[slot].add(batch.rows[slot][i]);
+                    }
+                }
+            }
+            IntList order = IntList.range(buffered[0].size());
+            order.sort((a, b) -> {
+                for (IntList key : buffered) {
+                    int cmp = Integer.compare(key.get(a), key.get(b));
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                }
+                return 0;
+            });
+            int[][] rows = new int[slots][order.size()];
+            for (int slot = 0; slot < slots; slot++) {
+                for (int i = 0; i < order.size(); i++) {
+                    rows[slot][i] = buffered[slot].get(order.get(i));
+                }
+            }
+            return new SortedTuples(rows, order.size());
+        }
+
+        // K-way merge of sorted parts.
+        static SortedTuples merge(List<SortedTuples> parts, int slots) {
+            if (parts.size() == 1) {
+                return parts.get(0);
+            }
+            int size = 0;
+            for (SortedTuples part : parts) {
+                size += part.size;
+            }
+            int[] positions = new int[parts.size()];
+            PriorityQueue<Integer> queue = new PriorityQueue<>(parts.size(),
+                    (a, b) -> compare(parts.get(a), positions[a], parts.get(b), positions[b]));
+            for (int i = 0; i < parts.size(); i++) {
+                if (parts.get(i).size > 0) {
+                    queue.add(i);
+                }
+            }
+            int[][] rows = new int[slots][size];
+            for (int k = 0; k < size; k++) {
+                int part = queue.poll();
+                for (int slot = 0; slot < slots; slot++) {
+                    rows[slot][k] = parts.get(part).rows[slot][positions[part]];
+                }
+                if (++positions[part] < parts.get(part).size) {
+                    queue.add(part);
+                }
+            }
+            return new SortedTuples(rows, size);
+        }
+
+        private static int compare(SortedTuples a, int i, SortedTuples b, int j) {
+            for (int slot = 0; slot < a.rows.length; slot++) {
+                int cmp = Integer.compare(a.rows[slot][i], b.rows[slot][j]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Final stage: copies selected columns of the tuples' rows into the result.
+     */
+    private static final class Projection {
+        private final String[] names;
+        private final int[] slots;
+        private final Column[] columns;
+        // Selected columns may have absent values (for null checks only selected rows are read).
+        private final boolean[] hasNulls;
+        // Absent values are allowed, e.g. in aggregation results.
+        private final boolean nullable;
+
+        Projection(String[] names, int[] slots, Column[] columns, boolean[] hasNulls, boolean nullable) {
+            this.names = names;
+            this.slots = slots;
+            this.columns = columns;
+            this.hasNulls = hasNulls;
+            this.nullable = nullable;
+        }
+
+        // All columns of the data set (in slot 0), absent values allowed.
+        static Projection of(DataSet ds) {
+            int count = ds.schema().size();
+            String[] names = new String[count];
+            Column[] columns = new Column[count];
+            boolean[] hasNulls = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = ds.schema().name(i);
+                columns[i] = ds.column(i);
+                hasNulls[i] = columns[i].hasNulls(ds.size());
+            }
+            return new Projection(names, new int[count], columns, hasNulls, true);
+        }
+
+        // Empty result with the selected columns (unknown ones are reported only if some row is selected).
+        DataSet newResult() {
+            Map<String, Column> res = new LinkedHashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                if (columns[i] != null) {
+                    res.put(names[i], columns[i].emptyCopy());
+                }
+            }
+            return DataSet.of(res, 0);
+        }
+
+        // Result of all the input's tuples.
+        DataSet collect(BatchOperator input) {
+            DataSet res = newResult();
+            RowBatch batch;
+            while ((batch = input.next()) != null) {
+                appendTo(res, batch);
+            }
+            return res;
+        }
+
+        void appendTo(DataSet result, RowBatch batch) {
+            check(batch);
+            int[][] rows = new int[columns.length][];
+            for (int i = 0; i < names.length; i++) {
+                rows[i] = batch.rows[slots[i]];
+            }
+            int at = result.size();
+            result.appendGathered(columns, rows, batch.size);
+            for (int i = 0; i < names.length && nullable; i++) {
+                if (hasNulls[i]) {
+                    result.column(i).clearAbsent(columns[i], rows[i], batch.size, at);
+                }
+            }
+        }
+
+        // All selected columns must have values in all tuples of the batch.
+        void check(RowBatch batch) {
+            for (int i = 0; i < names.length && !nullable; i++) {
+                check(i, batch);
+            }
+        }
+
+        private void check(int i, RowBatch batch) {
+            Column column = columns[i];
+            boolean defined = column != null;
+            if (defined && hasNulls[i]) {
+                for (int k = 0; k < batch.size && defined; k++) {
+                    defined = !column.isNull(batch.rows[slots[i]][k]);
+                }
+            }
+            if (!defined) {
+                throw new RuntimeException("Undefined column name '" + names[i] + "'");
+            }
+        }
+    }
+
+    /**
+     * GROUP BY keys and aggregates of a query, bound to the tables. Read-only, shared by the partial
+     * aggregations of all morsels.
+     */
+    private static final class AggregatePlan {
+        private final String[] names;
+        // Item i is key column itemKeys[i] if >= 0, otherwise aggregate itemAggregates[i].
+        private final int[] itemKeys;
+        private final int[] itemAggregates;
+        private final String[] keyNames;
+        private final Column[] keys;
+        private final int[] keySlots;
+        // Per string key: dictionary code -> code of its first spelling ignoring case, null for other keys.
+        private final int[][] canonicalCodes;
+        private final AggregateSpec[] aggregates;
+        // Tables were reordered: groups are ordered by the first tuple in written order, not by appearance.
+        private final boolean trackFirst;
+        private final int slots;
+
+        AggregatePlan(String[] names, int[] itemKeys, int[] itemAggregates, String[] keyNames, Column[] keys,
+                      int[] keySlots, AggregateSpec[] aggregates, boolean trackFirst, int slots) {
+            this.names = names;
+            this.itemKeys = itemKeys;
+            this.itemAggregates = itemAggregates;
+            this.keyNames = keyNames;
+            this.keys = keys;
+            this.keySlots = keySlots;
+            this.aggregates = aggregates;
+            this.trackFirst = trackFirst;
+            this.slots = slots;
+            this.canonicalCodes = new int[keys.length][];
+            for (int k = 0; k < keys.length; k++) {
+                if (keys[k] instanceof StringColumn) {
+                    canonicalCodes[k] = canonicalCodes(((StringColumn) keys[k]).dictionary());
+                }
+            }
+        }
+
+        // Strings equal by '=' (ignoring case) get the same code.
+        private static int[] canonicalCodes(Dictionary dictionary) {
+            int[] res = new int[dictionary.size()];
+            Map<Object, Integer> first = new HashMap<>();
+            for (int code = 0; code < res.length; code++) {
+                Integer previous = first.putIfAbsent(Index.hashKey(dictionary.decode(code)), code);
+                res[code] = previous != null ? previous : code;
+            }
+            return res;
+        }
+
+        // Partial aggregation of one morsel.
+        HashAggregation aggregate(BatchOperator input) {
+            HashAggregation res = new HashAggregation(this);
+            RowBatch batch;
+            while ((batch = input.next()) != null) {
+                res.add(batch);
+            }
+            return res;
+        }
+
+        DataSet result(List<HashAggregation> parts) {
+            HashAggregation res = parts.get(0);
+            for (HashAggregation part : parts.subList(1, parts.size())) {
+                res.merge(part);
+            }
+            return res.result();
+        }
+    }
+
+    // Aggregate function bound to its column (null for COUNT(*)).
+    private static final class AggregateSpec {
+        final AggregateFunction function;
+        final String name;
+        final Column column;
+        final int slot;
+        final boolean hasNulls;
+
+        AggregateSpec(AggregateFunction function, String name, Column column, int slot, boolean hasNulls) {
+            this.function = function;
+            this.name = name;
+            this.column = column;
+            this.slot = slot;
+            this.hasNulls = hasNulls;
+        }
+
+        Accumulator newAccumulator() {
+            if (function == AggregateFunction.COUNT || slot < 0) {
+                return new CountAccumulator(this);
+            } else if (column instanceof LongColumn) {
+                return new LongAccumulator(this);
+            } else if (column instanceof DoubleColumn) {
+                return new DoubleAccumulator(this);
+            }
+            return new StringAccumulator(this);
+        }
+    }
+
+    /**
+     * Groups of tuples in an open addressing table. A group key is a vector of longs (long values,
+     * bits of doubles, canonical string codes) plus bitmasks of null keys and of long values of double
+     * columns (so distinct longs that are equal as doubles make distinct groups); aggregates keep primitive
+     * per-group accumulators. Group ids are given in order of appearance.
+     */
+    private static final class HashAggregation {
+        private final AggregatePlan plan;
+        private final Accumulator[] accumulators;
+        private final long[] rowKey;
+        private final int[] groupIds = new int[BATCH_SIZE];
+        private int groups;
+        private long[][] keys;
+        private long[] nullMasks;
+        // Keys of double columns that are long values (see DoubleColumn), bit per key
+        private long[] longMasks;
+        private int[] hashes;
+        // Group id + 1 by hash position, 0 for free positions.
+        private int[] table;
+        // [slot][group] first tuple of the group in written order, only if plan.trackFirst.
+        private int[][] firstTuples;
+
+        HashAggregation(AggregatePlan plan) {
+            this.plan = plan;
+            this.accumulators = new Accumulator[plan.aggregates.length];
+            for (int i = 0; i < accumulators.length; i++) {
+                accumulators[i] = plan.aggregates[i].newAccumulator();
+            }
+            this.rowKey = new long[plan.keys.length];
+            this.keys = new long[plan.keys.length][16];
+            this.nullMasks = new long[16];
+            this.longMasks = new long[16];
+            this.hashes = new int[16];
+            this.table = new int[32];
+            this.firstTuples = new int[plan.trackFirst ? plan.slots : 0][16];
+            if (plan.keys.length == 0) {
+                findOrAdd(rowKey, 0, 0); // no GROUP BY: one group even for no rows
+            }
+        }
+
+        void add(RowBatch batch) {
+            for (int i = 0; i < batch.size; i++) {
+                groupIds[i] = group(batch, i);
+            }
+            for (Accumulator accumulator : accumulators) {
+                accumulator.ensureCapacity(groups);
+                accumulator.add(groupIds, batch);
+            }
+            if (plan.trackFirst) {
+                for (int i = 0; i < batch.size; i++) {
+                    int group = groupIds[i];
+                    if (compareFirst(group, batch, i) > 0) {
+                        for (int slot = 0; slot < plan.slots; slot++) {
+                            firstTuples[slot][group] = batch.rows[slot][i];
+                        }
+                    }
+                }
+            }
+        }
+
+        private int group(RowBatch batch, int i) {
+            long nullMask = 0;
+            long longMask = 0;
+            for (int k = 0; k < rowKey.length; k++) {
+                Column column = plan.keys[k];
+                if (column == null) {
+                    throw new RuntimeException("Undefined column name '" + plan.keyNames[k] + "'");
+                }
+                int row = batch.rows[plan.keySlots[k]][i];
+                if (column.isNull(row)) {
+                    nullMask |= 1L << k;
+                    rowKey[k] = 0;
+                } else if (column instanceof LongColumn) {
+                    rowKey[k] = ((LongColumn) column).getLong(row);
+                } else if (column instanceof DoubleColumn) {
+                    DoubleColumn doubles = (DoubleColumn) column;
+                    double value = doubles.getDouble(row);
+                    if (doubles.isLong(row)) {
+                        rowKey[k] = doubles.getLong(row);
+                        longMask |= 1L << k;
+                    } else if (doubles.hasLongs() && value == (long) value && Math.abs(value) < 0x1p63) {
+                        // Equal to a long value, as in Index.hashKey()
+                        rowKey[k] = (long) value;
+                        longMask |= 1L << k;
+                    } else {
+                        rowKey[k] = Double.doubleToLongBits(value == 0 ? 0.0 : value);
+                    }
+                } else {
+                    int code = ((StringColumn) column).getCode(row);
+                    int[] canonical = plan.canonicalCodes[k];
+                    rowKey[k] = code < canonical.length ? canonical[code] : code;
+                }
+            }
+            return findOrAdd(rowKey, nullMask, longMask);
+        }
+
+        private int findOrAdd(long[] key, long nullMask, long longMask) {
+            long h = nullMask * 31 + longMask;
+            for (long value : key) {
+                h = h * 31 + value;
+            }
+            int hash = (int) LongHashTable.mix(h);
+            int mask = table.length - 1;
+            for (int pos = hash & mask; ; pos = (pos + 1) & mask) {
+                int group = table[pos] - 1;
+                if (group < 0) {
+                    break;
+                }
+                if (hashes[group] == hash && nullMasks[group] == nullMask && longMasks[group] == longMask
+                        && sameKey(group, key)) {
+                    return group;
+                }
+            }
+            return addGroup(key, nullMask, longMask, hash);
+        }
+
+        private boolean sameKey(int group, long[] key) {
+            for (int k = 0; k < key.length; k++) {
+                if (keys[k][group] != key[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int addGroup(long[] key, long nullMask, long longMask, int hash) {
+            int group = groups++;
+            if (group == hashes.length) {
+                int capacity = group * 2;
+                hashes = Arrays.copyOf(hashes, capacity);
+                nullMasks = Arrays.copyOf(nullMasks, capacity);
+                longMasks = Arrays.copyOf(longMasks, capacity);
+                for (int k = 0; k < keys.length; k++) {
+                    keys[k] = Arrays.copyOf(keys[k], capacity);
+                }
+                for (int slot = 0; slot < firstTuples.length; slot++) {
+                    firstTuples[slot] = Arrays.copyOf(firstTuples[slot], capacity);
+                }
+            }
+            hashes[group] = hash;
+            nullMasks[group] = nullMask;
+            longMasks[group] = longMask;
+            for (int k = 0; k < key.length; k++) {
+                keys[k][group] = key[k];
+            }
+            for (int[] first : firstTuples) {
+                first[group] = Integer.MAX_VALUE;
+            }
+            if (groups * 2 > table.length) {
+                table = new int[table.length * 2];
+                for (int g = 0; g < groups; g++) {
+                    insert(g);
+                }
+            } else {
+                insert(group);
+            }
+            return group;
+        }
+
+        private void insert(int group) {
+            int mask = table.length - 1;
+            int pos = hashes[group] & mask;
+            while (table[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = group + 1;
+        }
+
+        // Compares the group's first tuple with tuple i of the batch.
+        private int compareFirst(int group, RowBatch batch, int i) {
+            for (int slot = 0; slot < plan.slots; slot++) {
+                int cmp = Integer.compare(firstTuples[slot][group], batch.rows[slot][i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        // Adds groups of a later morsel.
+        void merge(HashAggregation other) {
+            long[] key = new long[keys.length];
+            for (int g = 0; g < other.groups; g++) {
+                for (int k = 0; k < key.length; k++) {
+                    key[k] = other.keys[k][g];
+                }
+                int group = findOrAdd(key, other.nullMasks[g], other.longMasks[g]);
+                for (int i = 0; i < accumulators.length; i++) {
+                    accumulators[i].ensureCapacity(groups);
+                    accumulators[i].merge(group, other.accumulators[i], g);
+                }
+                if (plan.trackFirst && compareFirst(group, other.firstTuples, g) > 0) {
+                    for (int slot = 0; slot < plan.slots; slot++) {
+                        firstTuples[slot][group] = other.firstTuples[slot][g];
+                    }
+                }
+            }
+        }
+
+        private int compareFirst(int group, int[][] tuples, int i) {
+            for (int slot = 0; slot < plan.slots; slot++) {
+                int cmp = Integer.compare(firstTuples[slot][group], tuples[slot][i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        DataSet result() {
+            IntList order = IntList.range(groups);
+            if (plan.trackFirst) {
+                order.sort((a, b) -> {
+                    for (int[] first : firstTuples) {
+                        int cmp = Integer.compare(first[a], first[b]);
+                        if (cmp != 0) {
+                            return cmp;
+                        }
+                    }
+                    return 0;
+                });
+            }
+            for (Accumulator accumulator : accumulators) {
+                accumulator.ensureCapacity(groups);
+            }
+            Map<String, Column> res = new LinkedHashMap<>();
+            for (int i = 0; i < plan.names.length; i++) {
+                int key = plan.itemKeys[i];
+                res.put(plan.names[i], key >= 0 ?
+                        keyColumn(key, order) :
+                        accumulators[plan.itemAggregates[i]].result(order));
+            }
+            return DataSet.of(res, groups);
+        }
+
+        private Column keyColumn(int k, IntList order) {
+            Column column = plan.keys[k];
+            if (column == null) {
+                return new LongColumn(1); // unknown column, no rows
+            }
+            Column res = column.emptyCopy();
+            for (int i = 0; i < order.size(); i++) {
+                int group = order.get(i);
+                if ((nullMasks[group] & (1L << k)) != 0) {
+                    continue;
+                }
+                long value = keys[k][group];
+                if (res instanceof LongColumn) {
+                    ((LongColumn) res).set(i, value);
+                } else if (res instanceof DoubleColumn && (longMasks[group] & (1L << k)) != 0) {
+                    ((DoubleColumn) res).setLong(i, value);
+                } else if (res instanceof DoubleColumn) {
+                    ((DoubleColumn) res).set(i, Double.longBitsToDouble(value));
+                } else {
+                    ((StringColumn) res).setCode(i, (int) value);
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Per-group state of one aggregate function. Values absent in a row are skipped,
+     * a group without values gets no result (except 0 for COUNT).
+     */
+    private static abstract class Accumulator {
+        final AggregateSpec spec;
+        long[] counts = new long[16];
+
+        Accumulator(AggregateSpec spec) {
+            this.spec = spec;
+        }
+
+        void ensureCapacity(int groups) {
+            if (groups > counts.length) {
+                int capacity = Math.max(groups, counts.length * 2);
+                counts = Arrays.copyOf(counts, capacity);
+                grow(capacity);
+            }
+        }
+
+        void grow(int capacity) {
+        }
+
+        // Adds tuple i of the batch to group groups[i].
+        void add(int[] groups, RowBatch batch) {
+            if (spec.slot < 0) {
+                throw new RuntimeException("Undefined column name '" + spec.name + "'");
+            }
+            int[] rows = spec.column != null ? batch.rows[spec.slot] : null;
+            for (int i = 0; i < batch.size; i++) {
+                if (rows == null) {
+                    counts[groups[i]]++;
+                } else if (!spec.hasNulls || !spec.column.isNull(rows[i])) {
+                    counts[groups[i]]++;
+                    add(groups[i], rows[i]);
+                }
+            }
+        }
+
+        abstract void add(int group, int row);
+
+        void merge(int group, Accumulator other, int otherGroup) {
+            if (other.counts[otherGroup] > 0) {
+                mergeValue(group, other, otherGroup);
+                counts[group] += other.counts[otherGroup];
+            }
+        }
+
+        // Called before counts are added.
+        abstract void mergeValue(int group, Accumulator other, int otherGroup);
+
+        // Results of the groups in the given order.
+        abstract Column result(IntList order);
+    }
+
+    // COUNT, also stands for aggregates of unknown columns (add() fails, so they have no values).
+    private static final class CountAccumulator extends Accumulator {
+        CountAccumulator(AggregateSpec spec) {
+            super(spec);
+        }
+
+        @Override
+        void add(int group, int row) {
+        }
+
+        @Override
+        void mergeValue(int group, Accumulator other, int otherGroup) {
+        }
+
+        @Override
+        Column result(IntList order) {
+            LongColumn res = new LongColumn(Math.max(order.size(), 1));
+            for (int i = 0; i < order.size() && spec.function == AggregateFunction.COUNT; i++) {
+                res.set(i, counts[order.get(i)]);
+            }
+            return res;
+        }
+    }
+
+    // SUM, AVG, MIN and MAX of a long column.
+    private static final class LongAccumulator extends Accumulator {
+        private final LongColumn column;
+        private long[] values = new long[16];
+
+        LongAccumulator(AggregateSpec spec) {
+            super(spec);
+            this.column = (LongColumn) spec.column;
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void add(int group, int row) {
+            accept(group, column.getLong(row), counts[group] == 1);
+        }
+
+        private void accept(int group, long value, boolean first) {
+            switch (spec.function) {
+                case MIN:
+                    values[group] = first ? value : Math.min(values[group], value);
+                    break;
+                case MAX:
+                    values[group] = first ? value : Math.max(values[group], value);
+                    break;
+                default:
+                    values[group] += value;
+            }
+        }
+
+        @Override
+        void mergeValue(int group, Accumulator other, int otherGroup) {
+            accept(group, ((LongAccumulator) other).values[otherGroup], counts[group] == 0);
+        }
+
+        @Override
+        Column result(IntList order) {
+            if (spec.function == AggregateFunction.AVG) {
+                DoubleColumn res = new DoubleColumn(Math.max(order.size(), 1));
+                for (int i = 0; i < order.size(); i++) {
+                    int group = order.get(i);
+                    if (counts[group] > 0) {
+                        res.set(i, (double) values[group] / counts[group]);
+                    }
+                }
+                return res;
+            }
+            LongColumn res = new LongColumn(Math.max(order.size(), 1));
+            for (int i = 0; i < order.size(); i++) {
+                int group = order.get(i);
+                if (counts[group] > 0) {
+                    res.set(i, values[group]);
+                }
+            }
+            return res;
+        }
+    }
+
+    // SUM, AVG, MIN and MAX of a double column. MIN and MAX of a column with long rows keep exact long values.
+    private static final class DoubleAccumulator extends Accumulator {
+        private final DoubleColumn column;
+        private final boolean exact;
+        private double[] values = new double[16];
+        // MIN and MAX with long rows: the group's value is longs[group] if isLong[group]
+        private long[] longs;
+        private boolean[] isLong;
+
+        DoubleAccumulator(AggregateSpec spec) {
+            super(spec);
+            this.column = (DoubleColumn) spec.column;
+            this.exact = column.hasLongs()
+                    && (spec.function == AggregateFunction.MIN || spec.function == AggregateFunction.MAX);
+            if (exact) {
+                longs = new long[16];
+                isLong = new boolean[16];
+            }
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+            if (exact) {
+                longs = Arrays.copyOf(longs, capacity);
+                isLong = Arrays.copyOf(isLong, capacity);
+            }
+        }
+
+        @Override
+        void add(int group, int row) {
+            if (exact) {
+                boolean longRow = column.isLong(row);
+                acceptExact(group, column.getDouble(row), longRow, longRow ? column.getLong(row) : 0,
+                        counts[group] == 1);
+            } else {
+                accept(group, column.getDouble(row), counts[group] == 1);
+            }
+        }
+
+        // Two longs compare exactly, a long and a double as doubles.
+        private void acceptExact(int group, double value, boolean longValue, long exactValue, boolean first) {
+            int cmp = 0;
+            if (!first) {
+                cmp = longValue && isLong[group] ?
+                        Long.compare(exactValue, longs[group]) :
+                        value < values[group] ? -1 : value > values[group] ? 1 : 0;
+            }
+            if (first || (spec.function == AggregateFunction.MIN ? cmp < 0 : cmp > 0)) {
+                values[group] = value;
+                longs[group] = exactValue;
+                isLong[group] = longValue;
+            }
+        }
+
+        private void accept(int group, double value, boolean first) {
+            switch (spec.function) {
+                case MIN:
+                    values[group] = first || value < values[group] ? value : values[group];
+                    break;
+                case MAX:
+                    values[group] = first || value > values[group] ? value : values[group];
+                    break;
+                default:
+                    values[group] += value;
+            }
+        }
+
+        @Override
+        void mergeValue(int group, Accumulator other, int otherGroup) {
+            DoubleAccumulator from = (DoubleAccumulator) other;
+            if (exact) {
+                acceptExact(group, from.values[otherGroup], from.isLong[otherGroup], from.longs[otherGroup],
+                        counts[group] == 0);
+            } else {
+                accept(group, from.values[otherGroup], counts[group] == 0);
+            }
+        }
+
+        @Override
+        Column result(IntList order) {
+            DoubleColumn res = new DoubleColumn(Math.max(order.size(), 1));
+            for (int i = 0; i < order.size(); i++) {
+                int group = order.get(i);
+                if (counts[group] > 0 && exact && isLong[group]) {
+                    res.setLong(i, longs[group]);
+                } else if (counts[group] > 0) {
+                    boolean avg = spec.function == AggregateFunction.AVG;
+                    res.set(i, avg ? values[group] / counts[group] : values[group]);
+                }
+            }
+            return res;
+        }
+    }
+
+    // MIN and MAX of a string column, ignoring case like comparisons do.
+    private static final class StringAccumulator extends Accumulator {
+        private final StringColumn column;
+        // Dictionary code -> rank in case-insensitive order
+        private final int[] ranks;
+        private int[] codes = new int[16];
+
+        StringAccumulator(AggregateSpec spec) {
+            super(spec);
+            if (spec.function != AggregateFunction.MIN && spec.function != AggregateFunction.MAX) {
+                throw new RuntimeException("Aggregate " + spec.function + " expects a numeric column: "
+                        + spec.name);
+            }
+            this.column = (StringColumn) spec.column;
+            this.ranks = column != null ? column.dictionary().ranks() : new int[0];
+        }
+
+        @Override
+        void grow(int capacity) {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+
+        @Override
+        void add(int group, int row) {
+            accept(group, column.getCode(row), counts[group] == 1);
+        }
+
+        private void accept(int group, int code, boolean first) {
+            int cmp = first ? 0 : Integer.compare(ranks[code], ranks[codes[group]]);
+            if (first || (spec.function == AggregateFunction.MIN ? cmp < 0 : cmp > 0)) {
+                codes[group] = code;
+            }
+        }
+
+        @Override
+        void mergeValue(int group, Accumulator other, int otherGroup) {
+            accept(group, ((StringAccumulator) other).codes[otherGroup], counts[group] == 0);
+        }
+
+        @Override
+        Column result(IntList order) {
+            StringColumn res = new StringColumn(Math.max(order.size(), 1), column.dictionary());
+            for (int i = 0; i < order.size(); i++) {
+                int group = order.get(i);
+                if (counts[group] > 0) {
+                    res.setCode(i, codes[group]);
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * ORDER BY keys and LIMIT bound to the tuples' tables. Tuples with equal keys keep the order of the query
+     * executed as written: by input position, or by row numbers of slots 0, 1, ... if the joins were reordered.
+     * So the result doesn't depend on parallelism or on spilling. Strings are compared ignoring case like
+     * comparisons do, absent values go last (first for DESC).
+     * - with a LIMIT up to the sort run size of the options every morsel keeps its best tuples in a bounded heap;
+     * - otherwise every morsel sorts its tuples in runs of up to that size. If the runs don't fit
+     * into one, they are written to temp files (row numbers only, key values are read from the tables).
+     * Sorted runs of all morsels are k-way merged while the result is read.
+     */
+    private static final class SortPlan {
+        private final String[] names;
+        private final int[] slots;
+        private final Column[] columns;
+        private final boolean[] hasNulls;
+        private final boolean[] descending;
+        // String keys: dictionary code -> rank in case-insensitive order
+        private final int[][] ranks;
+        private final int limit;
+        private final int tupleSlots;
+        // Tuples come in written order (not reordered joins), so positions order tuples with equal keys.
+        private final boolean orderedInput;
+        // Equal prefixes mean equal first keys (a long prefix of an absent value may equal Long.MAX_VALUE,
+        // distinct long rows of a double column may share a double prefix).
+        private final boolean exactPrefix;
+
+        SortPlan(String[] names, int[] slots, Column[] columns, int[] rowCounts, boolean[] descending, int limit,
+                 int tupleSlots, boolean orderedInput) {
+            this.names = names;
+            this.slots = slots;
+            this.columns = columns;
+            this.descending = descending;
+            this.limit = limit;
+            this.tupleSlots = tupleSlots;
+            this.orderedInput = orderedInput;
+            this.hasNulls = new boolean[columns.length];
+            this.ranks = new int[columns.length][];
+            for (int k = 0; k < columns.length; k++) {
+                hasNulls[k] = columns[k] != null && columns[k].hasNulls(rowCounts[k]);
+                if (columns[k] instanceof StringColumn) {
+                    ranks[k] = ((StringColumn) columns[k]).dictionary().ranks();
+                }
+            }
+            this.exactPrefix = columns.length > 0 && columns[0] != null
+                    && !(hasNulls[0] && columns[0].type() == ColumnType.LONG)
+                    && !(columns[0] instanceof DoubleColumn && ((DoubleColumn) columns[0]).hasLongs());
+        }
+
+        // Keys are items of the aggregation result.
+        static SortPlan of(DataSet ds, OrderBy orderBy) {
+            int count = orderBy.items.size();
+            String[] names = new String[count];
+            Column[] columns = new Column[count];
+            int[] rowCounts = new int[count];
+            boolean[] descending = new boolean[count];
+            for (int k = 0; k < count; k++) {
+                names[k] = orderBy.items.get(k).name();
+                columns[k] = ds.column(names[k]);
+                rowCounts[k] = ds.size();
+                descending[k] = orderBy.descending.get(k);
+            }
+            return new SortPlan(names, new int[count], columns, rowCounts, descending, orderBy.limit, 1, true);
+        }
+
+        // Sorted and limited tuples of the input. Reads the whole input before returning.
+        BatchOperator sort(Pipeline input, Context context, OperatorProfile profile) {
+            if (limit == 0) {
+                return ProfiledOperator.of(new MergeOperator(this, Collections.<SortedRun>emptyList()), profile);
+            }
+            int runSize = context.options.sortRunSize;
+            boolean bounded = limit > 0 && limit <= runSize;
+            // Runs spilled by all morsels, deleted here if the sort fails (by the merge otherwise)
+            List<SortedRun> spilled = new CopyOnWriteArrayList<>();
+            Function<BatchOperator, List<SortedRun>> sink =
+                    operator -> bounded ? top(operator) : runs(operator, runSize, spilled);
+            boolean sorted = false;
+            try {
+                List<List<SortedRun>> parts = input.run(context, profile != null ? profile.measure(sink) : sink);
+                List<SortedRun> runs = new ArrayList<>();
+                long inMemory = 0;
+                for (List<SortedRun> part : parts) {
+                    for (SortedRun run : part) {
+                        runs.add(run);
+                        inMemory += run instanceof MemoryRun ? run.size : 0;
+                    }
+                }
+                if (!bounded && inMemory > runSize) {
+                    for (int i = 0; i < runs.size(); i++) {
+                        if (runs.get(i) instanceof MemoryRun) {
+                            runs.set(i, ((MemoryRun) runs.get(i)).spill());
+                            spilled.add(runs.get(i));
+                        }
+                    }
+                }
+                BatchOperator res = ProfiledOperator.of(new MergeOperator(this, runs), profile);
+                sorted = true;
+                return res;
+            } finally {
+                if (!sorted) {
+                    for (SortedRun run : spilled) {
+                        run.close();
+                    }
+                }
+            }
+        }
+
+        // Best 'limit' tuples of the input: max-heap with the worst kept tuple on top.
+        private List<SortedRun> top(BatchOperator input) {
+            int[][] heap = new int[tupleSlots][Math.min(limit, BATCH_SIZE)];
+            int size = 0;
+            RowBatch batch;
+            while ((batch = input.next()) != null) {
+                check(batch);
+                for (int i = 0; i < batch.size; i++) {
+                    if (size < limit) {
+                        heap = ensureCapacity(heap, size + 1);
+                        copy(batch.rows, i, heap, size);
+                        siftUp(heap, size++);
+                    } else if (compare(batch.rows, i, heap, 0) < 0) {
+                        copy(batch.rows, i, heap, 0);
+                        siftDown(heap, size);
+                    }
+                }
+            }
+            return Collections.singletonList(sorted(heap, size, false));
+        }
+
+        private void siftUp(int[][] heap, int position) {
+            while (position > 0) {
+                int parent = (position - 1) >>> 1;
+                if (compare(heap, position, heap, parent) <= 0) {
+                    return;
+                }
+                swap(heap, position, parent);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int[][] heap, int size) {
+            int position = 0;
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && compare(heap, child + 1, heap, child) > 0) {
+                    child++;
+                }
+                if (compare(heap, child, heap, position) <= 0) {
+                    return;
+                }
+                swap(heap, position, child);
+                position = child;
+            }
+        }
+
+        // The input in sorted runs of up to runSize tuples, all but the last one spilled (and added to 'spilled').
+        private List<SortedRun> runs(BatchOperator input, int runSize, List<SortedRun> spilled) {
+            List<SortedRun> res = new ArrayList<>();
+            int[][] buffer = new int[tupleSlots][Math.min(runSize, BATCH_SIZE)];
+            int size = 0;
+            RowBatch batch;
+            while ((batch = input.next()) != null) {
+                check(batch);
+                for (int i = 0; i < batch.size; i++) {
+                    if (size == runSize) {
+                        SortedRun run = sorted(buffer, size, true).spill();
+                        spilled.add(run);
+                        res.add(run);
+                        size = 0;
+                    }
+                    buffer = ensureCapacity(buffer, size + 1);
+                    copy(batch.rows, i, buffer, size++);
+                }
+            }
+            res.add(sorted(buffer, size, true));
+            return res;
+        }
+
+        // 'inInputOrder': the tuples are in input order (not a heap), so ties may keep their positions.
+        private MemoryRun sorted(int[][] tuples, int size, boolean inInputOrder) {
+            long[] prefixes = new long[size];
+            for (int i = 0; i < size; i++) {
+                prefixes[i] = prefix(tuples, i);
+            }
+            // Primitive sort of (prefix rank, position) pairs: by prefix, equal prefixes in input order.
+            long[] distinct = Arrays.copyOf(prefixes, size);
+            Arrays.sort(distinct);
+            int distinctCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || distinct[i] != distinct[i - 1]) {
+                    distinct[distinctCount++] = distinct[i];
+                }
+            }
+            long[] pairs = new long[size];
+            for (int i = 0; i < size; i++) {
+                pairs[i] = (long) Arrays.binarySearch(distinct, 0, distinctCount, prefixes[i]) << 32 | i;
+            }
+            Arrays.sort(pairs);
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = (int) pairs[i];
+            }
+
+            // Then tuples with equal prefixes by the rest of the keys (and by rows).
+            if (!exactPrefix || columns.length > 1 || !inInputOrder || !orderedInput) {
+                IntComparator ties = inInputOrder ?
+                        (a, b) -> compareTies(tuples, a, tuples, b) :
+                        (a, b) -> compare(tuples, a, tuples, b);
+                int[] buffer = new int[size];
+                int from = 0;
+                for (int i = 1; i <= size; i++) {
+                    if (i == size || prefixes[order[i]] != prefixes[order[from]]) {
+                        IntList.sort(order, buffer, from, i, ties);
+                        from = i;
+                    }
+                }
+            }
+
+            int[][] rows = new int[tupleSlots][size];
+            long[] sortedPrefixes = new long[size];
+            for (int i = 0; i < size; i++) {
+                sortedPrefixes[i] = prefixes[order[i]];
+            }
+            for (int slot = 0; slot < tupleSlots; slot++) {
+                for (int i = 0; i < size; i++) {
+                    rows[slot][i] = tuples[slot][order[i]];
+                }
+            }
+            return new MemoryRun(rows, sortedPrefixes, size);
+        }
+
+        /**
+         * First key of the tuple as a long in the sort order (absent values last, before negation for DESC).
+         * Tuples with different prefixes compare as their prefixes, so most comparisons don't read the tables.
+         */
+        long prefix(int[][] tuples, int i) {
+            if (columns.length == 0) {
+                return 0;
+            }
+            Column column = columns[0];
+            int row = tuples[slots[0]][i];
+            long res;
+            if (hasNulls[0] && column.isNull(row)) {
+                res = Long.MAX_VALUE;
+            } else if (column.type() == ColumnType.LONG) {
+                res = ((LongColumn) column).getLong(row);
+            } else if (column.type() == ColumnType.DOUBLE) {
+                // + 0.0 turns -0.0 into 0.0, they are equal for comparisons
+                long bits = Double.doubleToLongBits(((DoubleColumn) column).getDouble(row) + 0.0);
+                res = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+            } else {
+                res = ranks[0][((StringColumn) column).getCode(row)];
+            }
+            return descending[0] ? ~res : res;
+        }
+
+        // Compares tuple i of 'a' with tuple j of 'b' (rows[slot][index] layout of RowBatch).
+        int compare(int[][] a, int i, int[][] b, int j) {
+            int cmp = compareKeys(a, i, b, j, 0);
+            return cmp != 0 ? cmp : compareRows(a, i, b, j);
+        }
+
+        /**
+         * Compares tuples with equal prefixes. If the input came in written order, tuples with equal keys are
+         * left for the caller to order by their positions (0 is returned), as comparing row numbers would.
+         */
+        int compareTies(int[][] a, int i, int[][] b, int j) {
+            int cmp = compareKeys(a, i, b, j, exactPrefix ? 1 : 0);
+            return cmp != 0 || orderedInput ? cmp : compareRows(a, i, b, j);
+        }
+
+        private int compareKeys(int[][] a, int i, int[][] b, int j, int firstKey) {
+            for (int k = firstKey; k < columns.length; k++) {
+                int cmp = compare(k, a[slots[k]][i], b[slots[k]][j]);
+                if (cmp != 0) {
+                    return descending[k] ? -cmp : cmp;
+                }
+            }
+            return 0;
+        }
+
+        private int compareRows(int[][] a, int i, int[][] b, int j) {
+            for (int slot = 0; slot < tupleSlots; slot++) {
+                int cmp = Integer.compare(a[slot][i], b[slot][j]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        private int compare(int k, int x, int y) {
+            Column column = columns[k];
+            if (hasNulls[k]) {
+                boolean xNull = column.isNull(x);
+                boolean yNull = column.isNull(y);
+                if (xNull || yNull) {
+                    return Boolean.compare(xNull, yNull);
+                }
+            }
+            switch (column.type()) {
+                case LONG:
+                    return Long.compare(((LongColumn) column).getLong(x), ((LongColumn) column).getLong(y));
+                case DOUBLE:
+                    DoubleColumn doubles = (DoubleColumn) column;
+                    if (doubles.hasLongs() && doubles.isLong(x) && doubles.isLong(y)) {
+                        return Long.compare(doubles.getLong(x), doubles.getLong(y));
+                    }
+                    double dx = doubles.getDouble(x);
+                    double dy = doubles.getDouble(y);
+                    return dx < dy ? -1 : dx > dy ? 1 : 0;
+                default:
+                    StringColumn strings = (StringColumn) column;
+                    return Integer.compare(ranks[k][strings.getCode(x)], ranks[k][strings.getCode(y)]);
+            }
+        }
+
+        // Unknown key columns are reported only if some row is selected.
+        private void check(RowBatch batch) {
+            for (int k = 0; k < columns.length; k++) {
+                if (columns[k] == null && batch.size > 0) {
+                    throw new RuntimeException("Undefined column name '" + names[k] + "'");
+                }
+            }
+        }
+
+        private int[][] ensureCapacity(int[][] tuples, int capacity) {
+            if (tuples[0].length >= capacity) {
+                return tuples;
+            }
+            int[][] res = new int[tupleSlots][];
+            for (int slot = 0; slot < tupleSlots; slot++) {
+                res[slot] = Arrays.copyOf(tuples[slot], Math.max(capacity, tuples[slot].length * 2));
+            }
+            return res;
+        }
+
+        private static void copy(int[][] from, int i, int[][] to, int j) {
+            for (int slot = 0; slot < from.length; slot++) {
+                to[slot][j] = from[slot][i];
+            }
+        }
+
+        private static void swap(int[][] tuples, int i, int j) {
+            for (int[] rows : tuples) {
+                int tmp = rows[i];
+                rows[i] = rows[j];
+                rows[j] = tmp;
+            }
+        }
+    }
+
+    // Sorted tuples read one by one.
+    private static abstract class SortedRun {
+        // Current tuple in the layout of RowBatch rows: rows of all slots at index 0.
+        final int[][] current;
+        // SortPlan.prefix() of the current tuple
+        long prefix;
+        // Position in the merge, runs are in input order
+        int index;
+        final int size;
+
+        SortedRun(int slots, int size) {
+            this.current = new int[slots][1];
+            this.size = size;
+        }
+
+        // Moves to the next tuple, false at the end.
+        abstract boolean advance();
+
+        // Releases the run's resources, may be called more than once.
+        void close() {
+        }
+    }
+
+    private static final class MemoryRun extends SortedRun {
+        private final int[][] rows;
+        private final long[] prefixes;
+        private int position = -1;
+
+        MemoryRun(int[][] rows, long[] prefixes, int size) {
+            super(rows.length, size);
+            this.rows = rows;
+            this.prefixes = prefixes;
+        }
+
+        @Override
+        boolean advance() {
+            if (++position >= size) {
+                return false;
+            }
+            prefix = prefixes[position];
+            for (int slot = 0; slot < rows.length; slot++) {
+                current[slot][0] = rows[slot][position];
+            }
+            return true;
+        }
 
-        public Query(Tokenizer tokenizer) {
-            super(tokenizer);
+        // Writes the tuples (prefix and rows) to a temp file.
+        FileRun spill() {
+            File file = null;
+            boolean written = false;
+            try {
+                file = File.createTempFile("sqlexec-sort-", ".run");
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                    for (int i = 0; i < size; i++) {
+                        out.writeLong(prefixes[i]);
+                        for (int[] slotRows : rows) {
+                            out.writeInt(slotRows[i]);
+                        }
+                    }
+                }
+                written = true;
+                return new FileRun(file, rows.length, size);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to spill sorted run to temp file: " + e.getMessage(), e);
+            } finally {
+                if (!written && file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static final class FileRun extends SortedRun {
+        private final File file;
+        private DataInputStream in;
+        private int position;
+
+        FileRun(File file, int slots, int size) {
+            super(slots, size);
+            this.file = file;
         }
 
-        public DataSet execute(Map<String, DataSet> db) {
-            DataSet ds = from.execute(db);
-            if (where != null) {
-                ds = where.execute(ds);
+        @Override
+        boolean advance() {
+            if (position >= size) {
+                close();
+                return false;
+            }
+            try {
+                if (in == null) {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+                }
+                prefix = in.readLong();
+                for (int[] slotRows : current) {
+                    slotRows[0] = in.readInt();
+                }
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException("Failed to read sorted run from temp file: " + e.getMessage(), e);
             }
-            ds = select.execute(ds);
-            return ds;
+            position++;
+            return true;
         }
 
         @Override
-        public void parse() {
-            select = new Select(tokenizer);
-            select.parse();
-            from = new From(tokenizer);
-            from.parse();
-            if (peekToken().type == TokenType.WHERE) {
-                where = new Where(tokenizer);
-                where.parse();
+        void close() {
+            position = size;
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException ignored) {
+                // Read-only stream, nothing is lost.
+            }
+            file.delete();
+        }
+    }
+
+    // K-way merge of sorted runs up to the plan's limit. Runs are closed (temp files deleted) at the end or by close().
+    private static final class MergeOperator implements BatchOperator {
+        private final List<SortedRun> runs;
+        private final PriorityQueue<SortedRun> queue;
+        private final RowBatch batch;
+        private int remaining;
+
+        MergeOperator(SortPlan plan, List<SortedRun> runs) {
+            this.runs = runs;
+            this.queue = new PriorityQueue<>(Math.max(runs.size(), 1),
+                    (a, b) -> {
+                        int cmp = Long.compare(a.prefix, b.prefix);
+                        cmp = cmp != 0 ? cmp : plan.compareTies(a.current, 0, b.current, 0);
+                        return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+                    });
+            this.batch = new RowBatch(plan.tupleSlots);
+            this.remaining = plan.limit >= 0 ? plan.limit : Integer.MAX_VALUE;
+            boolean opened = false;
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    runs.get(i).index = i;
+                    if (runs.get(i).advance()) {
+                        queue.add(runs.get(i));
+                    }
+                }
+                opened = true;
+            } finally {
+                if (!opened) {
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public RowBatch next() {
+            batch.size = 0;
+            while (batch.size < BATCH_SIZE && remaining > 0 && !queue.isEmpty()) {
+                SortedRun run = queue.poll();
+                for (int slot = 0; slot < batch.rows.length; slot++) {
+                    batch.rows[slot][batch.size] = run.current[slot][0];
+                }
+                batch.size++;
+                remaining--;
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+            if (batch.size == 0) {
+                close();
+                return null;
+            }
+            return batch;
+        }
+
+        @Override
+        public void close() {
+            queue.clear();
+            for (SortedRun run : runs) {
+                run.close();
+            }
+        }
+    }
+
+    // Pipeline input split into ranges (morsels) that are processed independently.
+    private interface Source {
+        int size();
+
+        BatchOperator open(int from, int to);
+    }
+
+    // Pipeline step, instantiated for every morsel. Shared state (hash tables, candidate rows) is read-only.
+    private interface Stage {
+        BatchOperator open(BatchOperator input);
+    }
+
+    /**
+     * Source followed by stages. The source is split into morsels, each one runs through its own
+     * operators; with parallelism > 1 morsels are processed by the query's threads.
+     */
+    private static final class Pipeline {
+        // Smaller morsels don't pay for the per-morsel setup.
+        private static final int MIN_MORSEL_SIZE = 16 * BATCH_SIZE;
+        // More morsels than threads, so threads that finish early take more work.
+        private static final int MORSELS_PER_THREAD = 4;
+
+        private final Source source;
+        private final List<Stage> stages = new ArrayList<>();
+        // Operators of the source and of every stage, nulls if the query is not profiled
+        private final List<OperatorProfile> operators = new ArrayList<>();
+
+        Pipeline(Source source, OperatorProfile operator) {
+            this.source = source;
+            this.operators.add(operator);
+        }
+
+        static Pipeline scan(int slots, int slot, int rowCount, IntList rows) {
+            return scan(slots, slot, rowCount, rows, null);
+        }
+
+        static Pipeline scan(int slots, int slot, int rowCount, IntList rows, OperatorProfile operator) {
+            return new Pipeline(new Source() {
+                @Override
+                public int size() {
+                    return rows != null ? rows.size() : rowCount;
+                }
+
+                @Override
+                public BatchOperator open(int from, int to) {
+                    return new ScanOperator(slots, slot, rows, from, to);
+                }
+            }, operator);
+        }
+
+        static Pipeline tuples(SortedTuples tuples, OperatorProfile operator) {
+            return new Pipeline(new Source() {
+                @Override
+                public int size() {
+                    return tuples.size;
+                }
+
+                @Override
+                public BatchOperator open(int from, int to) {
+                    return new TupleScanOperator(tuples.rows, from, to);
+                }
+            }, operator);
+        }
+
+        static int morselCount(int size, int parallelism) {
+            return parallelism == 1 ? 1 : Math.max(1, Math.min(parallelism * MORSELS_PER_THREAD, size / MIN_MORSEL_SIZE));
+        }
+
+        Pipeline then(Stage stage) {
+            return then(stage, null);
+        }
+
+        Pipeline then(Stage stage, OperatorProfile operator) {
+            stages.add(stage);
+            operators.add(operator);
+            return this;
+        }
+
+        // The last operator, null if the query is not profiled.
+        OperatorProfile operator() {
+            return operators.get(operators.size() - 1);
+        }
+
+        // Sink's results for the output of every morsel, in source order.
+        @SuppressWarnings("unchecked")
+        <T> List<T> run(Context context, Function<BatchOperator, T> sink) {
+            int size = source.size();
+            int count = morselCount(size, context.parallelism);
+            Object[] res = new Object[count];
+            context.forEach(count, i -> res[i] = sink.apply(open((int) ((long) size * i / count),
+                    (int) ((long) size * (i + 1) / count))));
+            return (List<T>) Arrays.asList(res);
+        }
+
+        // Operators for source positions [from, to).
+        BatchOperator open(int from, int to) {
+            BatchOperator operator = ProfiledOperator.of(source.open(from, to), operators.get(0));
+            for (int i = 0; i < stages.size(); i++) {
+                operator = ProfiledOperator.of(stages.get(i).open(operator), operators.get(i + 1));
+            }
+            return operator;
+        }
+    }
+
+    // Planned query: pipeline of joined tuples, order restore if the tables were reordered, projection.
+    private static final class Plan {
+        private final Pipeline pipeline;
+        private final int slots;
+        private final boolean restoreOrder;
+        private final Projection projection;
+        private final AggregatePlan aggregate;
+        // ORDER BY / LIMIT of a query without aggregates, null if none
+        private final SortPlan sort;
+        // ORDER BY / LIMIT of the aggregation result, null if none
+        private final OrderBy orderBy;
+        // Operators after the pipeline, null if the query is not profiled (or has no such step)
+        private OperatorProfile restored;
+        private OperatorProfile aggregated;
+        private OperatorProfile ordered;
+        private OperatorProfile selected;
+
+        Plan(Pipeline pipeline, int slots, boolean restoreOrder, Projection projection, AggregatePlan aggregate,
+             SortPlan sort, OrderBy orderBy) {
+            this.pipeline = pipeline;
+            this.slots = slots;
+            this.restoreOrder = restoreOrder;
+            this.projection = projection;
+            this.aggregate = aggregate;
+            this.sort = sort;
+            this.orderBy = orderBy;
+        }
+
+        /**
+         * Morsel results are concatenated in order, so the result doesn't depend on parallelism.
+         * Aggregation is done by morsels too (tuples are not buffered even if the tables were reordered),
+         * partial results are merged in morsel order.
+         * Sorting doesn't need the written order restored, as ties are ordered by row numbers.
+         */
+        DataSet execute(Context context) {
+            DataSet res;
+            if (aggregate != null) {
+                List<HashAggregation> parts = pipeline.run(context, measure(aggregated, aggregate::aggregate));
+                res = timed(aggregated, () -> aggregate.result(parts));
+                count(aggregated, res.size());
+                if (orderBy != null) {
+                    Pipeline rows = Pipeline.scan(1, 0, res.size(), null);
+                    BatchOperator sorted = SortPlan.of(res, orderBy).sort(rows, context, ordered);
+                    try {
+                        res = measure(selected, Projection.of(res)::collect).apply(sorted);
+                    } finally {
+                        sorted.close();
+                    }
+                }
+            } else if (sort != null) {
+                BatchOperator sorted = sort.sort(pipeline, context, ordered);
+                try {
+                    res = measure(selected, projection::collect).apply(sorted);
+                } finally {
+                    sorted.close();
+                }
+            } else {
+                List<DataSet> parts = output(context).run(context, measure(selected, projection::collect));
+                res = parts.get(0);
+                for (DataSet part : parts.subList(1, parts.size())) {
+                    res.append(part);
+                }
+            }
+            count(selected, res.size());
+            return res;
+        }
+
+        Cursor stream(Context context) {
+            if (aggregate != null) {
+                DataSet res = execute(context);
+                return new Cursor(Pipeline.scan(1, 0, res.size(), null).open(0, res.size()), Projection.of(res));
+            }
+            if (sort != null) {
+                return new Cursor(ProfiledOperator.of(sort.sort(pipeline, context, ordered), selected), projection);
+            }
+            Pipeline output = output(context);
+            return new Cursor(ProfiledOperator.of(output.open(0, output.source.size()), selected), projection);
+        }
+
+        // Pipeline of the tuples in written order.
+        private Pipeline output(Context context) {
+            if (!restoreOrder) {
+                return pipeline;
+            }
+            List<SortedTuples> parts = pipeline.run(context,
+                    measure(restored, operator -> SortedTuples.collect(operator, slots)));
+            return Pipeline.tuples(timed(restored, () -> SortedTuples.merge(parts, slots)), restored);
+        }
+
+        // Adds the operators following the pipeline to the query profile, if any.
+        Plan describe(Context context, Query query) {
+            if (context.profile == null) {
+                return this;
+            }
+            OperatorProfile last = pipeline.operator();
+            if (aggregate != null) {
+                List<String> functions = new ArrayList<>();
+                for (SelectItem item : query.select.items) {
+                    if (item.isAggregate()) {
+                        functions.add(item.name());
+                    }
+                }
+                String groups = query.groupBy != null ? "group by " + String.join(", ", query.groupBy.columns) : "";
+                last = aggregated = context.operator("Aggregate",
+                        (String.join(", ", functions) + " " + groups).trim(), last);
+            } else if (restoreOrder && sort == null) {
+                last = restored = context.operator("Restore order", "of " + slots + " joined tables", last);
+            }
+            if (query.orderBy != null) {
+                last = ordered = context.operator(query.orderBy.items.isEmpty() ? "Limit" : "Order by",
+                        query.orderBy.toString(), last);
+            }
+            List<String> names = new ArrayList<>();
+            for (SelectItem item : query.select.items) {
+                names.add(item.name());
+            }
+            selected = context.operator("Select", String.join(", ", names), last);
+            context.profile.root = selected;
+            return this;
+        }
+
+        // The sink, measured if the operator is profiled.
+        private static <T> Function<BatchOperator, T> measure(OperatorProfile operator, Function<BatchOperator, T> sink) {
+            return operator != null ? operator.measure(sink) : sink;
+        }
+
+        private static <T> T timed(OperatorProfile operator, Supplier<T> action) {
+            return operator != null ? operator.measure(input -> action.get()).apply(null) : action.get();
+        }
+
+        private static void count(OperatorProfile operator, int rows) {
+            if (operator != null) {
+                operator.add(rows, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Builds the pipeline on each execution, as it needs current table sizes:
+     * - conditions (ON or WHERE) on a single table filter that table's scan before any join;
+     * - tables are joined greedily starting from the smallest estimated one, each next table is the smallest
+     * of those connected to already joined ones by some condition;
+     * - values are read only for conditions and selected columns.
+     * The result, including row order, is the same as of the query executed as written.
+     * Queries with a repeated table or conditions on tables joined later run in written order.
+     */
+    private static final class Planner {
+        private final Query query;
+        private final Context context;
+        // Join tables in written order, so that no stage has to buffer the tuples.
+        private final boolean writtenOrder;
+        private List<String> tables;
+        private DataSet[] scans;
+
+        Planner(Query query, Context context, boolean writtenOrder) {
+            this.query = query;
+            this.context = context;
+            this.writtenOrder = writtenOrder;
+        }
+
+        Plan plan() {
+            tables = query.from.tables();
+            for (String table : tables) {
+                context.table(table);
+            }
+            Set<String> required = new HashSet<>(query.select.columns);
+            for (SelectItem item : query.select.items) {
+                if (item.column != null) {
+                    required.add(item.column);
+                }
+            }
+            if (query.groupBy != null) {
+                required.addAll(query.groupBy.columns);
+            }
+            if (query.orderBy != null) {
+                for (SelectItem item : query.orderBy.items) {
+                    if (item.column != null) {
+                        required.add(item.column);
+                    }
+                }
+            }
+            for (Comparison condition : conditions()) {
+                required.addAll(condition.columns());
+            }
+            scans = new DataSet[tables.size()];
+            for (int slot = 0; slot < scans.length; slot++) {
+                scans[slot] = context.table(tables.get(slot)).withTablePrefix(tables.get(slot)).project(required);
+            }
+
+            return (canReorder() ? planOptimized() : planAsWritten()).describe(context, query);
+        }
+
+        // ON conditions followed by WHERE.
+        private List<Comparison> conditions() {
+            List<Comparison> res = new ArrayList<>();
+            for (Join join : query.from.joins) {
+                res.add(join.comparison);
+            }
+            if (query.where != null) {
+                res.add(query.where.comparison);
+            }
+            return res;
+        }
+
+        private boolean canReorder() {
+            if (new HashSet<>(tables).size() != tables.size()) {
+                return false;
+            }
+            for (int i = 0; i < query.from.joins.size(); i++) {
+                if (!tables.subList(0, i + 2).containsAll(query.from.joins.get(i).comparison.tables())) {
+                    return false;
+                }
+            }
+            return query.where == null || tables.containsAll(query.where.comparison.tables());
+        }
+
+        private Plan planAsWritten() {
+            Pipeline pipeline = Pipeline.scan(scans.length, 0, scans[0].size(), null,
+                    context.operator("From", tables.get(0), null));
+            for (int slot = 1; slot < scans.length; slot++) {
+                Comparison condition = query.from.joins.get(slot - 1).comparison;
+                join(pipeline, slot, toArray(range(slot)), Collections.singletonList(condition), slot, null, null);
+            }
+            if (query.where != null) {
+                pipeline.then(filter(bind(query.where.comparison, scans.length - 1, 0), toArray(range(scans.length))),
+                        context.operator("Where", query.where.comparison.toString(), pipeline.operator()));
+            }
+            return new Plan(pipeline, scans.length, false, projection(), aggregatePlan(false), sortPlan(false),
+                    aggregateOrderBy());
+        }
+
+        private Plan planOptimized() {
+            int lastSlot = scans.length - 1;
+            List<List<Comparison>> pushed = new ArrayList<>();
+            for (int slot = 0; slot < scans.length; slot++) {
+                pushed.add(new ArrayList<>());
+            }
+            List<Comparison> remaining = new ArrayList<>();
+            List<Comparison> constants = new ArrayList<>();
+            for (Comparison condition : conditions()) {
+                Set<Integer> slots = slots(condition, lastSlot);
+                if (slots.size() == 1) {
+                    pushed.get(slots.iterator().next()).add(condition);
+                } else if (slots.isEmpty()) {
+                    constants.add(condition);
+                } else {
+                    remaining.add(condition);
+                }
+            }
+
+            IntList[] indexed = new IntList[scans.length];
+            Comparison[] lookups = new Comparison[scans.length];
+            double[] estimates = new double[scans.length];
+            for (int slot = 0; slot < scans.length; slot++) {
+                List<Comparison> filters = pushed.get(slot);
+                for (Comparison filter : filters) {
+                    indexed[slot] = filter.lookup(scans[slot], context.params);
+                    if (indexed[slot] != null) {
+                        lookups[slot] = filter;
+                        filters.remove(filter);
+                        break;
+                    }
+                }
+                estimates[slot] = indexed[slot] != null ? indexed[slot].size() : scans[slot].size();
+                for (Comparison filter : filters) {
+                    estimates[slot] *= filter.selectivity();
+                }
+            }
+
+            List<Integer> order = writtenOrder ? range(scans.length) : joinOrder(estimates, remaining);
+            int first = order.get(0);
+            Pipeline pipeline = scan(first, indexed[first], lookups[first], pushed.get(first));
+            List<Integer> joined = new ArrayList<>();
+            joined.add(first);
+            for (int slot : order.subList(1, order.size())) {
+                List<Comparison> applicable = new ArrayList<>();
+                for (Comparison condition : remaining) {
+                    Set<Integer> slots = slots(condition, lastSlot);
+                    if (slots.contains(slot) && joined.containsAll(slots(condition, lastSlot, slot))) {
+                        applicable.add(condition);
+                    }
+                }
+                remaining.removeAll(applicable);
+                Pipeline filtered = indexed[slot] == null && pushed.get(slot).isEmpty() ?
+                        null :
+                        scan(slot, indexed[slot], lookups[slot], pushed.get(slot));
+                IntList candidates = filtered != null ? materialize(filtered, slot) : null;
+                join(pipeline, slot, toArray(joined), applicable, lastSlot, candidates,
+                        filtered != null ? filtered.operator() : null);
+                joined.add(slot);
+            }
+            for (Comparison condition : constants) {
+                pipeline.then(filter(bind(condition, lastSlot, first), toArray(joined)),
+                        context.operator("Where", condition.toString(), pipeline.operator()));
+            }
+            boolean reordered = !order.equals(range(order.size()));
+            return new Plan(pipeline, scans.length, reordered, projection(), aggregatePlan(reordered), sortPlan(reordered),
+                    aggregateOrderBy());
+        }
+
+        private List<Integer> joinOrder(double[] estimates, List<Comparison> conditions) {
+            List<Integer> order = new ArrayList<>();
+            order.add(smallest(range(scans.length), estimates));
+            while (order.size() < scans.length) {
+                List<Integer> candidates = new ArrayList<>();
+                for (int slot = 0; slot < scans.length; slot++) {
+                    if (!order.contains(slot) && isConnected(slot, order, conditions)) {
+                        candidates.add(slot);
+                    }
+                }
+                if (candidates.isEmpty()) {
+                    for (int slot = 0; slot < scans.length; slot++) {
+                        if (!order.contains(slot)) {
+                            candidates.add(slot);
+                        }
+                    }
+                }
+                order.add(smallest(candidates, estimates));
+            }
+            return order;
+        }
+
+        private boolean isConnected(int slot, List<Integer> joined, List<Comparison> conditions) {
+            for (Comparison condition : conditions) {
+                Set<Integer> slots = slots(condition, scans.length - 1);
+                if (slots.contains(slot)) {
+                    for (int other : slots) {
+                        if (joined.contains(other)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        // First of the smallest, so equal estimates keep the written order.
+        private int smallest(List<Integer> slots, double[] estimates) {
+            int res = slots.get(0);
+            for (int slot : slots) {
+                if (estimates[slot] < estimates[res]) {
+                    res = slot;
+                }
+            }
+            return res;
+        }
+
+        // Rows of the table found by the index lookup (if any) and passing the filters.
+        private Pipeline scan(int slot, IntList indexed, Comparison lookup, List<Comparison> filters) {
+            Pipeline pipeline = Pipeline.scan(scans.length, slot, scans[slot].size(), indexed, context.operator("From",
+                    tables.get(slot) + (lookup != null ? " using index: " + lookup : ""), null));
+            for (Comparison filter : filters) {
+                pipeline.then(filter(bind(filter, scans.length - 1, slot), new int[]{slot}),
+                        context.operator("Where", filter.toString(), pipeline.operator()));
             }
+            return pipeline;
+        }
+
+        private IntList materialize(Pipeline pipeline, int slot) {
+            if (context.planOnly()) {
+                return new IntList();
+            }
+            List<IntList> parts = pipeline.run(context, operator -> {
+                IntList rows = new IntList();
+                RowBatch batch;
+                while ((batch = operator.next()) != null) {
+                    for (int i = 0; i < batch.size; i++) {
+                        rows.add(batch.rows[slot][i]);
+                    }
+                }
+                return rows;
+            });
+            IntList res = parts.get(0);
+            for (IntList part : parts.subList(1, parts.size())) {
+                res.addAll(part);
+            }
+            return res;
+        }
+
+        private static Stage filter(BoundCondition condition, int[] slots) {
+            return input -> new FilterOperator(input, condition, slots);
+        }
+
+        /**
+         * Joins the table in 'slot' to the input. The first condition picks the algorithm: an equality
+         * of the table's column with an input column is answered by the table's index or by a hash join,
+         * anything else by a nested loop. Other conditions filter the joined tuples.
+         * Candidates are the table rows left by pushed filters (read by 'candidatesOperator'), null for all rows.
+         * The hash table, if any, is built right away by all threads of the query.
+         */
+        private void join(Pipeline pipeline, int slot, int[] inputSlots, List<Comparison> conditions, int maxSlot,
+                          IntList candidates, OperatorProfile candidatesOperator) {
+            int slots = scans.length;
+            List<String> texts = new ArrayList<>();
+            for (Comparison condition : conditions) {
+                texts.add(condition.toString());
+            }
+            String detail = tables.get(slot) + (texts.isEmpty() ? "" : " ON " + String.join(" AND ", texts));
+            int[] outputSlots = Arrays.copyOf(inputSlots, inputSlots.length + 1);
+            outputSlots[inputSlots.length] = slot;
+            IntList rows = candidates != null ? candidates : IntList.range(scans[slot].size());
+
+            Comparison first = conditions.isEmpty() ? null : conditions.get(0);
+            if (first != null && first.operation == Operator.EQ
+                    && first.leftOperand.isColumn() && first.rightOperand.isColumn()) {
+                int leftSlot = resolve(first.leftOperand.column, maxSlot);
+                int rightSlot = resolve(first.rightOperand.column, maxSlot);
+                Operand keyOperand = leftSlot == slot ? first.leftOperand : first.rightOperand;
+                Operand probeOperand = leftSlot == slot ? first.rightOperand : first.leftOperand;
+                int probeSlot = leftSlot == slot ? rightSlot : leftSlot;
+                Column key = scans[slot].column(keyOperand.column);
+                Column probeKey = probeSlot >= 0 ? scans[probeSlot].column(probeOperand.column) : null;
+                boolean equiJoin = (leftSlot == slot) != (rightSlot == slot) && probeSlot >= 0
+                        && key != null && probeKey != null
+                        && (key.type() == ColumnType.STRING) == (probeKey.type() == ColumnType.STRING);
+                if (equiJoin) {
+                    Stage res = null;
+                    OperatorProfile operator = null;
+                    Index index = scans[slot].index(keyOperand.column);
+                    int rowLimit = scans[slot].size();
+                    if (candidates == null && index != null && !key.hasNulls(rowLimit)) {
+                        res = input -> new IndexJoinOperator(input, slot, inputSlots, slots, rowLimit,
+                                index, probeKey, probeSlot, probeOperand.column);
+                        operator = context.operator("Join", detail, "index join", pipeline.operator());
+                    } else if (context.options.hashJoin) {
+                        boolean longKeys = key.type() == ColumnType.LONG && probeKey.type() == ColumnType.LONG;
+                        OperatorProfile build = context.operator("Build", "hash table on " + keyOperand.column, null,
+                                null, candidatesOperator);
+                        JoinTable table = context.planOnly() ? null : JoinTable.build(key, rows, longKeys, context, build);
+                        res = input -> new HashJoinOperator(input, slot, inputSlots, slots, table, probeKey, probeSlot,
+                                probeOperand.column, keyOperand.column);
+                        operator = context.operator("Join", detail, "hash join", pipeline.operator(), build);
+                    }
+                    if (res != null) {
+                        BoundCondition[] filters = new BoundCondition[conditions.size() - 1];
+                        for (int i = 0; i < filters.length; i++) {
+                            filters[i] = bind(conditions.get(i + 1), maxSlot, slot);
+                        }
+                        Stage join = res;
+                        pipeline.then(input -> {
+                            BatchOperator filtered = join.open(input);
+                            for (BoundCondition filter : filters) {
+                                filtered = new FilterOperator(filtered, filter, outputSlots);
+                            }
+                            return filtered;
+                        }, operator);
+                        return;
+                    }
+                }
+            }
+
+            BoundCondition[] bound = new BoundCondition[conditions.size()];
+            for (int i = 0; i < bound.length; i++) {
+                bound[i] = bind(conditions.get(i), maxSlot, slot);
+            }
+            pipeline.then(input -> new NestedLoopJoinOperator(input, slot, inputSlots, slots, rows, bound),
+                    context.operator("Join", detail, "nested loop", pipeline.operator(), candidatesOperator));
+        }
+
+        /**
+         * Binds the comparison to the slots of its column operands (up to maxSlot).
+         * A constant operand reads the other operand's slot, or defaultSlot if both are constants.
+         */
+        private BoundCondition bind(Comparison condition, int maxSlot, int defaultSlot) {
+            int leftSlot = condition.leftOperand.isColumn() ? resolve(condition.leftOperand.column, maxSlot) : -2;
+            int rightSlot = condition.rightOperand.isColumn() ? resolve(condition.rightOperand.column, maxSlot) : -2;
+            if (leftSlot == -1 || rightSlot == -1) {
+                Operand unknown = leftSlot == -1 ? condition.leftOperand : condition.rightOperand;
+                return new BoundCondition(Comparison.fail("Not found column " + unknown + " in result set"),
+                        defaultSlot, defaultSlot);
+            }
+            if (leftSlot < 0) {
+                leftSlot = rightSlot >= 0 ? rightSlot : defaultSlot;
+            }
+            if (rightSlot < 0) {
+                rightSlot = leftSlot;
+            }
+            RowPredicate predicate = condition.compile(scans[leftSlot], scans[rightSlot], context.params);
+            return new BoundCondition(predicate, leftSlot, rightSlot);
+        }
+
+        /**
+         * Slot of the table the column belongs to, -1 for unknown tables. A repeated table resolves to
+         * its latest occurrence up to maxSlot that has the column (later joins overwrite equal names).
+         */
+        private int resolve(String column, int maxSlot) {
+            String table = column.substring(0, column.indexOf('.'));
+            int res = -1;
+            for (int slot = maxSlot; slot >= 0; slot--) {
+                if (tables.get(slot).equals(table)) {
+                    if (scans[slot].column(column) != null) {
+                        return slot;
+                    }
+                    if (res < 0) {
+                        res = slot;
+                    }
+                }
+            }
+            return res;
+        }
+
+        private Set<Integer> slots(Comparison condition, int maxSlot) {
+            return slots(condition, maxSlot, -1);
+        }
+
+        // Slots of the condition's columns except the given one.
+        private Set<Integer> slots(Comparison condition, int maxSlot, int except) {
+            Set<Integer> res = new HashSet<>();
+            for (String column : condition.columns()) {
+                int slot = resolve(column, maxSlot);
+                if (slot != except) {
+                    res.add(slot);
+                }
+            }
+            return res;
+        }
+
+        private AggregatePlan aggregatePlan(boolean reordered) {
+            if (!query.isAggregate()) {
+                return null;
+            }
+            int lastSlot = scans.length - 1;
+            List<String> keyNames = query.groupBy != null ? query.groupBy.columns : Collections.<String>emptyList();
+            Column[] keys = new Column[keyNames.size()];
+            int[] keySlots = new int[keys.length];
+            for (int k = 0; k < keys.length; k++) {
+                int slot = resolve(keyNames.get(k), lastSlot);
+                keySlots[k] = Math.max(slot, 0);
+                keys[k] = slot >= 0 ? scans[slot].column(keyNames.get(k)) : null;
+            }
+            List<SelectItem> items = query.select.items;
+            String[] names = new String[items.size()];
+            int[] itemKeys = new int[names.length];
+            int[] itemAggregates = new int[names.length];
+            List<AggregateSpec> aggregates = new ArrayList<>();
+            for (int i = 0; i < names.length; i++) {
+                SelectItem item = items.get(i);
+                names[i] = item.name();
+                itemKeys[i] = item.isAggregate() ? -1 : keyNames.indexOf(item.column);
+                itemAggregates[i] = item.isAggregate() ? aggregates.size() : -1;
+                if (item.isAggregate()) {
+                    int slot = item.column != null ? resolve(item.column, lastSlot) : 0;
+                    Column column = item.column != null && slot >= 0 ? scans[slot].column(item.column) : null;
+                    if (item.column != null && column == null) {
+                        slot = -1;
+                    }
+                    boolean hasNulls = column != null && column.hasNulls(scans[slot].size());
+                    aggregates.add(new AggregateSpec(item.function, item.column, column, slot, hasNulls));
+                }
+            }
+            return new AggregatePlan(names, itemKeys, itemAggregates, keyNames.toArray(new String[0]), keys,
+                    keySlots, aggregates.toArray(new AggregateSpec[0]), reordered, scans.length);
+        }
+
+        private SortPlan sortPlan(boolean reordered) {
+            if (query.orderBy == null || query.isAggregate()) {
+                return null;
+            }
+            List<SelectItem> items = query.orderBy.items;
+            String[] names = new String[items.size()];
+            int[] slots = new int[names.length];
+            Column[] columns = new Column[names.length];
+            int[] rowCounts = new int[names.length];
+            boolean[] descending = new boolean[names.length];
+            for (int k = 0; k < names.length; k++) {
+                names[k] = items.get(k).column;
+                int slot = resolve(names[k], scans.length - 1);
+                slots[k] = Math.max(slot, 0);
+                columns[k] = slot >= 0 ? scans[slot].column(names[k]) : null;
+                rowCounts[k] = scans[slots[k]].size();
+                descending[k] = query.orderBy.descending.get(k);
+            }
+            return new SortPlan(names, slots, columns, rowCounts, descending, query.orderBy.limit, scans.length,
+                    !reordered);
+        }
+
+        private OrderBy aggregateOrderBy() {
+            return query.isAggregate() ? query.orderBy : null;
+        }
+
+        private Projection projection() {
+            Map<String, Integer> selected = new LinkedHashMap<>();
+            for (String column : query.select.columns) {
+                selected.put(column, resolve(column, scans.length - 1));
+            }
+            String[] names = new String[selected.size()];
+            int[] slots = new int[names.length];
+            Column[] columns = new Column[names.length];
+            boolean[] hasNulls = new boolean[names.length];
+            int i = 0;
+            for (Map.Entry<String, Integer> entry : selected.entrySet()) {
+                names[i] = entry.getKey();
+                slots[i] = Math.max(entry.getValue(), 0);
+                columns[i] = entry.getValue() >= 0 ? scans[entry.getValue()].column(entry.getKey()) : null;
+                hasNulls[i] = columns[i] != null && columns[i].hasNulls(scans[slots[i]].size());
+                i++;
+            }
+            return new Projection(names, slots, columns, hasNulls, false);
+        }
+
+        private static List<Integer> range(int count) {
+            List<Integer> res = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                res.add(i);
+            }
+            return res;
+        }
+
+        private static int[] toArray(List<Integer> values) {
+            int[] res = new int[values.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = values.get(i);
+            }
+            return res;
         }
     }
 }
@@ -0,0 +1,68 @@
+package z_codewars.sql;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Join benchmark on the movies / actors_in_movies / actors schema from {@link SQLExecTest}.
+ * Usage: SQLExecBenchmark [movies count] (default 1 000 000, every movie has 2 actors).
+ *
+ * @author borunovv
+ */
+public class SQLExecBenchmark {
+
+    private static String query = "SELECT movies.title, actors.name, movies.cert\n" +
+            "FROM movies\n" +
+            "JOIN actors_in_movies ON actors_in_movies.movieID = movies.ID\n" +
+            "JOIN actors ON actors_in_movies.actorID = actors.ID\n" +
+            "WHERE movies.cert <= 15";
+
+    public static void main(String[] args) {
+        int moviesCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        // Nested loop is quadratic, so compare both algorithms on a small scale first.
+        int smallCount = Math.min(moviesCount, 500);
+        Map<String, SQLExec.DataSet> small = generate(smallCount);
+        long nestedLoop = measure(small, false);
+        long hashJoin = measure(small, true);
+        System.out.println("Movies: " + smallCount + ", nested loop: " + nestedLoop + " ms, hash join: "
+                + hashJoin + " ms");
+
+        Map<String, SQLExec.DataSet> big = generate(moviesCount);
+        System.out.println("Movies: " + moviesCount + ", hash join: " + measure(big, true) + " ms");
+    }
+
+    private static long measure(Map<String, SQLExec.DataSet> db, boolean hashJoin) {
+        SQLExec.Options options = SQLExec.Options.DEFAULT.withHashJoin(hashJoin);
+        SQLExec.PreparedStatement statement = SQLExec.prepare(query);
+        statement.executeWith(options, db, 1); // warm up
+        long start = System.nanoTime();
+        SQLExec.DataSet ds = statement.executeWith(options, db, 1);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("  rows: " + ds.size());
+        return elapsed;
+    }
+
+    static Map<String, SQLExec.DataSet> generate(int moviesCount) {
+        Map<String, SQLExec.DataSet> db = new HashMap<>();
+        SQLExec.DataSet movies = new SQLExec.DataSet();
+        for (int i = 1; i <= moviesCount; i++) {
+            movies.addRow().with("id", i).with("title", "Movie #" + i).with("cert", 6 + i % 13);
+        }
+        db.put("movies", movies);
+
+        SQLExec.DataSet actorsInMovies = new SQLExec.DataSet();
+        for (int i = 1; i <= moviesCount; i++) {
+            actorsInMovies.addRow().with("actorID", i).with("movieID", i);
+            actorsInMovies.addRow().with("actorID", moviesCount - i + 1).with("movieID", i);
+        }
+        db.put("actors_in_movies", actorsInMovies);
+
+        SQLExec.DataSet actors = new SQLExec.DataSet();
+        for (int i = 1; i <= moviesCount; i++) {
+            actors.addRow().with("id", i).with("name", "Actor #" + i);
+        }
+        db.put("actors", actors);
+        return db;
+    }
+}
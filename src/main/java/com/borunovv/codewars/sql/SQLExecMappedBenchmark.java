@@ -0,0 +1,69 @@
+package z_codewars.sql;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Heap tables vs. memory-mapped table files: load time, heap use and query time, schema from {@link SQLExecBenchmark}.
+ * Usage: SQLExecMappedBenchmark [movies count] [directory] (default 1 000 000, a temp directory).
+ * An existing directory with table files is mapped without generating the tables.
+ *
+ * @author borunovv
+ */
+public class SQLExecMappedBenchmark {
+
+    private static final String query = "SELECT movies.title, actors.name, movies.cert\n" +
+            "FROM movies\n" +
+            "JOIN actors_in_movies ON actors_in_movies.movieID = movies.ID\n" +
+            "JOIN actors ON actors_in_movies.actorID = actors.ID\n" +
+            "WHERE movies.cert <= 15";
+
+    private static final int ITERATIONS = 3;
+
+    public static void main(String[] args) throws IOException {
+        int moviesCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path directory = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("sqlexec");
+
+        if (!Files.exists(directory.resolve("movies.table"))) {
+            Map<String, SQLExec.DataSet> heap = measure("generate on heap", () -> SQLExecBenchmark.generate(moviesCount));
+            long start = System.nanoTime();
+            SQLExec.saveDatabase(heap, directory);
+            System.out.println(String.format("%-20s %6d ms", "save", (System.nanoTime() - start) / 1_000_000));
+            query("query heap tables", heap);
+        }
+
+        Map<String, SQLExec.DataSet> mapped = measure("map", () -> SQLExec.mapDatabase(directory));
+        query("query mapped tables", mapped);
+        System.out.println("Table files: " + directory);
+    }
+
+    private interface Load {
+        Map<String, SQLExec.DataSet> tables() throws IOException;
+    }
+
+    private static Map<String, SQLExec.DataSet> measure(String name, Load load) throws IOException {
+        System.gc();
+        long start = System.nanoTime();
+        Map<String, SQLExec.DataSet> res = load.tables();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println(String.format("%-20s %6d ms, heap used: %5d MB", name, elapsed,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20));
+        return res;
+    }
+
+    private static void query(String name, Map<String, SQLExec.DataSet> db) {
+        int rows = SQLExec.exec(db, query).size(); // warm up
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            SQLExec.exec(db, query);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-20s %6d ms, rows: %d", name, best / 1_000_000, rows));
+    }
+}
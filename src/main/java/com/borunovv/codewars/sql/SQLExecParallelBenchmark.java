@@ -0,0 +1,50 @@
+package z_codewars.sql;
+
+import java.util.Map;
+
+/**
+ * Scaling of one join + filter query over 1..32 threads, schema from {@link SQLExecBenchmark}.
+ * Usage: SQLExecParallelBenchmark [movies count] (default 1 000 000).
+ *
+ * @author borunovv
+ */
+public class SQLExecParallelBenchmark {
+
+    private static final String query = "SELECT movies.title, actors.name, movies.cert\n" +
+            "FROM movies\n" +
+            "JOIN actors_in_movies ON actors_in_movies.movieID = movies.ID\n" +
+            "JOIN actors ON actors_in_movies.actorID = actors.ID\n" +
+            "WHERE movies.cert <= 15";
+
+    private static final int[] threads = {1, 2, 4, 8, 16, 32};
+
+    private static final int ITERATIONS = 3;
+
+    public static void main(String[] args) {
+        int moviesCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Map<String, SQLExec.DataSet> db = SQLExecBenchmark.generate(moviesCount);
+        System.out.println("Movies: " + moviesCount + ", available processors: "
+                + Runtime.getRuntime().availableProcessors());
+
+        long single = 0;
+        for (int parallelism : threads) {
+            long best = measure(db, parallelism);
+            if (parallelism == 1) {
+                single = best;
+            }
+            System.out.println(String.format("threads: %2d, best: %6d ms, speedup: %5.2f",
+                    parallelism, best, (double) single / Math.max(best, 1)));
+        }
+    }
+
+    private static long measure(Map<String, SQLExec.DataSet> db, int parallelism) {
+        SQLExec.exec(db, query, parallelism); // warm up
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            SQLExec.exec(db, query, parallelism);
+            best = Math.min(best, (System.nanoTime() - start) / 1_000_000);
+        }
+        return best;
+    }
+}
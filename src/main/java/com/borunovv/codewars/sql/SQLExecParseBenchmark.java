@@ -0,0 +1,48 @@
+package z_codewars.sql;
+
+/**
+ * Tokenizer and parser throughput on large generated statements, the plan cache is off.
+ * The grammar has no IN lists, so long select lists, GROUP BY lists, join chains and quoted literals are used instead.
+ * Usage: SQLExecParseBenchmark [literals count] (default 100 000).
+ *
+ * @author borunovv
+ */
+public class SQLExecParseBenchmark {
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        SQLExec.getPlanCache().setCapacity(0);
+
+        StringBuilder select = new StringBuilder("SELECT ");
+        StringBuilder groupBy = new StringBuilder("SELECT movies.column0 FROM movies GROUP BY");
+        StringBuilder joins = new StringBuilder("SELECT movies.id FROM movies");
+        StringBuilder quoted = new StringBuilder("SELECT movies.id FROM movies WHERE movies.title = '");
+        for (int i = 0; i < count; i++) {
+            select.append(i > 0 ? ", " : "").append("Movies.Column").append(i);
+            groupBy.append(i > 0 ? "," : "").append("\n  movies.column").append(i);
+            joins.append(" JOIN t").append(i).append(" ON t").append(i).append(".id = movies.id");
+            quoted.append("It''s #").append(i).append(' ');
+        }
+        select.append(" FROM movies WHERE movies.cert <= 15");
+        quoted.append("'");
+
+        measure("select list", select.toString(), count);
+        measure("group by list", groupBy.toString(), count);
+        measure("join chain", joins.toString(), count * 5);
+        measure("quoted literal", quoted.toString(), 1);
+    }
+
+    private static void measure(String name, String sql, int tokens) {
+        SQLExec.prepare(sql); // warm up
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            SQLExec.prepare(sql);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-15s chars: %9d, tokens: %7d, best: %6.1f ms, %7.1f MB/s",
+                name, sql.length(), tokens, best / 1e6, sql.length() * 1000.0 / best));
+    }
+}
@@ -0,0 +1,50 @@
+package z_codewars.sql;
+
+import java.util.Map;
+
+/**
+ * Dashboard load: the same few queries repeated, with a row added to a queried table now and then.
+ * Runs with the result cache off and on, schema from {@link SQLExecBenchmark}.
+ * Usage: SQLExecResultCacheBenchmark [movies count] [queries per write] (default 100 000, 100).
+ *
+ * @author borunovv
+ */
+public class SQLExecResultCacheBenchmark {
+
+    private static final String[] queries = {
+            "SELECT movies.title, movies.cert FROM movies WHERE movies.cert <= 15",
+            "SELECT movies.cert, COUNT(*) FROM movies GROUP BY movies.cert",
+            "SELECT actors.name, movies.title FROM movies"
+                    + " JOIN actors_in_movies ON actors_in_movies.movieID = movies.ID"
+                    + " JOIN actors ON actors_in_movies.actorID = actors.ID WHERE movies.cert = 7",
+            "SELECT actors.name FROM actors WHERE actors.id < 100",
+    };
+
+    private static final int ROUNDS = 1000;
+
+    public static void main(String[] args) {
+        int moviesCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int queriesPerWrite = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        measure("cache off", SQLExecBenchmark.generate(moviesCount), queriesPerWrite);
+        SQLExec.getResultCache().setCapacityBytes(64L << 20);
+        measure("cache on, 64 MB", SQLExecBenchmark.generate(moviesCount), queriesPerWrite);
+        System.out.println(SQLExec.getResultCache());
+    }
+
+    private static void measure(String name, Map<String, SQLExec.DataSet> db, int queriesPerWrite) {
+        long start = System.nanoTime();
+        int count = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String query : queries) {
+                SQLExec.exec(db, query);
+                if (++count % queriesPerWrite == 0) {
+                    db.get("actors").addRow().with("id", 1_000_000_000L + count).with("name", "Extra " + count);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-16s queries: %6d, %6d ms, %8.1f queries/s",
+                name, count, elapsed / 1_000_000, count * 1e9 / elapsed));
+    }
+}
@@ -0,0 +1,104 @@
+package z_codewars.sql;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Appends to an indexed table while other threads query it: appends alone vs. under queries,
+ * and queries per second while the table grows. Every query reads a snapshot, so its rows
+ * are a prefix of the table: ids 1..size without gaps, which is checked.
+ * Usage: SQLExecSnapshotBenchmark [rows count] [query threads] (default 2 000 000, 2).
+ *
+ * @author borunovv
+ */
+public class SQLExecSnapshotBenchmark {
+
+    private static final String query = "SELECT movies.id, movies.genre FROM movies WHERE movies.cert <= 15";
+
+    private static final String lookup = "SELECT movies.id FROM movies WHERE movies.id = 4242";
+
+    private static final String[] genres = {"Drama", "Comedy", "Horror", "Sci-Fi", "Documentary"};
+
+    public static void main(String[] args) throws InterruptedException {
+        int rowsCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        long start = System.nanoTime();
+        append(new SQLExec.DataSet(), rowsCount);
+        System.out.println(String.format("%-25s %6d ms", "append alone", (System.nanoTime() - start) / 1_000_000));
+
+        Map<String, SQLExec.DataSet> db = new HashMap<>();
+        db.put("movies", new SQLExec.DataSet());
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger queries = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] readers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Thread(() -> {
+                while (!done.get()) {
+                    if (!isPrefix(ids(db))) {
+                        errors.incrementAndGet();
+                    }
+                    SQLExec.exec(db, lookup);
+                    queries.incrementAndGet();
+                }
+            });
+        }
+        start = System.nanoTime();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        append(db.get("movies"), rowsCount);
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        System.out.println(String.format("%-25s %6d ms, queries: %d (%.1f/s), inconsistent results: %d",
+                "append under queries", elapsed / 1_000_000, queries.get(), queries.get() * 1e9 / elapsed,
+                errors.get()));
+    }
+
+    private static void append(SQLExec.DataSet movies, int rowsCount) {
+        movies.createIndex("id", SQLExec.IndexType.HASH);
+        for (int i = 1; i <= rowsCount; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i);
+            row.put("cert", 6 + i % 13);
+            row.put("genre", genres[i % genres.length]);
+            movies.addRow(row);
+        }
+    }
+
+    // Ids selected by the query, in the result order.
+    private static long[] ids(Map<String, SQLExec.DataSet> db) {
+        long[] res = new long[1024];
+        int count = 0;
+        try (SQLExec.Cursor cursor = SQLExec.stream(db, query)) {
+            while (cursor.next()) {
+                if (count == res.length) {
+                    res = Arrays.copyOf(res, count * 2);
+                }
+                res[count++] = cursor.getLong(0);
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    // Ids of rows with cert <= 15 among 1..n for some n.
+    private static boolean isPrefix(long[] ids) {
+        long expected = 1;
+        for (long id : ids) {
+            while (6 + expected % 13 > 15) {
+                expected++;
+            }
+            if (id != expected++) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+package z_codewars.sql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ORDER BY on a single wide table: top-N with LIMIT, full in-memory sort and full sort spilled to temp files.
+ * Usage: SQLExecSortBenchmark [rows count] (default 10 000 000).
+ *
+ * @author borunovv
+ */
+public class SQLExecSortBenchmark {
+
+    private static final String topQuery = "SELECT movies.id, movies.rating FROM movies ORDER BY movies.rating DESC"
+            + " movies.genre LIMIT 100";
+
+    private static final String fullQuery = "SELECT movies.id, movies.rating FROM movies ORDER BY movies.rating DESC"
+            + " movies.genre";
+
+    // Sorting getRows() in application code needs a map per row, so it is measured on smaller tables only.
+    private static final int MAX_APPLICATION_SORT_ROWS = 2_000_000;
+
+    public static void main(String[] args) {
+        int rowsCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Map<String, SQLExec.DataSet> db = generate(rowsCount);
+        System.out.println("Rows: " + rowsCount + ", sort run size: " + SQLExec.Options.DEFAULT_SORT_RUN_SIZE);
+
+        if (rowsCount <= MAX_APPLICATION_SORT_ROWS) {
+            sortByApplication(db);
+        }
+
+        measure("ORDER BY ... LIMIT 100 (top-N heap)", () -> SQLExec.exec(db, topQuery).size());
+        measure("ORDER BY, whole result", () -> SQLExec.exec(db, fullQuery).size());
+        measure("ORDER BY, streamed", () -> count(db, SQLExec.Options.DEFAULT));
+        SQLExec.Options spilled = SQLExec.Options.DEFAULT.withSortRunSize(Math.max(rowsCount / 16, 1));
+        measure("ORDER BY, streamed, 16+ spilled runs", () -> count(db, spilled));
+    }
+
+    private static int count(Map<String, SQLExec.DataSet> db, SQLExec.Options options) {
+        try (SQLExec.Cursor cursor = SQLExec.prepare(fullQuery).streamWith(options, db)) {
+            int count = 0;
+            while (cursor.next()) {
+                count++;
+            }
+            return count;
+        }
+    }
+
+    // The baseline the ORDER BY is compared with: the deprecated getRows() sorted in application code.
+    @SuppressWarnings("deprecation")
+    private static void sortByApplication(Map<String, SQLExec.DataSet> db) {
+        long start = System.nanoTime();
+        List<Map<String, Object>> rows = new ArrayList<>(
+                SQLExec.exec(db, "SELECT movies.id, movies.rating, movies.genre FROM movies").getRows());
+        rows.sort((a, b) -> Double.compare((Double) b.get("movies.rating"), (Double) a.get("movies.rating")));
+        rows = rows.subList(0, Math.min(100, rows.size()));
+        System.out.println(String.format("%-40s rows: %9d, %6d ms", "getRows() sorted by application",
+                rows.size(), (System.nanoTime() - start) / 1_000_000));
+    }
+
+    private interface Run {
+        int rows();
+    }
+
+    private static void measure(String name, Run run) {
+        System.gc();
+        long start = System.nanoTime();
+        int rows = run.rows();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println(String.format("%-40s rows: %9d, %6d ms, heap used: %5d MB", name, rows, elapsed,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20));
+    }
+
+    private static Map<String, SQLExec.DataSet> generate(int rowsCount) {
+        String[] genres = {"Drama", "Comedy", "Horror", "Sci-Fi", "Documentary"};
+        SQLExec.DataSet movies = new SQLExec.DataSet();
+        for (int i = 1; i <= rowsCount; i++) {
+            movies.addRow()
+                    .with("id", i)
+                    .with("rating", (int) ((i * 2654435761L) % 1000) / 100.0)
+                    .with("genre", genres[i % genres.length]);
+        }
+        Map<String, SQLExec.DataSet> db = new HashMap<>();
+        db.put("movies", movies);
+        return db;
+    }
+}
@@ -1,5 +1,8 @@
 package z_codewars.sql;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,7 +17,7 @@ public class SQLExecTest {
             "JOIN actors ON actors_in_movies.actorID = actors.ID\n" +
             "WHERE movies.cert <= 15";
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         Map<String, SQLExec.DataSet> db = new HashMap<>();
         SQLExec.DataSet movies = new SQLExec.DataSet();
         movies.addRow().with("id", 1).with("title", "The Matrix").with("cert", 15);
@@ -42,5 +45,152 @@ public class SQLExecTest {
         System.out.println("Result:\n");
         SQLExec.DataSet ds = SQLExec.exec(db, query);
         System.out.println(ds);
+
+        SQLExec.PreparedStatement statement = SQLExec.prepare("SELECT movies.title FROM movies WHERE movies.cert <= ?");
+        System.out.println("Prepared: " + statement + "\n");
+        System.out.println(statement.execute(db, 12));
+        System.out.println(SQLExec.getPlanCache());
+
+        String aggregate = "SELECT movies.cert, COUNT(*), AVG(movies.id) FROM movies GROUP BY movies.cert";
+        System.out.println("Aggregate: " + aggregate + "\n");
+        System.out.println(SQLExec.exec(db, aggregate));
+
+        String ordered = "SELECT movies.title, movies.cert FROM movies ORDER BY movies.cert DESC movies.title LIMIT 2";
+        System.out.println("Ordered: " + ordered + "\n");
+        System.out.println(SQLExec.exec(db, ordered));
+
+        System.out.println("Streamed:\n");
+        try (SQLExec.Cursor cursor = SQLExec.stream(db, query)) {
+            while (cursor.next()) {
+                System.out.println(cursor.getString(0) + "\t" + cursor.getString(1) + "\t" + cursor.getLong(2));
+            }
+        }
+
+        System.out.println("\nPlan:\n");
+        System.out.println(SQLExec.explain(db, query));
+
+        mixedColumn();
+        badGroupByColumns(db);
+        openRow();
+        absentJoinKeys();
+    }
+
+    // A join on a key absent in some row fails whatever the join algorithm is, as the nested loop does.
+    private static void absentJoinKeys() {
+        Map<String, SQLExec.DataSet> db = new HashMap<>();
+        SQLExec.DataSet l = new SQLExec.DataSet();
+        l.addRow().with("id", 1).with("k", 1);
+        l.addRow().with("id", 2);
+        db.put("l", l);
+        SQLExec.DataSet r = new SQLExec.DataSet();
+        r.addRow().with("id", 1).with("k", 1);
+        db.put("r", r);
+        String[] queries = {
+                "SELECT l.id FROM l JOIN r ON l.k <= r.k",
+                "SELECT l.id FROM l JOIN r ON l.k = r.k",
+                "SELECT r.id FROM r JOIN l ON r.k = l.k"};
+        for (String query : queries) {
+            expectError(db, query, "Not found column l.k in result set");
+        }
+        r.createIndex("k", SQLExec.IndexType.HASH);
+        expectError(db, queries[1], "Not found column l.k in result set");
+        System.out.println("Absent join keys: OK");
+    }
+
+    private static void expectError(Map<String, SQLExec.DataSet> db, String query, String message) {
+        try {
+            SQLExec.exec(db, query);
+        } catch (RuntimeException e) {
+            check(message.equals(e.getMessage()), query + ": " + e.getMessage());
+            return;
+        }
+        throw new IllegalStateException(query + ": expected error " + message);
+    }
+
+    // Other threads don't see a row added by addRow() until the adding thread adds the next one or reads
+    // the table, so they never see it half filled.
+    @SuppressWarnings("deprecation")
+    private static void openRow() throws InterruptedException {
+        Map<String, SQLExec.DataSet> db = new HashMap<>();
+        SQLExec.DataSet table = new SQLExec.DataSet();
+        db.put("t", table);
+        SQLExec.DSRow row = table.addRow().with("id", 1);
+        int[] seen = new int[1];
+        Thread reader = new Thread(() -> seen[0] = SQLExec.exec(db, "SELECT t.id FROM t WHERE t.id = 1").size());
+        reader.start();
+        reader.join();
+        check(seen[0] == 0, "row seen by another thread before it is complete");
+        row.with("name", "one");
+        SQLExec.DataSet res = SQLExec.exec(db, "SELECT t.id, t.name FROM t");
+        check(res.size() == 1 && "one".equals(res.getRows().get(0).get("t.name")), "complete row: " + res);
+        System.out.println("Open row: OK");
+    }
+
+    // GROUP BY columns are checked like the selected ones.
+    private static void badGroupByColumns(Map<String, SQLExec.DataSet> db) {
+        for (String column : new String[]{"movies.", "movies.cert.x", ".cert"}) {
+            try {
+                SQLExec.exec(db, "SELECT COUNT(*) FROM movies GROUP BY " + column);
+                throw new IllegalStateException("GROUP BY " + column + " must be rejected");
+            } catch (RuntimeException e) {
+                check(e.getMessage().startsWith("Bad column name: " + column), e.getMessage());
+            }
+        }
+        System.out.println("Bad GROUP BY columns: OK");
+    }
+
+    // A column with long and double values keeps the long values exact: 2^53 and 2^53 + 1 stay distinct,
+    // also after saving and mapping the table.
+    @SuppressWarnings("deprecation")
+    private static void mixedColumn() throws IOException {
+        Map<String, SQLExec.DataSet> db = new HashMap<>();
+        SQLExec.DataSet nums = new SQLExec.DataSet();
+        nums.addRow().with("id", 1).with("v", 0);
+        nums.addRow().with("id", 2).with("v", 1.5);
+        nums.addRow().with("id", 3).with("v", 9007199254740993L);
+        nums.addRow().with("id", 4).with("v", 9007199254740992L);
+        db.put("nums", nums);
+        checkMixedColumn(db);
+
+        Path file = Files.createTempFile("nums", ".table");
+        try {
+            SQLExec.saveTable(nums, file);
+            Map<String, SQLExec.DataSet> mapped = new HashMap<>();
+            mapped.put("nums", SQLExec.mapTable(file));
+            checkMixedColumn(mapped);
+            check(mapped.get("nums").getRows().equals(nums.getRows()), "rows of the mapped table");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        try {
+            nums.getRows().get(0).put("v", 1L);
+            throw new IllegalStateException("getRows() must be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        System.out.println("\nMixed column: OK");
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void checkMixedColumn(Map<String, SQLExec.DataSet> db) {
+        Object zero = SQLExec.exec(db, "SELECT nums.v FROM nums WHERE nums.id = 1").getRows().get(0).get("nums.v");
+        check(Long.valueOf(0).equals(zero), "long value of a mixed column: " + zero);
+        SQLExec.DataSet equal = SQLExec.exec(db, "SELECT nums.id FROM nums WHERE nums.v = 9007199254740993");
+        check(equal.size() == 1 && Long.valueOf(3).equals(equal.getRows().get(0).get("nums.id")),
+                "equality of large longs: " + equal.getRows());
+        check(SQLExec.exec(db, "SELECT nums.v, COUNT(*) FROM nums GROUP BY nums.v").size() == 4,
+                "groups of large longs");
+        Object max = SQLExec.exec(db, "SELECT MAX(nums.v) FROM nums").getRows().get(0).get("max(nums.v)");
+        check(Long.valueOf(9007199254740993L).equals(max), "MAX of a mixed column: " + max);
+        Object top = SQLExec.exec(db, "SELECT nums.id FROM nums ORDER BY nums.v DESC LIMIT 1")
+                .getRows().get(0).get("nums.id");
+        check(Long.valueOf(3).equals(top), "ORDER BY large longs: " + top);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
     }
 }
@@ -0,0 +1,74 @@
+package z_codewars.sql;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * WHERE filter throughput on a single wide table.
+ * Usage: SQLExecWhereBenchmark [rows count] (default 10 000 000).
+ *
+ * @author borunovv
+ */
+public class SQLExecWhereBenchmark {
+
+    private static final String[] queries = {
+            "SELECT movies.id FROM movies WHERE movies.cert <= 15",
+            "SELECT movies.id FROM movies WHERE 15 >= movies.cert",
+            "SELECT movies.id FROM movies WHERE movies.rating > 7.5",
+            "SELECT movies.id FROM movies WHERE movies.rating < movies.cert",
+            "SELECT movies.id FROM movies WHERE movies.genre = movies.genre",
+    };
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        int rowsCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Map<String, SQLExec.DataSet> db = generate(rowsCount);
+
+        for (String query : queries) {
+            measure(db, query, rowsCount);
+        }
+
+        System.out.println("Indexed:");
+        String[] lookups = {
+                "SELECT movies.id FROM movies WHERE movies.id = 4242",
+                "SELECT movies.id FROM movies WHERE movies.cert < 7",
+        };
+        for (String query : lookups) {
+            measure(db, query, rowsCount);
+        }
+        SQLExec.createIndex(db, "movies", "id", SQLExec.IndexType.HASH);
+        SQLExec.createIndex(db, "movies", "cert", SQLExec.IndexType.SORTED);
+        for (String query : lookups) {
+            measure(db, query, rowsCount);
+        }
+    }
+
+    private static void measure(Map<String, SQLExec.DataSet> db, String query, int rowsCount) {
+        SQLExec.exec(db, query); // warm up
+        long best = Long.MAX_VALUE;
+        int rows = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            rows = SQLExec.exec(db, query).size();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-70s rows: %9d, best: %6d ms, %7.1f M rows/s",
+                query, rows, best / 1_000_000, rowsCount * 1000.0 / best));
+    }
+
+    private static Map<String, SQLExec.DataSet> generate(int rowsCount) {
+        String[] genres = {"Drama", "Comedy", "Horror", "Sci-Fi", "Documentary"};
+        SQLExec.DataSet movies = new SQLExec.DataSet();
+        for (int i = 1; i <= rowsCount; i++) {
+            movies.addRow()
+                    .with("id", i)
+                    .with("cert", 6 + i % 13)
+                    .with("rating", (i % 100) / 10.0)
+                    .with("genre", genres[i % genres.length]);
+        }
+        Map<String, SQLExec.DataSet> db = new HashMap<>();
+        db.put("movies", movies);
+        return db;
+    }
+}